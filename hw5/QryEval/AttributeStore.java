@@ -0,0 +1,271 @@
+/**
+ *  Copyright (c) 2016, Carnegie Mellon University.  All Rights Reserved.
+ */
+import java.io.*;
+
+import org.apache.lucene.document.Document;
+import org.apache.lucene.index.*;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.util.Bits;
+
+/**
+ *  Columns of the per-document attributes that the query-independent
+ *  learning-to-rank features are computed from, indexed by internal
+ *  docid:  the spam score (f1), the number of '/' characters in the
+ *  raw URL (f2), and whether the raw URL contains "wikipedia.org"
+ *  (f3).  Reading a feature is an array access instead of loading the
+ *  stored document and parsing its fields.
+ *  <p>
+ *  The columns are built offline, by running this class, and saved
+ *  next to the index (INDEX_PATH.attributes).  Idx loads them into
+ *  primitive arrays if the file exists and was built from the index
+ *  that is open.  The file format is:
+ *  </p>
+ *  <pre>
+ *    int    MAGIC, VERSION
+ *           IndexIdentity of the index
+ *    float  spamScore[maxDoc]
+ *    byte   urlDepth[maxDoc]
+ *    long   wikipedia[(maxDoc+63)/64]    bit set
+ *    long   stored[(maxDoc+63)/64]       bit set
+ *  </pre>
+ *  <p>
+ *  A document's stored bit is set if the columns have its exact
+ *  attribute values, i.e., it has both attributes, its spam score is
+ *  a float, and its URL has at most 255 slashes.  Other documents
+ *  must read the attributes from the index.
+ *  </p>
+ */
+public class AttributeStore {
+
+  //  --------------- Constants and variables ---------------------
+
+  private static final int MAGIC = 0x51455641;
+  private static final int VERSION = 2;
+
+  static String usage =
+    "Usage:  java " +
+    System.getProperty("sun.java.command") +
+    " -index INDEX_PATH\n\n" +
+    "Writes the document attribute columns of the index to " +
+    "INDEX_PATH.attributes.\n";
+
+  private final int maxDoc;
+  private final float[] spamScore;
+  private final byte[] urlDepth;
+  private final long[] wikipedia;
+  private final long[] stored;
+
+  //  --------------- Methods ---------------------------------------
+
+  private AttributeStore (int maxDoc) {
+    this.maxDoc = maxDoc;
+    this.spamScore = new float[maxDoc];
+    this.urlDepth = new byte[maxDoc];
+    this.wikipedia = new long[(maxDoc + 63) / 64];
+    this.stored = new long[(maxDoc + 63) / 64];
+  }
+
+  /**
+   *  Build the columns from the stored fields of an index.
+   *  @param reader The index.
+   *  @return The attribute store.
+   *  @throws IOException Error accessing the index.
+   */
+  public static AttributeStore fromIndex (IndexReader reader)
+    throws IOException {
+
+    AttributeStore store = new AttributeStore (reader.maxDoc ());
+    Bits liveDocs = MultiFields.getLiveDocs (reader);
+
+    for (int docid = 0; docid < store.maxDoc; docid++) {
+      if ((liveDocs != null) && ! liveDocs.get (docid))
+        continue;
+
+      Document d = reader.document (docid);
+      String score = d.get ("score");
+      String url = d.get ("rawUrl");
+
+      if ((score == null) || (url == null))
+        continue;
+
+      double spam;
+
+      try {
+        spam = Double.parseDouble (score);
+      } catch (NumberFormatException ex) {
+        continue;
+      }
+
+      int slashes = 0;
+
+      for (int i = 0; i < url.length (); i++) {
+        if (url.charAt (i) == '/')
+          slashes ++;
+      }
+
+      if (((double) (float) spam != spam) || (slashes > 255))
+        continue;
+
+      store.spamScore[docid] = (float) spam;
+      store.urlDepth[docid] = (byte) slashes;
+
+      if (url.contains ("wikipedia.org"))
+        store.wikipedia[docid >> 6] |= 1L << docid;
+
+      store.stored[docid >> 6] |= 1L << docid;
+    }
+
+    return store;
+  }
+
+  /**
+   *  Read columns that were saved by write.
+   *  @param file The attribute file.
+   *  @param identity The index that is open.
+   *  @return The attribute store, or null if the file was built from a
+   *  different index.
+   *  @throws IOException Error reading the file, or it isn't an
+   *  attribute file.
+   */
+  public static AttributeStore read (File file, IndexIdentity identity)
+    throws IOException {
+
+    DataInputStream in = new DataInputStream (
+      new BufferedInputStream (new FileInputStream (file)));
+
+    try {
+      if ((in.readInt () != MAGIC) || (in.readInt () != VERSION)) {
+        throw new IOException ("Unrecognized attribute file " + file);
+      }
+
+      if (! identity.equals (IndexIdentity.read (in))) {
+        return null;
+      }
+
+      int maxDoc = identity.getMaxDoc ();
+      AttributeStore store = new AttributeStore (maxDoc);
+
+      for (int i = 0; i < maxDoc; i++)
+        store.spamScore[i] = in.readFloat ();
+
+      in.readFully (store.urlDepth);
+
+      for (int i = 0; i < store.wikipedia.length; i++)
+        store.wikipedia[i] = in.readLong ();
+
+      for (int i = 0; i < store.stored.length; i++)
+        store.stored[i] = in.readLong ();
+
+      return store;
+    } finally {
+      in.close ();
+    }
+  }
+
+  /**
+   *  Save the columns.
+   *  @param file The attribute file.
+   *  @param identity The index that the columns were built from.
+   *  @throws IOException Error writing the file.
+   */
+  public void write (File file, IndexIdentity identity) throws IOException {
+
+    DataOutputStream out = new DataOutputStream (
+      new BufferedOutputStream (new FileOutputStream (file)));
+
+    try {
+      out.writeInt (MAGIC);
+      out.writeInt (VERSION);
+      identity.write (out);
+
+      for (float spam : this.spamScore)
+        out.writeFloat (spam);
+
+      out.write (this.urlDepth);
+
+      for (long bits : this.wikipedia)
+        out.writeLong (bits);
+
+      for (long bits : this.stored)
+        out.writeLong (bits);
+    } finally {
+      out.close ();
+    }
+  }
+
+  /**
+   *  Get the file that the columns of an index are saved in.
+   *  @param indexPath A directory that contains a Lucene index.
+   *  @return The attribute file.
+   */
+  public static File getFile (String indexPath) {
+    return new File (new File (indexPath).getPath () + ".attributes");
+  }
+
+  /**
+   *  Do the columns have the attributes of a document?
+   *  @param docid The internal docid.
+   *  @return True if the other methods return its attributes.
+   */
+  public boolean has (int docid) {
+    return (this.stored[docid >> 6] & (1L << docid)) != 0;
+  }
+
+  /**
+   *  Get the spam score of a document.
+   *  @param docid The internal docid.
+   *  @return The spam score.
+   */
+  public double getSpamScore (int docid) {
+    return this.spamScore[docid];
+  }
+
+  /**
+   *  Get the number of '/' characters in a document's raw URL.
+   *  @param docid The internal docid.
+   *  @return The URL depth.
+   */
+  public int getUrlDepth (int docid) {
+    return this.urlDepth[docid] & 0xff;
+  }
+
+  /**
+   *  Does a document's raw URL contain "wikipedia.org"?
+   *  @param docid The internal docid.
+   *  @return True if it is a Wikipedia document.
+   */
+  public boolean isWikipedia (int docid) {
+    return (this.wikipedia[docid >> 6] & (1L << docid)) != 0;
+  }
+
+  /**
+   *  Save the document attribute columns of an index.
+   *  @param args See the usage message.
+   *  @throws IOException Error accessing the index or writing the file.
+   */
+  public static void main (String[] args) throws IOException {
+
+    String indexPath = null;
+
+    for (int i = 0; i < args.length; i++) {
+      if ("-index".equals (args[i]) && ((i + 1) < args.length)) {
+        indexPath = args[++i];
+      } else {
+        System.err.println ("\nWarning:  Unknown argument " + args[i]
+                            + " ignored.");
+      }
+    }
+
+    if (indexPath == null) {
+      System.err.println (usage);
+      System.exit (1);
+    }
+
+    DirectoryReader reader =
+      DirectoryReader.open (FSDirectory.open (new File (indexPath)));
+
+    fromIndex (reader).write (getFile (indexPath), IndexIdentity.of (reader));
+    reader.close ();
+  }
+}
@@ -0,0 +1,118 @@
+/**
+ *  Copyright (c) 2016, Carnegie Mellon University.  All Rights Reserved.
+ */
+import java.io.*;
+import java.util.*;
+
+import org.apache.lucene.index.*;
+
+/**
+ *  An immutable snapshot of the collection statistics that retrieval
+ *  models use: the number of documents and, for each field, the sum of
+ *  the field lengths, the number of documents that have the field, and
+ *  the average field length.  Idx builds it once, when the index is
+ *  opened, so scoring doesn't call Lucene for these numbers, and one
+ *  snapshot can be read by many threads.
+ */
+public class CollectionStats {
+
+  //  --------------- Constants and variables ---------------------
+
+  /**
+   *  The statistics of one field.
+   */
+  private static class FieldStats {
+    final long sumOfLengths;
+    final int docCount;
+    final double averageLength;
+
+    FieldStats (long sumOfLengths, int docCount) {
+      this.sumOfLengths = sumOfLengths;
+      this.docCount = docCount;
+
+      //  The average is computed in float precision, as the BM25
+      //  implementation always has, so that scores don't change.
+
+      this.averageLength = sumOfLengths / (float) docCount;
+    }
+  }
+
+  /**
+   *  The statistics of a field that isn't in the index.
+   */
+  private static final FieldStats NO_FIELD = new FieldStats (0, 0);
+
+  private final long numDocs;
+  private final Map<String, FieldStats> fields;
+
+  //  --------------- Methods ---------------------------------------
+
+  private CollectionStats (long numDocs, Map<String, FieldStats> fields) {
+    this.numDocs = numDocs;
+    this.fields = Collections.unmodifiableMap (fields);
+  }
+
+  /**
+   *  Read the statistics of every indexed field from a Lucene index.
+   *  @param reader The index.
+   *  @return The statistics.
+   *  @throws IOException Error accessing the index.
+   */
+  public static CollectionStats fromIndex (IndexReader reader)
+    throws IOException {
+
+    Map<String, FieldStats> fields = new HashMap<String, FieldStats> ();
+    Fields indexFields = MultiFields.getFields (reader);
+
+    if (indexFields != null) {
+      for (String field : indexFields) {
+        fields.put (field,
+                    new FieldStats (reader.getSumTotalTermFreq (field),
+                                    reader.getDocCount (field)));
+      }
+    }
+
+    return new CollectionStats (reader.numDocs (), fields);
+  }
+
+  private FieldStats getFieldStats (String fieldName) {
+    FieldStats f = this.fields.get (fieldName);
+    return (f == null) ? NO_FIELD : f;
+  }
+
+  /**
+   *  Get the number of documents in the corpus.
+   *  @return The number of documents.
+   */
+  public long getNumDocs () {
+    return this.numDocs;
+  }
+
+  /**
+   *  Get the total number of term occurrences in all instances of a
+   *  field.
+   *  @param fieldName The field name.
+   *  @return The sum of the field lengths.
+   */
+  public long getSumOfFieldLengths (String fieldName) {
+    return this.getFieldStats (fieldName).sumOfLengths;
+  }
+
+  /**
+   *  Get the number of documents that contain a field.
+   *  @param fieldName The field name.
+   *  @return The number of documents.
+   */
+  public int getDocCount (String fieldName) {
+    return this.getFieldStats (fieldName).docCount;
+  }
+
+  /**
+   *  Get the average length of a field in the documents that have it.
+   *  @param fieldName The field name.
+   *  @return The average field length.
+   */
+  public double getAverageFieldLength (String fieldName) {
+    return this.getFieldStats (fieldName).averageLength;
+  }
+}
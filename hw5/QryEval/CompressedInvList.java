@@ -0,0 +1,391 @@
+/**
+ *  Copyright (c) 2016, Carnegie Mellon University.  All Rights Reserved.
+ */
+import java.util.*;
+
+/**
+ *  A block-compressed, read-only inverted list.  Postings are grouped
+ *  into blocks of BLOCK_SIZE documents.  Within a block, docids are
+ *  delta-encoded and stored with the tfs as variable-byte integers;
+ *  the locations of each document are delta-encoded the same way in
+ *  a separate stream.  The largest docid of each block is stored
+ *  uncompressed, so findDocid skips whole blocks without decoding them.
+ *  <p>
+ *  A compressed list is typically a fraction of the size of the
+ *  equivalent InvList, so many more lists fit in the InvListCache.
+ *  The compressed data is immutable and shared, but the decoded block
+ *  is not; each query operator must iterate over its own view().
+ *  </p>
+ */
+public class CompressedInvList extends InvList {
+
+  //  --------------- Constants and variables ---------------------
+
+  /**
+   *  If true, inverted lists that are cached or materialized by query
+   *  operators are compressed.  Set from the parameter file.
+   */
+  public static boolean compressPostings = false;
+
+  /**
+   *  The number of postings in a block.  Lists shorter than one block
+   *  are not worth compressing.
+   */
+  public static final int BLOCK_SIZE = 128;
+
+  //  The compressed postings.  These are shared by all views.
+
+  private int numBlocks;
+  private int[] blockMaxDocid;
+  private int[] blockDocStart;
+  private int[] blockPosStart;
+  private byte[] docBytes;
+  private byte[] posBytes;
+
+  //  The decoded block of this view.
+
+  private int block = -1;
+  private int[] blockDocids = new int[BLOCK_SIZE];
+  private int[] blockTfs = new int[BLOCK_SIZE];
+
+  //  The decoded locations of this view's block, if they were needed.
+
+  private int posBlock = -1;
+  private int[] blockOffsets = new int[BLOCK_SIZE + 1];
+  private int[] blockPositions = null;
+
+  //  --------------- Methods ---------------------------------------
+
+  /**
+   *  Compress an inverted list.
+   *  @param invList The inverted list to compress.
+   */
+  public CompressedInvList(InvList invList) {
+    super(invList.field, invList.hasPositions());
+    this.df = invList.df;
+    this.ctf = invList.ctf;
+
+    this.numBlocks = (this.df + BLOCK_SIZE - 1) / BLOCK_SIZE;
+    this.blockMaxDocid = new int[this.numBlocks];
+    this.blockDocStart = new int[this.numBlocks + 1];
+
+    ByteBuffer docOut = new ByteBuffer(2 * this.df + 16);
+    ByteBuffer posOut = null;
+
+    if (this.hasPositions()) {
+      this.blockPosStart = new int[this.numBlocks + 1];
+      posOut = new ByteBuffer(this.ctf + 16);
+    }
+
+    int prevDocid = -1;
+    int max = 0;
+
+    for (int b = 0; b < this.numBlocks; b++) {
+      int first = b * BLOCK_SIZE;
+      int last = Math.min(this.df, first + BLOCK_SIZE);
+
+      this.blockDocStart[b] = docOut.size;
+
+      if (posOut != null)
+        this.blockPosStart[b] = posOut.size;
+
+      for (int n = first; n < last; n++) {
+        int docid = invList.getDocid(n);
+        int tf = invList.getTf(n);
+        max = Math.max(max, tf);
+
+        docOut.writeVInt(docid - prevDocid);
+        docOut.writeVInt(tf);
+        prevDocid = docid;
+
+        if (posOut != null) {
+          int prevLoc = 0;
+
+          for (int j = 0; j < tf; j++) {
+            int loc = invList.getPosition(n, j);
+            posOut.writeVInt(loc - prevLoc);
+            prevLoc = loc;
+          }
+        }
+      }
+
+      this.blockMaxDocid[b] = prevDocid;
+    }
+
+    this.maxTf = max;
+    this.blockDocStart[this.numBlocks] = docOut.size;
+    this.docBytes = Arrays.copyOf(docOut.bytes, docOut.size);
+
+    if (posOut != null) {
+      this.blockPosStart[this.numBlocks] = posOut.size;
+      this.posBytes = Arrays.copyOf(posOut.bytes, posOut.size);
+    }
+  }
+
+  /**
+   *  Create a new view that shares the compressed postings of another.
+   *  @param other The list to share.
+   */
+  private CompressedInvList(CompressedInvList other) {
+    super(other.field, other.hasPositions());
+    this.df = other.df;
+    this.ctf = other.ctf;
+    this.maxTf = other.maxTf;
+    this.numBlocks = other.numBlocks;
+    this.blockMaxDocid = other.blockMaxDocid;
+    this.blockDocStart = other.blockDocStart;
+    this.blockPosStart = other.blockPosStart;
+    this.docBytes = other.docBytes;
+    this.posBytes = other.posBytes;
+  }
+
+  /**
+   *  Compress an inverted list if compression is enabled and the list
+   *  is long enough to benefit.
+   *  @param invList An inverted list.
+   *  @return The compressed list, or invList.
+   */
+  public static InvList compress(InvList invList) {
+    //  Only heap InvLists are compressed.  Mapped lists are not on
+    //  the heap, and compressed lists are compressed already.
+
+    if ((! compressPostings) ||
+        (invList.getClass () != InvList.class) ||
+        (invList.df < BLOCK_SIZE))
+      return invList;
+
+    return new CompressedInvList(invList);
+  }
+
+  /**
+   *  Decode block b into blockDocids and blockTfs.
+   *  @param b The block to decode.
+   */
+  private void decodeBlock(int b) {
+    if (this.block == b)
+      return;
+
+    int first = b * BLOCK_SIZE;
+    int count = Math.min(this.df - first, BLOCK_SIZE);
+    int docid = (b == 0) ? -1 : this.blockMaxDocid[b - 1];
+    int p = this.blockDocStart[b];
+    byte[] in = this.docBytes;
+
+    for (int i = 0; i < count; i++) {
+
+      //  Two variable-byte integers: the docid gap and the tf.
+
+      int v = 0;
+      int shift = 0;
+      byte x;
+
+      do {
+        x = in[p++];
+        v |= (x & 0x7F) << shift;
+        shift += 7;
+      } while (x < 0);
+
+      docid += v;
+      this.blockDocids[i] = docid;
+
+      v = 0;
+      shift = 0;
+
+      do {
+        x = in[p++];
+        v |= (x & 0x7F) << shift;
+        shift += 7;
+      } while (x < 0);
+
+      this.blockTfs[i] = v;
+    }
+
+    this.block = b;
+  }
+
+  /**
+   *  Decode the locations of block b.
+   *  @param b The block to decode.
+   */
+  private void decodePositions(int b) {
+    if (this.posBlock == b)
+      return;
+
+    this.decodeBlock(b);
+
+    int count = Math.min(this.df - b * BLOCK_SIZE, BLOCK_SIZE);
+    int total = 0;
+
+    for (int i = 0; i < count; i++) {
+      this.blockOffsets[i] = total;
+      total += this.blockTfs[i];
+    }
+
+    this.blockOffsets[count] = total;
+
+    if ((this.blockPositions == null) || (this.blockPositions.length < total))
+      this.blockPositions = new int[Math.max(total, 2 * BLOCK_SIZE)];
+
+    int p = this.blockPosStart[b];
+    byte[] in = this.posBytes;
+
+    for (int i = 0; i < count; i++) {
+      int loc = 0;
+
+      for (int j = this.blockOffsets[i]; j < this.blockOffsets[i + 1]; j++) {
+        int v = 0;
+        int shift = 0;
+        byte x;
+
+        do {
+          x = in[p++];
+          v |= (x & 0x7F) << shift;
+          shift += 7;
+        } while (x < 0);
+
+        loc += v;
+        this.blockPositions[j] = loc;
+      }
+    }
+
+    this.posBlock = b;
+  }
+
+  /**
+   *  Find the first posting at or after index from whose docid is at
+   *  least docid.  Blocks whose largest docid is less than docid are
+   *  skipped without being decoded.
+   *  @param from The index of the posting to start searching from.
+   *  @param docid The internal document id to search for.
+   *  @return The index of the posting, or df if there is none.
+   */
+  public int findDocid(int from, int docid) {
+
+    if (from >= this.df)
+      return from;
+
+    int b = from / BLOCK_SIZE;
+
+    if (this.blockMaxDocid[b] < docid) {
+
+      //  Gallop over the block maxima to the first block that can
+      //  contain docid, then start at its first posting.
+
+      int lo = b;
+      int step = 1;
+      int hi = b + step;
+
+      while ((hi < this.numBlocks) && (this.blockMaxDocid[hi] < docid)) {
+        lo = hi;
+        step <<= 1;
+        hi = b + step;
+      }
+
+      if (hi > this.numBlocks)
+        hi = this.numBlocks;
+
+      while (hi - lo > 1) {
+        int mid = (lo + hi) >>> 1;
+
+        if (this.blockMaxDocid[mid] < docid)
+          lo = mid;
+        else
+          hi = mid;
+      }
+
+      if (hi == this.numBlocks)
+        return this.df;
+
+      b = hi;
+      from = b * BLOCK_SIZE;
+    }
+
+    //  The answer is in block b.
+
+    this.decodeBlock(b);
+
+    int i = from - b * BLOCK_SIZE;
+
+    while (this.blockDocids[i] < docid)
+      i++;
+
+    return b * BLOCK_SIZE + i;
+  }
+
+  /**
+   *  Get the n'th document id from the inverted list.
+   *  @param n The index of the requested document.
+   *  @return The internal document id.
+   */
+  public int getDocid(int n) {
+    this.decodeBlock(n / BLOCK_SIZE);
+    return this.blockDocids[n % BLOCK_SIZE];
+  }
+
+  /**
+   *  Get the term frequency in the n'th document of the inverted list.
+   *  @param n The index of the requested document term frequency.
+   *  @return The document's term frequency.
+   */
+  public int getTf(int n) {
+    this.decodeBlock(n / BLOCK_SIZE);
+    return this.blockTfs[n % BLOCK_SIZE];
+  }
+
+  /**
+   *  Get the j'th location in the n'th document of the inverted list.
+   *  @param n The index of the requested document.
+   *  @param j The index of the requested location in that document.
+   *  @return The location.
+   */
+  public int getPosition(int n, int j) {
+    this.decodePositions(n / BLOCK_SIZE);
+    return this.blockPositions[this.blockOffsets[n % BLOCK_SIZE] + j];
+  }
+
+  /**
+   *  Get the approximate amount of memory that the compressed postings
+   *  use.  Views share them, so per-view buffers are not counted.
+   *  @return The size of the inverted list in bytes.
+   */
+  public long sizeInBytes() {
+    long size = this.docBytes.length + 4L * (2 * this.numBlocks + 1) + 96;
+
+    if (this.posBytes != null)
+      size += this.posBytes.length + 4L * (this.numBlocks + 1);
+
+    return size;
+  }
+
+  /**
+   *  Get a view of the compressed postings with its own decoding state.
+   *  @return A new view of this list.
+   */
+  public InvList view() {
+    return new CompressedInvList(this);
+  }
+
+  /**
+   *  A growable byte array for encoding variable-byte integers.
+   */
+  private static class ByteBuffer {
+    byte[] bytes;
+    int size = 0;
+
+    ByteBuffer(int capacity) {
+      this.bytes = new byte[capacity];
+    }
+
+    void writeVInt(int v) {
+      if (this.size + 5 > this.bytes.length)
+        this.bytes = Arrays.copyOf(this.bytes, 2 * this.bytes.length + 5);
+
+      while ((v & ~0x7F) != 0) {
+        this.bytes[this.size++] = (byte) ((v & 0x7F) | 0x80);
+        v >>>= 7;
+      }
+
+      this.bytes[this.size++] = (byte) v;
+    }
+  }
+}
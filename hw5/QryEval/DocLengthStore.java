@@ -2,32 +2,217 @@
  *  Copyright (c) 2016, Carnegie Mellon University.  All Rights Reserved.
  */
 
-import java.io.IOException;
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.FileChannel;
 import java.util.HashMap;
 import java.util.Map;
+import org.apache.lucene.index.DirectoryReader;
 import org.apache.lucene.index.IndexReader;
 import org.apache.lucene.index.NumericDocValues;
 import org.apache.lucene.index.MultiDocValues;
 import org.apache.lucene.index.MultiFields;
+import org.apache.lucene.store.FSDirectory;
 
 /**
  * DocLengthStore is used to access the document lengths of indexed docs.
+ * <p>
+ * The lengths of each field are one int column, indexed by docid, so
+ * a length lookup is an array access.  Each field has an ordinal;
+ * scorers resolve their field to its ordinal once per query and then
+ * use {@link #getDocLength(int, int)}.  The columns are read from the
+ * Lucene norms into int[] arrays, or, if the index has a length column
+ * file next to it (INDEX_PATH.lengths, written by running this class)
+ * that was built from the index that is open, they are memory-mapped
+ * from that file.  The file format is:
+ * </p>
+ * <pre>
+ *   int   MAGIC, VERSION
+ *         IndexIdentity of the index
+ *   int   numFields
+ *   numFields times:  UTF field name
+ *   numFields times:  int lengths[maxDoc]
+ * </pre>
  */
 public class DocLengthStore  {
 
-  private IndexReader reader;
-  private  Map<String, NumericDocValues> values = new HashMap<String, NumericDocValues>();
+  private static final int MAGIC = 0x5145564c;
+  private static final int VERSION = 2;
+
+  static String usage =
+    "Usage:  java " +
+    System.getProperty("sun.java.command") +
+    " -index INDEX_PATH\n\n" +
+    "Writes the document lengths of the index to INDEX_PATH.lengths.\n";
+
+  private Map<String, Integer> ordinals = new HashMap<String, Integer>();
+  private String[] fieldNames;
+
+  /**
+   * The length columns, if they were read from the index, or null.
+   */
+  private int[][] lengths;
+
+  /**
+   * The length columns, if they were mapped from a length column
+   * file, or null.
+   */
+  private IntBuffer[] mappedLengths;
 
   /**
    * @param reader IndexReader object created in {@link Idx}.
    */
   public DocLengthStore(IndexReader reader) throws IOException {
-    this.reader = reader;
+    this(reader, null, null);
+  }
+
+  /**
+   * @param reader IndexReader object created in {@link Idx}.
+   * @param columnFile A length column file, or null.  It is used if it
+   * exists and was built from this index; otherwise the lengths are
+   * read from the index.
+   * @param identity The identity of the index.
+   */
+  public DocLengthStore(IndexReader reader, File columnFile,
+                        IndexIdentity identity)
+    throws IOException {
+
+    if ((columnFile != null) && columnFile.isFile() &&
+        this.map(columnFile, identity)) {
+      return;
+    }
+
+    int maxDoc = reader.maxDoc();
+    Map<String, int[]> columns = new HashMap<String, int[]>();
+
     for (String field : MultiFields.getIndexedFields(reader)) {
-      this.values.put(field, MultiDocValues.getNormValues(reader, field));      
+      NumericDocValues norms = MultiDocValues.getNormValues(reader, field);
+
+      //  Fields without norms don't have lengths.
+
+      if (norms == null)
+        continue;
+
+      int[] column = new int[maxDoc];
+
+      for (int docid = 0; docid < maxDoc; docid++) {
+        column[docid] = (int) norms.get(docid);
+      }
+
+      columns.put(field, column);
+    }
+
+    this.fieldNames = columns.keySet().toArray(new String[columns.size()]);
+    this.lengths = new int[this.fieldNames.length][];
+
+    for (int i = 0; i < this.fieldNames.length; i++) {
+      this.ordinals.put(this.fieldNames[i], i);
+      this.lengths[i] = columns.get(this.fieldNames[i]);
+    }
+  }
+
+  /**
+   * Map the columns of a length column file.
+   *
+   * @return False if the file was built from a different index.
+   */
+  private boolean map(File columnFile, IndexIdentity identity)
+    throws IOException {
+    RandomAccessFile raf = new RandomAccessFile(columnFile, "r");
+
+    try {
+      if ((raf.readInt() != MAGIC) || (raf.readInt() != VERSION)) {
+        throw new IOException("Unrecognized length file " + columnFile);
+      }
+
+      if (! identity.equals(IndexIdentity.read(raf))) {
+        return false;
+      }
+
+      int maxDoc = identity.getMaxDoc();
+      int numFields = raf.readInt();
+
+      this.fieldNames = new String[numFields];
+      this.mappedLengths = new IntBuffer[numFields];
+
+      for (int i = 0; i < numFields; i++) {
+        this.fieldNames[i] = raf.readUTF();
+      }
+
+      long offset = raf.getFilePointer();
+      FileChannel channel = raf.getChannel();
+
+      for (int i = 0; i < numFields; i++) {
+        this.ordinals.put(this.fieldNames[i], i);
+        this.mappedLengths[i] =
+          channel.map(FileChannel.MapMode.READ_ONLY, offset, 4L * maxDoc)
+                 .asIntBuffer();
+        offset += 4L * maxDoc;
+      }
+
+      return true;
+    } finally {
+      raf.close();
     }
   }
 
+  /**
+   * Get the file that the length columns of an index are saved in.
+   *
+   * @param indexPath A directory that contains a Lucene index.
+   */
+  public static File getFile(String indexPath) {
+    return new File(new File(indexPath).getPath() + ".lengths");
+  }
+
+  /**
+   * Save the length columns.
+   *
+   * @param file The length column file.
+   * @param identity The identity of the index.
+   */
+  public void write(File file, IndexIdentity identity) throws IOException {
+    DataOutputStream out = new DataOutputStream(
+      new BufferedOutputStream(new FileOutputStream(file)));
+
+    try {
+      out.writeInt(MAGIC);
+      out.writeInt(VERSION);
+      identity.write(out);
+      out.writeInt(this.fieldNames.length);
+
+      for (String field : this.fieldNames) {
+        out.writeUTF(field);
+      }
+
+      for (int i = 0; i < this.fieldNames.length; i++) {
+        for (int docid = 0; docid < identity.getMaxDoc(); docid++) {
+          out.writeInt(this.getDocLength(i, docid));
+        }
+      }
+    } finally {
+      out.close();
+    }
+  }
+
+  /**
+   * Returns true if the lengths were mapped from a length column file.
+   */
+  public boolean isMapped() {
+    return (this.mappedLengths != null);
+  }
+
+  /**
+   * Returns the ordinal of a field, or -1 if the field doesn't have
+   * lengths.
+   *
+   * @param fieldname Name of field to access lengths.
+   */
+  public int getFieldOrdinal(String fieldname) {
+    Integer ordinal = this.ordinals.get(fieldname);
+    return (ordinal == null) ? -1 : ordinal;
+  }
+
   /**
    * Returns the length of the specified field in the specified document.
    *
@@ -36,6 +221,51 @@ public class DocLengthStore  {
    * @param docid The internal docid in the lucene index.
    */
   public long getDocLength(String fieldname, int docid) throws IOException {
-    return values.get(fieldname).get(docid);
+    return this.getDocLength(this.ordinals.get(fieldname), docid);
+  }
+
+  /**
+   * Returns the length of the field with the specified ordinal in the
+   * specified document.
+   *
+   * @param fieldOrdinal The ordinal of the field, from getFieldOrdinal.
+   * @param docid The internal docid in the lucene index.
+   */
+  public int getDocLength(int fieldOrdinal, int docid) {
+    if (this.lengths != null) {
+      return this.lengths[fieldOrdinal][docid];
+    }
+
+    return this.mappedLengths[fieldOrdinal].get(docid);
+  }
+
+  /**
+   * Save the document lengths of an index.
+   *
+   * @param args See the usage message.
+   */
+  public static void main(String[] args) throws IOException {
+    String indexPath = null;
+
+    for (int i = 0; i < args.length; i++) {
+      if ("-index".equals(args[i]) && ((i + 1) < args.length)) {
+        indexPath = args[++i];
+      } else {
+        System.err.println("\nWarning:  Unknown argument " + args[i]
+                           + " ignored.");
+      }
+    }
+
+    if (indexPath == null) {
+      System.err.println(usage);
+      System.exit(1);
+    }
+
+    DirectoryReader reader =
+      DirectoryReader.open(FSDirectory.open(new File(indexPath)));
+
+    new DocLengthStore(reader).write(getFile(indexPath),
+                                     IndexIdentity.of(reader));
+    reader.close();
   }
 }
@@ -0,0 +1,128 @@
+/**
+ *  Copyright (c) 2016, Carnegie Mellon University.  All Rights Reserved.
+ */
+import java.io.*;
+import java.util.*;
+
+/**
+ *  The query-independent learning-to-rank features:  the spam score
+ *  (f1), the number of '/' characters in the raw URL (f2), whether
+ *  the raw URL contains "wikipedia.org" (f3), and the PageRank (f4).
+ *  The first three are read from the index's AttributeStore if it has
+ *  them, and otherwise from the document's stored fields.  A document
+ *  that has no PageRank doesn't have f4.  A document whose stored
+ *  fields don't have a score or raw URL is an error (a
+ *  NullPointerException), which FeatureBatch reports or, if errors
+ *  are ignored, limits to that document.
+ */
+public class DocumentFeatures implements FeatureExtractor {
+
+  //  --------------- Constants and variables ---------------------
+
+  static final int SPAM = 1;
+  static final int URL_DEPTH = 2;
+  static final int WIKIPEDIA = 3;
+  static final int PAGERANK = 4;
+
+  /**
+   *  The features don't depend on the query, so every query shares
+   *  one extractor.
+   */
+  static final FeatureExtractor.Factory FACTORY =
+    new FeatureExtractor.Factory () {
+      private final DocumentFeatures extractor = new DocumentFeatures ();
+
+      public int[] getFeatureIds () {
+        return new int[] { SPAM, URL_DEPTH, WIKIPEDIA, PAGERANK };
+      }
+
+      public FeatureExtractor create (Qry q, BitSet enabled) {
+        return extractor;
+      }
+    };
+
+  //  --------------- Methods ---------------------------------------
+
+  /**
+   *  Compute the enabled features of documents.
+   *  @param docs The documents.
+   *  @param enabled The features that must be computed.
+   */
+  public void addTo (List<FeatureDocument> docs, BitSet enabled) {
+    AttributeStore attributes = Idx.getAttributeStore ();
+
+    for (FeatureDocument doc : docs) {
+      if (enabled.get (SPAM))
+        addSpam (doc, attributes);
+
+      if (enabled.get (URL_DEPTH) || enabled.get (WIKIPEDIA))
+        addUrlFeatures (doc, attributes, enabled);
+
+      if (enabled.get (PAGERANK))
+        addPagerank (doc);
+    }
+  }
+
+  private static void addSpam (FeatureDocument doc, AttributeStore attributes) {
+    int docid = doc.internal_id;
+
+    if ((attributes != null) && attributes.has (docid)) {
+      doc.addFeatureValue (SPAM, attributes.getSpamScore (docid));
+      return;
+    }
+
+    try {
+      doc.addFeatureValue (SPAM,
+        Double.parseDouble (Idx.getAttribute ("score", docid)));
+    } catch (NumberFormatException | IOException e) {
+      e.printStackTrace ();
+    }
+  }
+
+  private static void addUrlFeatures (FeatureDocument doc,
+                                      AttributeStore attributes,
+                                      BitSet enabled) {
+    int docid = doc.internal_id;
+    double depth;
+    double wikipedia;
+
+    if ((attributes != null) && attributes.has (docid)) {
+      depth = attributes.getUrlDepth (docid);
+      wikipedia = attributes.isWikipedia (docid) ? 1.0 : 0.0;
+    } else {
+      try {
+        String url = Idx.getAttribute ("rawUrl", docid);
+
+        depth = countSlashes (url);
+        wikipedia = url.contains ("wikipedia.org") ? 1.0 : 0.0;
+      } catch (IOException e) {
+        e.printStackTrace ();
+        return;
+      }
+    }
+
+    if (enabled.get (URL_DEPTH))
+      doc.addFeatureValue (URL_DEPTH, depth);
+
+    if (enabled.get (WIKIPEDIA))
+      doc.addFeatureValue (WIKIPEDIA, wikipedia);
+  }
+
+  private static double countSlashes (String s) {
+    double sum = 0.0;
+
+    for (int i = 0; i < s.length (); i++) {
+      if (s.charAt (i) == '/')
+        sum++;
+    }
+
+    return sum;
+  }
+
+  private static void addPagerank (FeatureDocument doc) {
+    Double pagerank = QryEval.pagerankMap.get (doc.external_id);
+
+    if (pagerank != null)
+      doc.addFeatureValue (PAGERANK, pagerank);
+  }
+}
@@ -0,0 +1,464 @@
+/**
+ *  Copyright (c) 2016, Carnegie Mellon University.  All Rights Reserved.
+ */
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.FileChannel;
+import java.util.*;
+
+import org.apache.lucene.index.*;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.util.*;
+
+/**
+ *  A table that maps internal docids to external ids and back without
+ *  reading stored documents or running queries.  The external ids are
+ *  the terms of the externalId field.  Each id has an ordinal, which is
+ *  its position in String.compareTo order, so documents can be ordered
+ *  by external id by comparing ordinals.  The table has:
+ *  <ul>
+ *  <li>the characters of the ids, and where each id starts;</li>
+ *  <li>the docid of each ordinal, and the ordinal of each docid;</li>
+ *  <li>an open-addressing hash table from ids to ordinals.</li>
+ *  </ul>
+ *  <p>
+ *  Idx builds the table from the index when it is opened, or
+ *  memory-maps it from INDEX_PATH.ids, which is written by running
+ *  this class, if the file was built from the index that is open.
+ *  The file format is:
+ *  </p>
+ *  <pre>
+ *    int   MAGIC, VERSION
+ *          IndexIdentity of the index
+ *    int   numIds, numChars, hashSize, complete
+ *    char  chars[numChars]
+ *    int   start[numIds+1], docid[numIds], ordinal[maxDoc], hash[hashSize]
+ *  </pre>
+ *  <p>
+ *  A docid that doesn't have an external id term has ordinal -1.  An
+ *  empty hash slot is -1.  complete is 1 if every document that isn't
+ *  deleted has an ordinal.
+ *  </p>
+ */
+public class ExternalIdTable {
+
+  //  --------------- Constants and variables ---------------------
+
+  private static final int MAGIC = 0x51455649;
+  private static final int VERSION = 3;
+  private static final String FIELD = "externalId";
+
+  static String usage =
+    "Usage:  java " +
+    System.getProperty("sun.java.command") +
+    " -index INDEX_PATH\n\n" +
+    "Writes the external id table of the index to INDEX_PATH.ids.\n";
+
+  private final int numIds;
+  private final boolean complete;
+  private final CharBuffer chars;
+  private final IntBuffer start;
+  private final IntBuffer docid;
+  private final IntBuffer ordinal;
+  private final IntBuffer hash;
+  private final int hashMask;
+
+  //  --------------- Methods ---------------------------------------
+
+  private ExternalIdTable (int numIds, boolean complete, CharBuffer chars,
+                           IntBuffer start, IntBuffer docid,
+                           IntBuffer ordinal, IntBuffer hash) {
+    this.numIds = numIds;
+    this.complete = complete;
+    this.chars = chars;
+    this.start = start;
+    this.docid = docid;
+    this.ordinal = ordinal;
+    this.hash = hash;
+    this.hashMask = hash.capacity () - 1;
+  }
+
+  /**
+   *  Build the table from the terms of the externalId field.
+   *  @param reader The index.
+   *  @return The table.
+   *  @throws IOException Error accessing the index.
+   */
+  public static ExternalIdTable fromIndex (IndexReader reader)
+    throws IOException {
+
+    int maxDoc = reader.maxDoc ();
+    int[] ordinal = new int[maxDoc];
+    ArrayList<String> ids = new ArrayList<String> ();
+    IntArray docid = new IntArray ();
+    int numDocsWithIds = 0;
+
+    Arrays.fill (ordinal, -1);
+
+    Terms terms = MultiFields.getTerms (reader, FIELD);
+
+    if (terms != null) {
+      Bits liveDocs = MultiFields.getLiveDocs (reader);
+      TermsEnum ithTerm = terms.iterator (null);
+      DocsEnum docs = null;
+      BytesRef term;
+
+      while ((term = ithTerm.next ()) != null) {
+        docs = ithTerm.docs (liveDocs, docs, DocsEnum.FLAG_NONE);
+
+        //  If several documents have the id, it maps to the first.
+
+        int first = docs.nextDoc ();
+
+        if (first == DocIdSetIterator.NO_MORE_DOCS)
+          continue;		// Only in deleted documents.
+
+        int ord = ids.size ();
+        ids.add (term.utf8ToString ());
+        docid.add (first);
+
+        for (int d = first; d != DocIdSetIterator.NO_MORE_DOCS;
+             d = docs.nextDoc ()) {
+          ordinal[d] = ord;
+          numDocsWithIds ++;
+        }
+      }
+    }
+
+    //  Lucene orders terms by code point, and String.compareTo orders
+    //  them by UTF-16 char, which is different if some ids have
+    //  characters outside the Basic Multilingual Plane.  Ordinals
+    //  must be in String.compareTo order.
+
+    int numIds = ids.size ();
+    int[] docids = docid.toArray ();
+    boolean sorted = true;
+
+    for (int i = 1; (i < numIds) && sorted; i++)
+      sorted = (ids.get (i - 1).compareTo (ids.get (i)) < 0);
+
+    if (! sorted) {
+      final ArrayList<String> unsorted = ids;
+      Integer[] order = new Integer[numIds];
+
+      for (int i = 0; i < numIds; i++)
+        order[i] = i;
+
+      Arrays.sort (order, new Comparator<Integer> () {
+        public int compare (Integer a, Integer b) {
+          return unsorted.get (a).compareTo (unsorted.get (b));
+        }
+      });
+
+      int[] newOrdinal = new int[numIds];
+      ids = new ArrayList<String> (numIds);
+
+      for (int i = 0; i < numIds; i++) {
+        ids.add (unsorted.get (order[i]));
+        docids[i] = docid.values[order[i]];
+        newOrdinal[order[i]] = i;
+      }
+
+      for (int d = 0; d < maxDoc; d++) {
+        if (ordinal[d] >= 0)
+          ordinal[d] = newOrdinal[ordinal[d]];
+      }
+    }
+
+    //  Concatenate the ids.
+
+    int[] start = new int[numIds + 1];
+    StringBuilder chars = new StringBuilder ();
+
+    for (int i = 0; i < numIds; i++) {
+      start[i] = chars.length ();
+      chars.append (ids.get (i));
+    }
+
+    start[numIds] = chars.length ();
+
+    char[] c = new char[chars.length ()];
+    chars.getChars (0, c.length, c, 0);
+
+    ExternalIdTable table =
+      new ExternalIdTable (numIds,
+                           (numDocsWithIds == reader.numDocs ()),
+                           CharBuffer.wrap (c), IntBuffer.wrap (start),
+                           IntBuffer.wrap (docids), IntBuffer.wrap (ordinal),
+                           IntBuffer.allocate (hashSize (numIds)));
+
+    for (int i = 0; i < table.hash.capacity (); i++)
+      table.hash.put (i, -1);
+
+    for (int ord = 0; ord < numIds; ord++) {
+      int slot = table.slot (ids.get (ord).hashCode ());
+
+      while (table.hash.get (slot) != -1)
+        slot = (slot + 1) & table.hashMask;
+
+      table.hash.put (slot, ord);
+    }
+
+    return table;
+  }
+
+  /**
+   *  The size of the hash table for n ids: a power of 2 that is at
+   *  least twice n.
+   */
+  private static int hashSize (int n) {
+    int size = 2;
+
+    while (size < 2 * n)
+      size *= 2;
+
+    return size;
+  }
+
+  /**
+   *  The hash table slot that a hash code probes first.
+   */
+  private int slot (int hashCode) {
+    return (hashCode ^ (hashCode >>> 16)) & this.hashMask;
+  }
+
+  /**
+   *  Memory-map a table that was saved by write.
+   *  @param file The table file.
+   *  @param identity The index that is open.
+   *  @return The table, or null if the file was built from a different
+   *  index.
+   *  @throws IOException Error reading the file, or it isn't a table.
+   */
+  public static ExternalIdTable map (File file, IndexIdentity identity)
+    throws IOException {
+
+    RandomAccessFile raf = new RandomAccessFile (file, "r");
+
+    try {
+      if ((raf.readInt () != MAGIC) || (raf.readInt () != VERSION)) {
+        throw new IOException ("Unrecognized external id file " + file);
+      }
+
+      if (! identity.equals (IndexIdentity.read (raf))) {
+        return null;
+      }
+
+      int maxDoc = identity.getMaxDoc ();
+      int numIds = raf.readInt ();
+      int numChars = raf.readInt ();
+      int hashSize = raf.readInt ();
+      boolean complete = (raf.readInt () == 1);
+      FileChannel channel = raf.getChannel ();
+      long offset = raf.getFilePointer ();
+
+      CharBuffer chars = map (channel, offset, 2L * numChars).asCharBuffer ();
+      offset += 2L * numChars;
+      IntBuffer start = map (channel, offset, 4L * (numIds + 1)).asIntBuffer ();
+      offset += 4L * (numIds + 1);
+      IntBuffer docid = map (channel, offset, 4L * numIds).asIntBuffer ();
+      offset += 4L * numIds;
+      IntBuffer ordinal = map (channel, offset, 4L * maxDoc).asIntBuffer ();
+      offset += 4L * maxDoc;
+      IntBuffer hash = map (channel, offset, 4L * hashSize).asIntBuffer ();
+
+      return new ExternalIdTable (numIds, complete, chars, start,
+                                  docid, ordinal, hash);
+    } finally {
+      raf.close ();
+    }
+  }
+
+  private static ByteBuffer map (FileChannel channel, long offset, long size)
+    throws IOException {
+    return channel.map (FileChannel.MapMode.READ_ONLY, offset, size);
+  }
+
+  /**
+   *  Save the table.
+   *  @param file The table file.
+   *  @param identity The index that the table was built from.
+   *  @throws IOException Error writing the file.
+   */
+  public void write (File file, IndexIdentity identity) throws IOException {
+
+    DataOutputStream out = new DataOutputStream (
+      new BufferedOutputStream (new FileOutputStream (file)));
+
+    try {
+      out.writeInt (MAGIC);
+      out.writeInt (VERSION);
+      identity.write (out);
+      out.writeInt (this.numIds);
+      out.writeInt (this.chars.capacity ());
+      out.writeInt (this.hash.capacity ());
+      out.writeInt (this.complete ? 1 : 0);
+
+      for (int i = 0; i < this.chars.capacity (); i++)
+        out.writeChar (this.chars.get (i));
+
+      writeInts (out, this.start);
+      writeInts (out, this.docid);
+      writeInts (out, this.ordinal);
+      writeInts (out, this.hash);
+    } finally {
+      out.close ();
+    }
+  }
+
+  private static void writeInts (DataOutputStream out, IntBuffer ints)
+    throws IOException {
+    for (int i = 0; i < ints.capacity (); i++)
+      out.writeInt (ints.get (i));
+  }
+
+  /**
+   *  Get the file that the table of an index is saved in.
+   *  @param indexPath A directory that contains a Lucene index.
+   *  @return The table file.
+   */
+  public static File getFile (String indexPath) {
+    return new File (new File (indexPath).getPath () + ".ids");
+  }
+
+  /**
+   *  Get the number of external ids in the table.
+   *  @return The number of ids.
+   */
+  public int size () {
+    return this.numIds;
+  }
+
+  /**
+   *  Does every document that isn't deleted have an ordinal?
+   *  @return True if ordinals can order any documents by external id.
+   */
+  public boolean isComplete () {
+    return this.complete;
+  }
+
+  /**
+   *  Get the ordinal of a document's external id.  Ordinals are in
+   *  String.compareTo order of the ids.
+   *  @param docid The internal docid.
+   *  @return The ordinal, or -1 if the document doesn't have an
+   *  external id term.
+   */
+  public int getOrdinal (int docid) {
+    return this.ordinal.get (docid);
+  }
+
+  /**
+   *  Get the external id with an ordinal.
+   *  @param ord The ordinal.
+   *  @return The external id.
+   */
+  public String getId (int ord) {
+    int s = this.start.get (ord);
+    int e = this.start.get (ord + 1);
+    char[] c = new char[e - s];
+
+    for (int i = 0; i < c.length; i++)
+      c[i] = this.chars.get (s + i);
+
+    return new String (c);
+  }
+
+  /**
+   *  Get the external id of a document.
+   *  @param docid The internal docid.
+   *  @return The external id, or null if the document doesn't have an
+   *  external id term.
+   */
+  public String getExternalDocid (int docid) {
+    int ord = this.ordinal.get (docid);
+    return (ord < 0) ? null : this.getId (ord);
+  }
+
+  /**
+   *  Get the internal docid of an external id.
+   *  @param externalId The external id.
+   *  @return The internal docid, or -1 if no document has the id.
+   */
+  public int getInternalDocid (String externalId) {
+    int slot = this.slot (externalId.hashCode ());
+    int ord;
+
+    while ((ord = this.hash.get (slot)) != -1) {
+      if (this.idEquals (ord, externalId))
+        return this.docid.get (ord);
+
+      slot = (slot + 1) & this.hashMask;
+    }
+
+    return -1;
+  }
+
+  /**
+   *  Is the external id with an ordinal equal to a string?
+   */
+  private boolean idEquals (int ord, String externalId) {
+    int s = this.start.get (ord);
+    int length = this.start.get (ord + 1) - s;
+
+    if (length != externalId.length ())
+      return false;
+
+    for (int i = 0; i < length; i++) {
+      if (this.chars.get (s + i) != externalId.charAt (i))
+        return false;
+    }
+
+    return true;
+  }
+
+  /**
+   *  A growable int array.
+   */
+  private static class IntArray {
+    int[] values = new int[1024];
+    int size = 0;
+
+    void add (int value) {
+      if (this.size == this.values.length)
+        this.values = Arrays.copyOf (this.values, 2 * this.size);
+
+      this.values[this.size++] = value;
+    }
+
+    int[] toArray () {
+      return Arrays.copyOf (this.values, this.size);
+    }
+  }
+
+  /**
+   *  Save the external id table of an index.
+   *  @param args See the usage message.
+   *  @throws IOException Error accessing the index or writing the file.
+   */
+  public static void main (String[] args) throws IOException {
+
+    String indexPath = null;
+
+    for (int i = 0; i < args.length; i++) {
+      if ("-index".equals (args[i]) && ((i + 1) < args.length)) {
+        indexPath = args[++i];
+      } else {
+        System.err.println ("\nWarning:  Unknown argument " + args[i]
+                            + " ignored.");
+      }
+    }
+
+    if (indexPath == null) {
+      System.err.println (usage);
+      System.exit (1);
+    }
+
+    DirectoryReader reader =
+      DirectoryReader.open (FSDirectory.open (new File (indexPath)));
+
+    fromIndex (reader).write (getFile (indexPath), IndexIdentity.of (reader));
+    reader.close ();
+  }
+}
@@ -0,0 +1,144 @@
+/**
+ *  Copyright (c) 2016, Carnegie Mellon University.  All Rights Reserved.
+ */
+import java.util.*;
+import java.util.concurrent.Callable;
+
+/**
+ *  A run of documents whose learning-to-rank features are computed
+ *  for one query by one thread.  The batch creates a FeatureDocument
+ *  for each document, in order, runs the query's feature extractors
+ *  on them, and records the ranges of the feature values in its own
+ *  FeatureRanges.  Nothing is shared with other batches; the documents
+ *  and ranges are added to QryEval.docMap and QryEval.featureRanges
+ *  when the batch is complete.
+ */
+public class FeatureBatch implements Callable<FeatureBatch> {
+
+  //  --------------- Constants and variables ---------------------
+
+  final String qid;
+  final List<FeatureExtractor> extractors;
+  final BitSet enabled;
+
+  /**
+   *  If true, a document whose internal id can't be found is skipped,
+   *  and an extractor that fails on the batch is run again on each
+   *  document, so only the documents that it fails on lose its
+   *  features.  The features don't depend on how the documents are
+   *  divided into batches.  Otherwise an error ends the batch.
+   */
+  private final boolean ignoreErrors;
+
+  private final List<String> externalIds = new ArrayList<String> ();
+  private int[] docids = new int[16];
+
+  /**
+   *  The documents of the batch, with their features, once the batch
+   *  is complete.
+   */
+  final List<FeatureDocument> documents = new ArrayList<FeatureDocument> ();
+
+  /**
+   *  The ranges of the feature values of the documents.
+   */
+  final FeatureRanges ranges = new FeatureRanges ();
+
+  //  --------------- Methods ---------------------------------------
+
+  /**
+   *  @param qid The query id.
+   *  @param extractors The query's feature extractors.  They don't
+   *  change, so batches of the same query may share them.
+   *  @param enabled The features that are computed.
+   *  @param ignoreErrors True if documents whose features can't be
+   *  computed are skipped.
+   */
+  public FeatureBatch (String qid, List<FeatureExtractor> extractors,
+                       BitSet enabled, boolean ignoreErrors) {
+    this.qid = qid;
+    this.extractors = extractors;
+    this.enabled = enabled;
+    this.ignoreErrors = ignoreErrors;
+  }
+
+  /**
+   *  Add a document to the batch.
+   *  @param externalId The external document id.
+   *  @param docid The internal document id, or -1 if it must be
+   *  looked up.
+   */
+  public void add (String externalId, int docid) {
+    int n = this.externalIds.size ();
+
+    if (n == this.docids.length)
+      this.docids = Arrays.copyOf (this.docids, 2 * n);
+
+    this.externalIds.add (externalId);
+    this.docids[n] = docid;
+  }
+
+  /**
+   *  Get the number of documents in the batch.
+   *  @return The number of documents.
+   */
+  public int size () {
+    return this.externalIds.size ();
+  }
+
+  /**
+   *  Compute the features of the documents.
+   *  @return The batch.
+   *  @throws Exception Error computing features, if errors aren't
+   *  ignored.
+   */
+  public FeatureBatch call () throws Exception {
+
+    int n = this.externalIds.size ();
+
+    //  Look up the internal ids.
+
+    for (int i = 0; i < n; i++) {
+      int docid = this.docids[i];
+
+      if (docid < 0) {
+        try {
+          docid = Idx.getInternalDocid (this.externalIds.get (i));
+        } catch (Exception e) {
+          if (! this.ignoreErrors)
+            throw e;
+
+          continue;
+        }
+      }
+
+      this.documents.add (new FeatureDocument (this.qid,
+        this.externalIds.get (i), docid, this.ranges));
+    }
+
+    //  Each extractor computes its features for all of the documents.
+
+    for (FeatureExtractor extractor : this.extractors) {
+      try {
+        extractor.addTo (this.documents, this.enabled);
+      } catch (Exception e) {
+        if (! this.ignoreErrors)
+          throw e;
+
+        //  Recomputing a feature sets the same value, so the documents
+        //  that the batch call finished are unchanged.
+
+        for (FeatureDocument document : this.documents) {
+          try {
+            extractor.addTo (Collections.singletonList (document),
+                             this.enabled);
+          } catch (Exception e2) {
+            //  The document doesn't get this extractor's features.
+          }
+        }
+      }
+    }
+
+    return this;
+  }
+}
@@ -0,0 +1,52 @@
+/**
+ *  Copyright (c) 2016, Carnegie Mellon University.  All Rights Reserved.
+ */
+import java.io.*;
+import java.util.*;
+
+/**
+ *  Computes some of the learning-to-rank features of documents for a
+ *  query.  Features are identified by their number in the feature
+ *  vector files (1 .. FeatureRegistry.NUM_FEATURES), which is also
+ *  their index in FeatureDocument.
+ *  <p>
+ *  Extractors are created for each query by a Factory that is
+ *  registered with the FeatureRegistry.  An extractor is shared by
+ *  the threads that compute the features of the query's documents,
+ *  so it must not change after it is created.
+ *  </p>
+ */
+public interface FeatureExtractor {
+
+  /**
+   *  Creates the extractors of queries, and describes the features
+   *  that they compute.
+   */
+  interface Factory {
+
+    /**
+     *  Get the features that the extractors compute.
+     *  @return The feature numbers.
+     */
+    int[] getFeatureIds ();
+
+    /**
+     *  Create an extractor for a query.
+     *  @param q The query.
+     *  @param enabled The features that must be computed.  At least
+     *  one of the factory's features is enabled.
+     *  @return The extractor.
+     *  @throws IOException Error accessing the Lucene index.
+     */
+    FeatureExtractor create (Qry q, BitSet enabled) throws IOException;
+  }
+
+  /**
+   *  Compute the enabled features of documents.  Features that are
+   *  disabled should not be computed.
+   *  @param docs The documents.
+   *  @param enabled The features that must be computed.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  void addTo (List<FeatureDocument> docs, BitSet enabled) throws IOException;
+}
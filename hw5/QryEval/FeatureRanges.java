@@ -0,0 +1,94 @@
+/**
+ *  Copyright (c) 2016, Carnegie Mellon University.  All Rights Reserved.
+ */
+import java.util.*;
+
+/**
+ *  The largest and smallest value of each learning-to-rank feature
+ *  over a set of documents for one query.  Features are normalized
+ *  with them when they are written.  Each thread that computes
+ *  features has its own ranges, so no locks are needed, and the
+ *  ranges are merged when the query's features are complete.
+ *  <p>
+ *  A range keeps the first of several equal values, as a sequential
+ *  pass over the documents does, so merging the ranges of consecutive
+ *  runs of documents in order gives exactly the ranges of one pass.
+ *  </p>
+ */
+public class FeatureRanges {
+
+  //  --------------- Constants and variables ---------------------
+
+  private final double[] max = new double[FeatureRegistry.NUM_FEATURES + 1];
+  private final double[] min = new double[FeatureRegistry.NUM_FEATURES + 1];
+  private final BitSet seen = new BitSet (FeatureRegistry.NUM_FEATURES + 1);
+
+  //  --------------- Methods ---------------------------------------
+
+  /**
+   *  Extend the range of a feature to include a value.  The value
+   *  Double.MAX_VALUE marks a feature that a document doesn't have,
+   *  so it is ignored.
+   *  @param feature The feature number.
+   *  @param value The feature value.
+   */
+  public void update (int feature, double value) {
+    if (value == Double.MAX_VALUE)
+      return;
+
+    if (! this.seen.get (feature)) {
+      this.seen.set (feature);
+      this.max[feature] = value;
+      this.min[feature] = value;
+      return;
+    }
+
+    if (this.max[feature] < value)
+      this.max[feature] = value;
+
+    if (this.min[feature] > value)
+      this.min[feature] = value;
+  }
+
+  /**
+   *  Merge the ranges of documents that come after the documents of
+   *  these ranges.
+   *  @param other The ranges of the later documents.
+   */
+  public void merge (FeatureRanges other) {
+    for (int feature = other.seen.nextSetBit (0); feature >= 0;
+         feature = other.seen.nextSetBit (feature + 1)) {
+
+      if (! this.seen.get (feature)) {
+        this.seen.set (feature);
+        this.max[feature] = other.max[feature];
+        this.min[feature] = other.min[feature];
+        continue;
+      }
+
+      if (this.max[feature] < other.max[feature])
+        this.max[feature] = other.max[feature];
+
+      if (this.min[feature] > other.min[feature])
+        this.min[feature] = other.min[feature];
+    }
+  }
+
+  /**
+   *  Get the largest value of a feature.
+   *  @param feature The feature number.
+   *  @return The largest value, or 0 if no document has the feature.
+   */
+  public double getMax (int feature) {
+    return this.max[feature];
+  }
+
+  /**
+   *  Get the smallest value of a feature.
+   *  @param feature The feature number.
+   *  @return The smallest value, or 0 if no document has the feature.
+   */
+  public double getMin (int feature) {
+    return this.min[feature];
+  }
+}
@@ -0,0 +1,91 @@
+/**
+ *  Copyright (c) 2016, Carnegie Mellon University.  All Rights Reserved.
+ */
+import java.io.*;
+import java.util.*;
+
+/**
+ *  The learning-to-rank features, and the extractors that compute
+ *  them.  Features have dense numbers, 1 .. NUM_FEATURES, and each is
+ *  computed by the extractors of exactly one registered factory.
+ */
+public class FeatureRegistry {
+
+  //  --------------- Constants and variables ---------------------
+
+  /**
+   *  The number of features.
+   */
+  public static final int NUM_FEATURES = 18;
+
+  private static final List<FeatureExtractor.Factory> factories =
+    new ArrayList<FeatureExtractor.Factory> ();
+
+  private static final BitSet registered = new BitSet ();
+
+  static {
+    register (DocumentFeatures.FACTORY);
+    register (TextFieldFeatures.FACTORY);
+    register (ProximityFeatures.FACTORY);
+  }
+
+  //  --------------- Methods ---------------------------------------
+
+  /**
+   *  Register a factory of feature extractors.
+   *  @param factory The factory.
+   *  @throws IllegalArgumentException A feature is out of range, or
+   *  another factory computes it already.
+   */
+  public static synchronized void register (FeatureExtractor.Factory factory) {
+
+    for (int id : factory.getFeatureIds ()) {
+      if ((id < 1) || (id > NUM_FEATURES))
+        throw new IllegalArgumentException ("Unknown feature " + id + ".");
+
+      if (registered.get (id))
+        throw new IllegalArgumentException ("Feature " + id +
+                                            " is registered already.");
+    }
+
+    for (int id : factory.getFeatureIds ())
+      registered.set (id);
+
+    factories.add (factory);
+  }
+
+  /**
+   *  Get all of the features.
+   *  @return A set that contains 1 .. NUM_FEATURES.
+   */
+  public static BitSet allFeatures () {
+    BitSet features = new BitSet (NUM_FEATURES + 1);
+    features.set (1, NUM_FEATURES + 1);
+    return features;
+  }
+
+  /**
+   *  Create the extractors of a query that compute at least one
+   *  enabled feature.
+   *  @param q The query.
+   *  @param enabled The features that must be computed.
+   *  @return The extractors.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public static synchronized List<FeatureExtractor> createExtractors (
+    Qry q, BitSet enabled) throws IOException {
+
+    List<FeatureExtractor> extractors = new ArrayList<FeatureExtractor> ();
+
+    for (FeatureExtractor.Factory factory : factories) {
+      for (int id : factory.getFeatureIds ()) {
+        if (enabled.get (id)) {
+          extractors.add (factory.create (q, enabled));
+          break;
+        }
+      }
+    }
+
+    return extractors;
+  }
+}
@@ -18,6 +18,10 @@ public class Idx {
 
   public static IndexReader INDEXREADER=null;
   private static DocLengthStore DOCLENGTHSTORE;
+  private static MappedPostings MAPPEDPOSTINGS=null;
+  private static CollectionStats COLLECTIONSTATS=null;
+  private static ExternalIdTable EXTERNALIDS=null;
+  private static AttributeStore ATTRIBUTES=null;
 
   //  --------------- Methods ---------------------------------------
 
@@ -33,6 +37,14 @@ public class Idx {
     return d.get (attributeName);
   }
 
+  /**
+   *  Get the document attribute columns, if the index has them.
+   *  @return The attribute store, or null.
+   */
+  public static AttributeStore getAttributeStore () {
+    return Idx.ATTRIBUTES;
+  }
+
   /**
    *  Get the number of documents that contain the specified field.
    *  @param fieldName the field name
@@ -40,7 +52,16 @@ public class Idx {
    *  @throws IOException Error accessing the Lucene index.
    */
   public static int getDocCount (String fieldName) throws IOException {
-    return Idx.INDEXREADER.getDocCount (fieldName);
+    return Idx.COLLECTIONSTATS.getDocCount (fieldName);
+  }
+
+  /**
+   *  Get the collection statistics, which were read when the index
+   *  was opened.
+   *  @return The collection statistics.
+   */
+  public static CollectionStats getCollectionStats () {
+    return Idx.COLLECTIONSTATS;
   }
 
   /**
@@ -50,11 +71,27 @@ public class Idx {
    * @throws IOException Error accessing the Lucene index.
    */
   public static String getExternalDocid(int iid) throws IOException {
-    Document d = Idx.INDEXREADER.document(iid);
-    String eid = d.get("externalId");
+    String eid = Idx.EXTERNALIDS.getExternalDocid(iid);
+
+    //  Documents whose external id isn't indexed as a term aren't in
+    //  the table.
+
+    if (eid == null) {
+      Document d = Idx.INDEXREADER.document(iid);
+      eid = d.get("externalId");
+    }
     return eid;
   }
 
+  /**
+   * Get the table that maps internal document ids to external ids and
+   * back, which was read when the index was opened.
+   * @return The external id table.
+   */
+  public static ExternalIdTable getExternalIdTable() {
+    return Idx.EXTERNALIDS;
+  }
+
   /**
    *  Get the length of the specified field in the specified document.
    *  @param fieldName Name of field to access lengths.
@@ -66,6 +103,28 @@ public class Idx {
     return (int) Idx.DOCLENGTHSTORE.getDocLength (fieldName, docid);
   }
 
+  /**
+   *  Get the length of a field in a document.  This is the fast
+   *  version of getFieldLength, for code that looks up many lengths
+   *  of one field.
+   *  @param fieldOrdinal The ordinal of the field, from getFieldOrdinal.
+   *  @param docid The internal docid in the lucene index.
+   *  @return the length of the field, including stopword positions.
+   */
+  public static int getFieldLength (int fieldOrdinal, int docid) {
+    return Idx.DOCLENGTHSTORE.getDocLength (fieldOrdinal, docid);
+  }
+
+  /**
+   *  Get the ordinal that identifies a field's lengths in getFieldLength.
+   *  @param fieldName Name of field to access lengths.
+   *  @return the ordinal, or -1 if the index doesn't have lengths for
+   *  the field.
+   */
+  public static int getFieldOrdinal (String fieldName) {
+    return Idx.DOCLENGTHSTORE.getFieldOrdinal (fieldName);
+  }
+
   /**
    * Get the internal document id for a document specified by its
    * external id, e.g. clueweb09-enwp00-88-09710. If no such document
@@ -77,27 +136,37 @@ public class Idx {
   public static int getInternalDocid(String externalId)
     throws Exception {
 
-    Query q = new TermQuery(new Term("externalId", externalId));
+    int iid = Idx.EXTERNALIDS.getInternalDocid(externalId);
 
-    IndexSearcher searcher = new IndexSearcher(Idx.INDEXREADER);
-    TopScoreDocCollector collector = TopScoreDocCollector.create(1, false);
-    searcher.search(q, collector);
-    ScoreDoc[] hits = collector.topDocs().scoreDocs;
-
-    if (hits.length < 1) {
+    if (iid < 0) {
       throw new Exception("External id not found.");
     } else {
-      return hits[0].doc;
+      return iid;
     }
   }
 
+  /**
+   *  Get an inverted list from the memory-mapped sidecar postings, if
+   *  the index has them.
+   *  @param termString The processed (stemmed, lower-cased, etc) term string.
+   *  @param fieldString The field that the term occurs in.
+   *  @return The inverted list, or null if the sidecar doesn't have
+   *  postings for the field.
+   */
+  public static InvList getMappedInvList (String termString, String fieldString) {
+    if (Idx.MAPPEDPOSTINGS == null)
+      return null;
+
+    return Idx.MAPPEDPOSTINGS.getInvList (termString, fieldString);
+  }
+
   /**
    *  Get the total number of documents in the corpus.
    *  @return The total number of documents.
    *  @throws IOException Error accessing the Lucene index.
    */
   public static long getNumDocs () throws IOException {
-    return Idx.INDEXREADER.numDocs();
+    return Idx.COLLECTIONSTATS.getNumDocs ();
   }
 
   /**
@@ -110,11 +179,22 @@ public class Idx {
    */
   public static long getSumOfFieldLengths (String fieldName)
     throws IOException {
-    return Idx.INDEXREADER.getSumTotalTermFreq (fieldName);
+    return Idx.COLLECTIONSTATS.getSumOfFieldLengths (fieldName);
+  }
+
+  /**
+   *  Report a sidecar that was built from a different index.
+   *  @param sidecar The sidecar file or directory.
+   */
+  private static void warnStale (File sidecar) {
+    System.err.println ("Warning:  " + sidecar + " was built from a " +
+                        "different version of the index.  It is ignored.");
   }
 
   /**
-   *  Open a Lucene index and the associated DocLengthStore.
+   *  Open a Lucene index, the associated DocLengthStore, and the
+   *  memory-mapped postings, if there are any, and read the
+   *  collection statistics and the external id table.
    *  @param indexPath A directory that contains a Lucene index.
    *  @throws IllegalArgumentException Unable to open the index.
    *  @throws IOException Error accessing the index.
@@ -124,21 +204,86 @@ public class Idx {
 
     //  Open the Lucene index
 
-    Idx.INDEXREADER =
+    DirectoryReader reader =
       DirectoryReader.open (FSDirectory.open (new File (indexPath)));
   
-    if (Idx.INDEXREADER == null) {
+    if (reader == null) {
       throw new IllegalArgumentException ("Unable to open the index.");
     }
+
+    Idx.INDEXREADER = reader;
+
+    //  The sidecar files record the index that they were built from,
+    //  and they are used only if it is this one.
+
+    IndexIdentity identity = IndexIdentity.of (reader);
   
     //  Lucene doesn't store field lengths the way that we want them,
-    //  so we have our own document length store.
+    //  so we have our own document length store.  It maps the saved
+    //  length columns, if they were built from this index.
 
-    Idx.DOCLENGTHSTORE = new DocLengthStore (Idx.INDEXREADER);
+    File lengthsFile = DocLengthStore.getFile (indexPath);
+
+    Idx.DOCLENGTHSTORE =
+      new DocLengthStore (Idx.INDEXREADER, lengthsFile, identity);
   
     if (Idx.DOCLENGTHSTORE == null) {
       throw new IllegalArgumentException ("Unable to open the document length store.");
     }
+
+    if (lengthsFile.isFile () && ! Idx.DOCLENGTHSTORE.isMapped ()) {
+      warnStale (lengthsFile);
+    }
+
+    //  Read the collection statistics once.
+
+    Idx.COLLECTIONSTATS = CollectionStats.fromIndex (Idx.INDEXREADER);
+
+    //  Map the saved external id table if it was built from this
+    //  index, otherwise build it from the externalId terms.
+
+    File idsFile = ExternalIdTable.getFile (indexPath);
+    Idx.EXTERNALIDS = null;
+
+    if (idsFile.isFile ()) {
+      Idx.EXTERNALIDS = ExternalIdTable.map (idsFile, identity);
+
+      if (Idx.EXTERNALIDS == null) {
+        warnStale (idsFile);
+      }
+    }
+
+    if (Idx.EXTERNALIDS == null) {
+      Idx.EXTERNALIDS = ExternalIdTable.fromIndex (Idx.INDEXREADER);
+    }
+
+    //  Use the document attribute columns that AttributeStore builds,
+    //  if they exist and were built from this index.
+
+    File attributesFile = AttributeStore.getFile (indexPath);
+    Idx.ATTRIBUTES = null;
+
+    if (attributesFile.isFile ()) {
+      Idx.ATTRIBUTES = AttributeStore.read (attributesFile, identity);
+
+      if (Idx.ATTRIBUTES == null) {
+        warnStale (attributesFile);
+      }
+    }
+
+    //  Use the memory-mapped postings that MappedPostings builds, if
+    //  they exist and describe this index.
+
+    File postingsDir = MappedPostings.getDirectory (indexPath);
+    Idx.MAPPEDPOSTINGS = null;
+
+    if (postingsDir.isDirectory ()) {
+      Idx.MAPPEDPOSTINGS = MappedPostings.open (postingsDir, identity);
+
+      if (Idx.MAPPEDPOSTINGS == null) {
+        warnStale (postingsDir);
+      }
+    }
   }
 
 }
@@ -0,0 +1,144 @@
+/**
+ *  Copyright (c) 2016, Carnegie Mellon University.  All Rights Reserved.
+ */
+import java.io.*;
+
+import org.apache.lucene.index.*;
+
+/**
+ *  Identifies the commit of a Lucene index that a sidecar file (the
+ *  memory-mapped postings, length columns, external id table, or
+ *  attribute columns) was built from.  A sidecar records the identity
+ *  in its header, and Idx uses the sidecar only if it matches the
+ *  index that is open; otherwise it reads the data from Lucene.
+ *  <p>
+ *  The identity is the number of docids, the commit's generation, and
+ *  a fingerprint of the commit's segments:  the commit's version and,
+ *  for each segment, its name, document count, deletions, and the time
+ *  that it was written (from the segment's diagnostics).  Lucene 4.3
+ *  numbers the commits and segments of a new index the same way every
+ *  time, so a reindex into the same directory is detected by the
+ *  segment times, even if it has the same number of documents.
+ *  </p>
+ *  <pre>
+ *    int   maxDoc
+ *    long  generation, fingerprint
+ *  </pre>
+ */
+public class IndexIdentity {
+
+  //  --------------- Constants and variables ---------------------
+
+  /**
+   *  The number of bytes that write writes.
+   */
+  public static final int SIZE = 4 + 8 + 8;
+
+  private final int maxDoc;
+  private final long generation;
+  private final long fingerprint;
+
+  //  --------------- Methods ---------------------------------------
+
+  private IndexIdentity (int maxDoc, long generation, long fingerprint) {
+    this.maxDoc = maxDoc;
+    this.generation = generation;
+    this.fingerprint = fingerprint;
+  }
+
+  /**
+   *  Get the identity of the commit that a reader has open.
+   *  @param reader The index.
+   *  @return The identity.
+   *  @throws IOException Error accessing the index.
+   */
+  public static IndexIdentity of (DirectoryReader reader) throws IOException {
+    IndexCommit commit = reader.getIndexCommit ();
+    SegmentInfos segments = new SegmentInfos ();
+
+    segments.read (commit.getDirectory (), commit.getSegmentsFileName ());
+
+    long h = mix (0xcbf29ce484222325L, segments.getVersion ());
+
+    for (SegmentInfoPerCommit segment : segments) {
+      h = mix (h, segment.info.name.hashCode ());
+      h = mix (h, segment.info.getDocCount ());
+      h = mix (h, segment.getDelCount ());
+      h = mix (h, segment.getDelGen ());
+
+      String timestamp = segment.info.getDiagnostics ().get ("timestamp");
+      h = mix (h, (timestamp == null) ? 0 : timestamp.hashCode ());
+    }
+
+    return new IndexIdentity (reader.maxDoc (), commit.getGeneration (), h);
+  }
+
+  /**
+   *  Add a value to a fingerprint (64-bit FNV-1a, one byte at a time).
+   */
+  private static long mix (long h, long value) {
+    for (int i = 0; i < 8; i++) {
+      h ^= (value >>> (8 * i)) & 0xFF;
+      h *= 0x100000001b3L;
+    }
+
+    return h;
+  }
+
+  /**
+   *  Read an identity that was saved by write.
+   *  @param in The sidecar.
+   *  @return The identity.
+   *  @throws IOException Error reading the sidecar.
+   */
+  public static IndexIdentity read (DataInput in) throws IOException {
+    int maxDoc = in.readInt ();
+    long generation = in.readLong ();
+    long fingerprint = in.readLong ();
+
+    return new IndexIdentity (maxDoc, generation, fingerprint);
+  }
+
+  /**
+   *  Save the identity.
+   *  @param out The sidecar.
+   *  @throws IOException Error writing the sidecar.
+   */
+  public void write (DataOutput out) throws IOException {
+    out.writeInt (this.maxDoc);
+    out.writeLong (this.generation);
+    out.writeLong (this.fingerprint);
+  }
+
+  /**
+   *  Get the number of docids in the index.
+   *  @return maxDoc.
+   */
+  public int getMaxDoc () {
+    return this.maxDoc;
+  }
+
+  @Override
+  public boolean equals (Object o) {
+    if (! (o instanceof IndexIdentity))
+      return false;
+
+    IndexIdentity other = (IndexIdentity) o;
+
+    return (this.maxDoc == other.maxDoc) &&
+           (this.generation == other.generation) &&
+           (this.fingerprint == other.fingerprint);
+  }
+
+  @Override
+  public int hashCode () {
+    return 31 * (31 * this.maxDoc + Long.hashCode (this.generation)) +
+           Long.hashCode (this.fingerprint);
+  }
+
+  @Override
+  public String toString () {
+    return "maxDoc " + this.maxDoc + ", generation " + this.generation +
+           ", fingerprint " + Long.toHexString (this.fingerprint);
+  }
+}
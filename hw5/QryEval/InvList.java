@@ -37,50 +37,50 @@ public class InvList {
   public String field;
 
   /**
-   *  Postings that contain information about the occurrence of the
-   *  term in individual documents.
+   *  Postings are stored column-wise in flat arrays rather than as
+   *  one object per document, so that loading a long inverted list
+   *  does not allocate an object (and a Vector of boxed Integers)
+   *  per posting.  The n'th posting is docids[n] and tfs[n]; its
+   *  locations are positions[offsets[n]] .. positions[offsets[n+1]-1].
+   *  The arrays may be larger than df; only the first df entries
+   *  (df+1 entries of offsets) are valid.
    */
-  public Vector<DocPosting> postings = new Vector<DocPosting>();
-
-  //  --------------- Nested classes --------------------------------
+  private int[] docids;
+  private int[] tfs;
+  private int[] offsets;
+  private int[] positions;
 
   /**
-   *  Utility class that makes it easier to construct postings.
+   *  False if the list was read without locations, in which case
+   *  offsets and positions are null.
    */
-  public class DocPosting {
-
-    /**
-     *  The internal id of a document that contains the term in
-     *  the specified field.
-     */
-    public int docid = 0;
+  private boolean hasPositions = true;
 
-    /**
-     *  Term frequency:  The number of times the term occurs in
-     *  the specified field of the document.
-     */
-    public int tf = 0;
+  /**
+   *  The initial capacity of an inverted list that is built by
+   *  appending postings.
+   */
+  private static final int INITIAL_CAPACITY = 16;
 
-    /**
-     *  The locations where the term occurs in the specified field
-     *  of the document.
-     */
-    public Vector<Integer> positions = new Vector<Integer>();
+  /**
+   *  If greater than 0, inverted lists keep a skip list that samples
+   *  every skipInterval'th docid, and findDocid searches the skip
+   *  list before it searches the docids.  Set from the parameter file.
+   */
+  public static int skipInterval = 0;
 
-    public DocPosting(int d, int... locations) {
-      this.docid = d;
-      this.tf = locations.length;
-      for (int i = 0; i < locations.length; i++)
-        this.positions.add(locations[i]);
-    }
+  /**
+   *  The skip list: skips[k] is docids[k * skipInterval].  It is built
+   *  the first time that it is needed, and rebuilt if postings are
+   *  appended afterwards.
+   */
+  private volatile int[] skips = null;
 
-    public DocPosting(int d, List<Integer> locations) {
-      this.docid = d;
-      this.tf = locations.size();
-      for (int i = 0; i < locations.size(); i++)
-        this.positions.add(locations.get(i));
-    }
-  }
+  /**
+   *  The largest tf in the list, or -1 if it hasn't been computed.
+   *  Score upper bounds use it for dynamic pruning.
+   */
+  protected int maxTf = -1;
 
   //  --------------- Methods ---------------------------------------
 
@@ -88,6 +88,18 @@ public class InvList {
    *  Constructor.  An empty inverted list. Useful for some query operators.
    */
   public InvList() {
+    this.allocate (INITIAL_CAPACITY, INITIAL_CAPACITY);
+  }
+
+  /**
+   *  Constructor for subclasses that store their postings in some
+   *  other way.  No posting arrays are allocated.
+   *  @param fieldString The field that the term occurs in.
+   *  @param withPositions True if the subclass stores locations.
+   */
+  protected InvList(String fieldString, boolean withPositions) {
+    this.field = fieldString;
+    this.hasPositions = withPositions;
   }
 
   /**
@@ -96,6 +108,7 @@ public class InvList {
    */
   public InvList(String fieldString) {
     this.field = new String (fieldString);
+    this.allocate (INITIAL_CAPACITY, INITIAL_CAPACITY);
   }
 
   /**
@@ -105,24 +118,97 @@ public class InvList {
    *  @throws IOException Error accessing the Lucene index.
    */
   public InvList(String termString, String fieldString) throws IOException {
+    this(termString, fieldString, true);
+  }
+
+  /**
+   *  Get an inverted list from the index, optionally without
+   *  locations.  Lists without locations are much smaller and faster
+   *  to read, and are sufficient for query operators that only need
+   *  the tf, e.g., when a term is scored directly by BM25 or Indri.
+   *  @param termString The processed (stemmed, lower-cased, etc) term string.
+   *  @param fieldString The field that the term occurs in.
+   *  @param withPositions If false, locations are not read or stored.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public InvList(String termString, String fieldString, boolean withPositions)
+    throws IOException {
+    this(termString, fieldString, withPositions, null);
+  }
+
+  /**
+   *  Get an inverted list from one segment of the index, or from the
+   *  whole index.  The postings of a segment keep the docids that
+   *  they have in the whole index, i.e., the segment's docBase is
+   *  added to them, so the list can be used with the rest of the
+   *  index (document lengths, external ids, etc).  The df and ctf are
+   *  the segment's.
+   *  @param termString The processed (stemmed, lower-cased, etc) term string.
+   *  @param fieldString The field that the term occurs in.
+   *  @param withPositions If false, locations are not read or stored.
+   *  @param leaf The index segment, or null for the whole index.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public InvList(String termString, String fieldString, boolean withPositions,
+                 AtomicReaderContext leaf)
+    throws IOException {
 
     //  Store the field name.  This is used by other query operators.
 
     this.field = new String (fieldString);
+    this.hasPositions = withPositions;
 
     //  Prepare to access the index.
 
+    IndexReader reader = (leaf == null) ? Idx.INDEXREADER : leaf.reader();
+    int docBase = (leaf == null) ? 0 : leaf.docBase;
+
     BytesRef termBytes = new BytesRef(termString);
     Term term = new Term(fieldString, termBytes);
 
-    if (Idx.INDEXREADER.docFreq(term) < 1)
+    int termDf = reader.docFreq(term);
+
+    if (termDf < 1) {
+      this.allocate (0, 0);
       return;
+    }
+
+    //  The df and ctf reported by the term dictionary size the arrays
+    //  exactly, so they are never grown while the list is copied.
+    //  They are upper bounds if the index has deleted documents.
+
+    long termCtf = reader.totalTermFreq(term);
+
+    this.allocate (termDf, (termCtf > 0) ? (int) termCtf : termDf);
+
+    if (! withPositions) {
+
+      //  Lookup the inverted list, without locations.
+
+      DocsEnum iList =
+        MultiFields.getTermDocsEnum(reader,
+                                    MultiFields.getLiveDocs(reader),
+                                    fieldString, termBytes,
+                                    DocsEnum.FLAG_FREQS);
+
+      while (iList.nextDoc() != DocIdSetIterator.NO_MORE_DOCS) {
+        int tf = iList.freq();
+
+        this.ensureCapacity (this.df + 1, 0);
+        this.docids[this.df] = docBase + iList.docID();
+        this.tfs[this.df] = tf;
+        this.df++;
+        this.ctf += tf;
+      }
+
+      return;
+    }
 
     //  Lookup the inverted list.
 
     DocsAndPositionsEnum iList =
-      MultiFields.getTermPositionsEnum(Idx.INDEXREADER,
-				       MultiFields.getLiveDocs(Idx.INDEXREADER),
+      MultiFields.getTermPositionsEnum(reader,
+				       MultiFields.getLiveDocs(reader),
 				       fieldString, termBytes);
 
     //  Copy from Lucene inverted list format to our inverted list
@@ -133,48 +219,209 @@ public class InvList {
     while (iList.nextDoc() != DocIdSetIterator.NO_MORE_DOCS) {
 
       int tf = iList.freq();
-      int[] positions = new int[tf];
+
+      this.ensureCapacity (this.df + 1, this.ctf + tf);
+
+      this.docids[this.df] = docBase + iList.docID();
+      this.tfs[this.df] = tf;
 
       for (int j = 0; j < tf; j++)
-        positions[j] = iList.nextPosition();
+        this.positions[this.ctf + j] = iList.nextPosition();
 
-      this.postings.add(new DocPosting(iList.docID(), positions));
       this.df++;
       this.ctf += tf;
+      this.offsets[this.df] = this.ctf;
+    }
+  }
+
+  /**
+   *  Allocate the posting arrays.
+   *  @param docCapacity The number of postings to make room for.
+   *  @param locCapacity The number of locations to make room for.
+   */
+  private void allocate (int docCapacity, int locCapacity) {
+    this.docids = new int[docCapacity];
+    this.tfs = new int[docCapacity];
+
+    if (this.hasPositions) {
+      this.offsets = new int[docCapacity + 1];
+      this.positions = new int[locCapacity];
+    }
+  }
+
+  /**
+   *  Grow the posting arrays, if necessary, so that they can hold
+   *  the specified number of postings and locations.
+   *  @param docCapacity The number of postings that must fit.
+   *  @param locCapacity The number of locations that must fit.
+   */
+  private void ensureCapacity (int docCapacity, int locCapacity) {
+
+    if (docCapacity > this.docids.length) {
+      int n = Math.max (docCapacity, 2 * this.docids.length);
+      this.docids = Arrays.copyOf (this.docids, n);
+      this.tfs = Arrays.copyOf (this.tfs, n);
+
+      if (this.hasPositions)
+        this.offsets = Arrays.copyOf (this.offsets, n + 1);
+    }
+
+    if (this.hasPositions && (locCapacity > this.positions.length)) {
+      int n = Math.max (locCapacity, 2 * this.positions.length);
+      this.positions = Arrays.copyOf (this.positions, n);
     }
   }
 
   /**
    *  Append a posting to the posting list.  Posting must be appended
-   *  in docid order, otherwise this method fails.
+   *  in docid order, otherwise this method fails.  Only a Builder
+   *  appends postings, so a list doesn't change once it is built.
    *  @param docid The internal document id of the posting.
-   *  @param positions A list of positions where the term occurs.
+   *  @param locations An array of positions where the term occurs.
+   *  @param tf The number of entries of locations to use.
    *  @return true if the posting was added successfully, otherwise false.
    */
-  public boolean appendPosting (int docid, List<Integer> positions) {
+  private boolean appendPosting (int docid, int[] locations, int tf) {
+
+    if (! this.hasPositions)
+      throw new IllegalStateException ("The inverted list has no locations.");
     
     //  A posting can only be appended if its docid is greater than
     //  the last docid.
 
     if ((this.df > 1) &&
-	(this.postings.get(this.df-1).docid >= docid))
+	(this.docids[this.df-1] >= docid))
       return false;
 
-    DocPosting p = new DocPosting (docid, positions);
+    this.ensureCapacity (this.df + 1, this.ctf + tf);
+
+    this.docids[this.df] = docid;
+    this.tfs[this.df] = tf;
+    System.arraycopy (locations, 0, this.positions, this.ctf, tf);
 
-    this.postings.add (p);
     this.df ++;
-    this.ctf += p.tf;
+    this.ctf += tf;
+    this.offsets[this.df] = this.ctf;
     return true;
   }
 
+  /**
+   *  Find the first posting at or after index from whose docid is at
+   *  least docid.  The search gallops forward from index from
+   *  (1, 2, 4, ... postings ahead) and then does a binary search, so
+   *  its cost grows with the log of the distance skipped rather than
+   *  with the distance itself.
+   *  @param from The index of the posting to start searching from.
+   *  @param docid The internal document id to search for.
+   *  @return The index of the posting, or df if there is none.
+   */
+  public int findDocid(int from, int docid) {
+
+    if ((from >= this.df) || (this.getDocid(from) >= docid))
+      return from;
+
+    //  If there is a skip list, use it to jump to the block of
+    //  skipInterval postings that contains docid.
+
+    int limit = this.df;
+
+    if (InvList.skipInterval > 0) {
+      int[] skipList = this.getSkips();
+      int interval = InvList.skipInterval;
+      int block = gallop(skipList, from / interval, skipList.length, docid);
+
+      //  skipList[block] is the first sample >= docid, so docid is in
+      //  the block before it (or in block 'from' if that is later).
+
+      from = Math.max(from, (block - 1) * interval);
+      limit = Math.min(limit, block * interval + 1);
+    }
+
+    return gallop(null, from, limit, docid);
+  }
+
+  /**
+   *  Find the first entry of a[from..limit) that is at least value,
+   *  using an exponential search followed by a binary search.
+   *  @param a A sorted array, or null to search the list's docids.
+   *  Subclasses that store their docids some other way (e.g.,
+   *  MappedInvList) are searched through getDocid.
+   *  @param from The first index to search.
+   *  @param limit One more than the last index to search.
+   *  @param value The value to search for.
+   *  @return The index of the entry, or limit if there is none.
+   */
+  private int gallop(int[] a, int from, int limit, int value) {
+
+    if ((from >= limit) || (this.entry(a, from) >= value))
+      return from;
+
+    //  a[lo] < value.  Double the step until a[hi] >= value or the
+    //  end of the range is reached.
+
+    int lo = from;
+    int step = 1;
+    int hi = from + step;
+
+    while ((hi < limit) && (this.entry(a, hi) < value)) {
+      lo = hi;
+      step <<= 1;
+      hi = from + step;
+    }
+
+    if (hi > limit)
+      hi = limit;
+
+    //  Binary search (lo, hi].  a[lo] < value, and a[hi] >= value if
+    //  hi < limit.
+
+    while (hi - lo > 1) {
+      int mid = (lo + hi) >>> 1;
+
+      if (this.entry(a, mid) < value)
+        lo = mid;
+      else
+        hi = mid;
+    }
+
+    return hi;
+  }
+
+  /**
+   *  Get the i'th entry of a, or the i'th docid if a is null.
+   */
+  private int entry(int[] a, int i) {
+    return (a == null) ? this.getDocid(i) : a[i];
+  }
+
+  /**
+   *  Get the skip list, building it if necessary.
+   *  @return The skip list.
+   */
+  private int[] getSkips() {
+    int interval = InvList.skipInterval;
+    int n = (this.df + interval - 1) / interval;
+    int[] skipList = this.skips;
+
+    if ((skipList == null) || (skipList.length != n)) {
+      skipList = new int[n];
+
+      for (int k = 0; k < n; k++)
+        skipList[k] = this.getDocid(k * interval);
+
+      this.skips = skipList;
+    }
+
+    return skipList;
+  }
+
   /**
    *  Get the n'th document id from the inverted list.
    *  @param docid The index of the requested document.
    *  @return The internal document id.
    */
   public int getDocid(int docid) {
-    return this.postings.get(docid).docid;
+    return this.docids[docid];
   }
 
   /**
@@ -183,7 +430,79 @@ public class InvList {
    *  @return The document's term frequency.
    */
   public int getTf(int n) {
-    return this.postings.get(n).tf;
+    return this.tfs[n];
+  }
+
+  /**
+   *  Get the largest term frequency in the inverted list.  It is
+   *  computed the first time that it is needed.
+   *  @return The largest tf, or 0 if the list is empty.
+   */
+  public int getMaxTf() {
+    if (this.maxTf < 0) {
+      int max = 0;
+
+      for (int n = 0; n < this.df; n++)
+        max = Math.max (max, this.getTf (n));
+
+      this.maxTf = max;
+    }
+
+    return this.maxTf;
+  }
+
+  /**
+   *  Does the inverted list store locations?
+   *  @return True if the list stores locations.
+   */
+  public boolean hasPositions() {
+    return this.hasPositions;
+  }
+
+  /**
+   *  Get the j'th location in the n'th document of the inverted list.
+   *  It is an error to call this method if the list has no locations.
+   *  @param n The index of the requested document.
+   *  @param j The index of the requested location in that document.
+   *  @return The location.
+   */
+  public int getPosition(int n, int j) {
+    return this.positions[this.offsets[n] + j];
+  }
+
+  /**
+   *  Get the approximate amount of memory that the inverted list uses.
+   *  @return The size of the inverted list in bytes.
+   */
+  public long sizeInBytes() {
+    long ints = this.docids.length + this.tfs.length;
+
+    if (this.hasPositions)
+      ints += this.offsets.length + this.positions.length;
+
+    return 4 * ints + this.skipsSizeInBytes() + 96;
+  }
+
+  /**
+   *  Get the amount of memory that the skip list uses.
+   *  @return The size of the skip list in bytes, or 0 if it hasn't
+   *  been built.
+   */
+  protected long skipsSizeInBytes() {
+    int[] skipList = this.skips;
+
+    return (skipList == null) ? 0 : 4L * skipList.length;
+  }
+
+  /**
+   *  Get an InvList that can be iterated over by one query operator.
+   *  InvList objects are not modified by iteration, so they are
+   *  shared; subclasses that keep decoding state return a new view
+   *  of the same postings.
+   *  @return An inverted list for the caller's exclusive use.
+   */
+  public InvList view() {
+    return this;
   }
 
   /**
@@ -194,14 +513,55 @@ public class InvList {
     System.out.println("df:  " + this.df + ", ctf: " + this.ctf);
 
     for (int i = 0; i < this.df; i++) {
-      System.out.print("docid:  " + this.postings.elementAt(i).docid + ", tf: "
-          + this.postings.elementAt(i).tf + ", locs: ");
+      System.out.print("docid:  " + this.getDocid(i) + ", tf: "
+          + this.getTf(i) + ", locs: ");
 
-      for (int j = 0; j < this.postings.elementAt(i).tf; j++) {
-        System.out.print(this.postings.elementAt(i).positions.elementAt(j) + " ");
+      for (int j = 0; this.hasPositions && (j < this.getTf(i)); j++) {
+        System.out.print(this.getPosition(i, j) + " ");
       }
 
       System.out.println();
     }
   }
+
+  /**
+   *  Builds an inverted list by appending postings, e.g., for a query
+   *  operator that combines the locations of its arguments.  Lists
+   *  that store their postings in some other way (compressed, mapped)
+   *  are made from a finished list, so they don't support appending.
+   */
+  public static class Builder {
+
+    private InvList invList;
+
+    /**
+     *  @param fieldString The field that the list covers.
+     */
+    public Builder (String fieldString) {
+      this.invList = new InvList (fieldString);
+    }
+
+    /**
+     *  Append a posting to the list.  Postings must be appended in
+     *  docid order, otherwise this method fails.
+     *  @param docid The internal document id of the posting.
+     *  @param locations An array of positions where the term occurs.
+     *  @param tf The number of entries of locations to use.
+     *  @return true if the posting was added successfully, otherwise false.
+     */
+    public boolean appendPosting (int docid, int[] locations, int tf) {
+      return this.invList.appendPosting (docid, locations, tf);
+    }
+
+    /**
+     *  Finish the list.  The builder can't be used afterwards.
+     *  @return The inverted list.
+     */
+    public InvList build () {
+      InvList result = this.invList;
+
+      this.invList = null;
+      return result;
+    }
+  }
 }
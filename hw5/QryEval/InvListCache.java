@@ -0,0 +1,323 @@
+/**
+ *  Copyright (c) 2016, Carnegie Mellon University.  All Rights Reserved.
+ */
+import java.io.*;
+import java.util.*;
+
+/**
+ *  A memory-bounded cache of inverted lists that is shared by all of
+ *  the queries in a run.  Lists are keyed by (term, field), so a term
+ *  that occurs in many queries, or in a query that is evaluated more
+ *  than once (e.g., for LETOR or relevance feedback), is read from the
+ *  Lucene index just once.  InvList objects are not modified after
+ *  they are built, so one cached list can be shared by many QryIop
+ *  operators; each operator keeps its own iterator state.
+ *  <p>
+ *  When the lists exceed the byte budget, entries are evicted in
+ *  least-recently-used (LRU) or least-frequently-used (LFU) order.
+ *  LFU keeps the entries in buckets by use count, so the victim is
+ *  found without scanning the cache, and it halves every count after
+ *  DECAY_PERIOD uses per cached list, so lists that were popular only
+ *  early in a run don't stay in the cache forever.
+ *  </p><p>
+ *  If CompressedInvList.compressPostings is set, lists are compressed
+ *  before they are cached, so callers must iterate over a view().
+ *  </p><p>
+ *  Lists with and without locations are cached separately.  A request
+ *  for a list without locations is satisfied by either kind.
+ *  </p>
+ */
+public class InvListCache {
+
+  //  --------------- Constants and variables ---------------------
+
+  /**
+   *  The eviction policies.
+   */
+  public enum Policy { LRU, LFU };
+
+  /**
+   *  LFU halves the use counts after this many uses per cached list.
+   */
+  private static final int DECAY_PERIOD = 8;
+
+  private static boolean enabled = false;
+  private static long maxBytes = 0;
+  private static Policy policy = Policy.LRU;
+
+  //  The cache, in least-recently-used to most-recently-used order.
+
+  private static LinkedHashMap<String, Entry> entries =
+    new LinkedHashMap<String, Entry> (16, 0.75f, true);
+  private static long bytes = 0;
+
+  //  For LFU, the keys of the entries with each use count.  Each
+  //  bucket is in least-recently-used to most-recently-used order,
+  //  because an entry moves to the end of the next bucket when it is
+  //  used.
+
+  private static TreeMap<Long, LinkedHashSet<String>> buckets =
+    new TreeMap<Long, LinkedHashSet<String>> ();
+  private static long usesSinceDecay = 0;
+
+  //  Statistics.
+
+  private static long hits = 0;
+  private static long misses = 0;
+  private static long evictions = 0;
+
+  /**
+   *  A cached inverted list and its bookkeeping.
+   */
+  private static class Entry {
+    InvList invList;
+    long bytes;
+    long uses = 1;
+
+    Entry (InvList invList) {
+      this.invList = invList;
+      this.bytes = invList.sizeInBytes ();
+    }
+  }
+
+  //  --------------- Methods ---------------------------------------
+
+  /**
+   *  Enable the cache.
+   *  @param budget The maximum number of bytes of inverted lists to keep.
+   *  @param p The eviction policy.
+   */
+  public static synchronized void initialize (long budget, Policy p) {
+    InvListCache.enabled = true;
+    InvListCache.maxBytes = budget;
+    InvListCache.policy = p;
+    InvListCache.clear ();
+  }
+
+  /**
+   *  Remove all entries from the cache and reset the statistics.
+   */
+  public static synchronized void clear () {
+    InvListCache.entries.clear ();
+    InvListCache.buckets.clear ();
+    InvListCache.usesSinceDecay = 0;
+    InvListCache.bytes = 0;
+    InvListCache.hits = 0;
+    InvListCache.misses = 0;
+    InvListCache.evictions = 0;
+  }
+
+  /**
+   *  Is the cache enabled?
+   *  @return True if the cache is enabled.
+   */
+  public static boolean isEnabled () {
+    return InvListCache.enabled;
+  }
+
+  /**
+   *  Get the inverted list for a term, reading it from the index and
+   *  adding it to the cache if it is not cached already.
+   *  @param termString The processed (stemmed, lower-cased, etc) term string.
+   *  @param fieldString The field that the term occurs in.
+   *  @param withPositions True if the list must have locations.
+   *  @return The inverted list.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public static InvList get (String termString, String fieldString,
+                             boolean withPositions)
+    throws IOException {
+
+    InvList invList =
+      InvListCache.lookup (termString, fieldString, withPositions, true);
+
+    if (invList != null)
+      return invList;
+
+    //  Read the list outside of the lock, so that other queries are
+    //  not blocked by a long list.
+
+    invList = CompressedInvList.compress (
+      new InvList (termString, fieldString, withPositions));
+    InvListCache.put (key (termString, fieldString, withPositions), invList);
+    return invList;
+  }
+
+  /**
+   *  Get the inverted list for a term if it is cached.  A list that
+   *  isn't cached is not read, so it doesn't count as a miss.
+   *  @param termString The processed (stemmed, lower-cased, etc) term string.
+   *  @param fieldString The field that the term occurs in.
+   *  @param withPositions True if the list must have locations.
+   *  @return The inverted list, or null if it is not cached.
+   */
+  public static InvList getIfPresent (String termString, String fieldString,
+                                      boolean withPositions) {
+    return InvListCache.lookup (termString, fieldString, withPositions,
+                                false);
+  }
+
+  /**
+   *  Get the inverted list for a term if it is cached.
+   *  @param termString The processed (stemmed, lower-cased, etc) term string.
+   *  @param fieldString The field that the term occurs in.
+   *  @param withPositions True if the list must have locations.
+   *  @param countMiss True if a list that isn't cached is a miss,
+   *  i.e., the caller reads the list and adds it to the cache.
+   *  @return The inverted list, or null if it is not cached.
+   */
+  private static synchronized InvList lookup (String termString,
+                                              String fieldString,
+                                              boolean withPositions,
+                                              boolean countMiss) {
+
+    String key = key (termString, fieldString, true);
+    Entry e = InvListCache.entries.get (key);
+
+    if ((e == null) && (! withPositions)) {
+      key = key (termString, fieldString, false);
+      e = InvListCache.entries.get (key);
+    }
+
+    if (e == null) {
+      if (countMiss)
+        InvListCache.misses ++;
+
+      return null;
+    }
+
+    InvListCache.hits ++;
+
+    if (InvListCache.policy == Policy.LFU) {
+      unbucket (key, e);
+      e.uses ++;
+      bucket (key, e);
+
+      if (++ InvListCache.usesSinceDecay >
+          (long) DECAY_PERIOD * InvListCache.entries.size ())
+        decay ();
+    } else {
+      e.uses ++;
+    }
+
+    return e.invList;
+  }
+
+  /**
+   *  Add an inverted list to the cache, evicting other lists if
+   *  necessary.  Lists that are larger than the budget are not cached.
+   *  @param key The cache key.
+   *  @param invList The inverted list.
+   */
+  private static synchronized void put (String key, InvList invList) {
+
+    Entry e = new Entry (invList);
+
+    if (e.bytes > InvListCache.maxBytes)
+      return;
+
+    Entry old = InvListCache.entries.put (key, e);
+
+    if (old != null) {
+      InvListCache.bytes -= old.bytes;
+
+      if (InvListCache.policy == Policy.LFU)
+        unbucket (key, old);
+    }
+
+    InvListCache.bytes += e.bytes;
+
+    if (InvListCache.policy == Policy.LFU)
+      bucket (key, e);
+
+    while (InvListCache.bytes > InvListCache.maxBytes)
+      InvListCache.evict ();
+  }
+
+  /**
+   *  Evict one entry from the cache.  The map is in access order, so
+   *  the LRU entry is the first one; the LFU entry is the least
+   *  recently used one with the fewest uses, which is the first one in
+   *  the first bucket.
+   */
+  private static void evict () {
+
+    String victim;
+
+    if (InvListCache.policy == Policy.LFU)
+      victim =
+        InvListCache.buckets.firstEntry ().getValue ().iterator ().next ();
+    else
+      victim = InvListCache.entries.keySet ().iterator ().next ();
+
+    Entry e = InvListCache.entries.remove (victim);
+
+    if (InvListCache.policy == Policy.LFU)
+      unbucket (victim, e);
+
+    InvListCache.bytes -= e.bytes;
+    InvListCache.evictions ++;
+  }
+
+  /**
+   *  Add an entry to the end of the bucket for its use count.
+   */
+  private static void bucket (String key, Entry e) {
+    LinkedHashSet<String> b = InvListCache.buckets.get (e.uses);
+
+    if (b == null) {
+      b = new LinkedHashSet<String> ();
+      InvListCache.buckets.put (e.uses, b);
+    }
+
+    b.add (key);
+  }
+
+  /**
+   *  Remove an entry from the bucket for its use count.
+   */
+  private static void unbucket (String key, Entry e) {
+    LinkedHashSet<String> b = InvListCache.buckets.get (e.uses);
+
+    b.remove (key);
+
+    if (b.isEmpty ())
+      InvListCache.buckets.remove (e.uses);
+  }
+
+  /**
+   *  Halve the use counts, and rebuild the buckets.  The map is in
+   *  access order, so each bucket stays in access order.
+   */
+  private static void decay () {
+
+    InvListCache.buckets.clear ();
+
+    for (Map.Entry<String, Entry> e : InvListCache.entries.entrySet ()) {
+      e.getValue ().uses = Math.max (1, e.getValue ().uses / 2);
+      bucket (e.getKey (), e.getValue ());
+    }
+
+    InvListCache.usesSinceDecay = 0;
+  }
+
+  /**
+   *  The cache key for a term.
+   */
+  private static String key (String termString, String fieldString,
+                             boolean withPositions) {
+    return termString + "." + fieldString + (withPositions ? "" : "#tf");
+  }
+
+  /**
+   *  Get a summary of the cache statistics.
+   *  @return A printable summary.
+   */
+  public static synchronized String getStatistics () {
+    return ("Postings cache:  hits=" + InvListCache.hits +
+            ", misses=" + InvListCache.misses +
+            ", evictions=" + InvListCache.evictions +
+            ", lists=" + InvListCache.entries.size () +
+            ", bytes=" + InvListCache.bytes);
+  }
+}
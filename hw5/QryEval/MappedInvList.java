@@ -0,0 +1,94 @@
+/**
+ *  Copyright (c) 2016, Carnegie Mellon University.  All Rights Reserved.
+ */
+import java.nio.*;
+
+/**
+ *  A read-only inverted list that is read in place from a
+ *  memory-mapped MappedPostings file.  Nothing is copied onto the heap;
+ *  each access reads the mapped file, so the list costs only a few
+ *  small objects no matter how long it is.  Absolute reads of a mapped
+ *  buffer do not change its state, so the list may be shared.
+ *  <p>
+ *  InvList.findDocid searches the list through getDocid, so a mapped
+ *  list uses the same search and skip list (the only postings data
+ *  that is copied onto the heap) as any other InvList.
+ *  </p>
+ */
+public class MappedInvList extends InvList {
+
+  private IntBuffer docids;
+  private IntBuffer tfs;
+  private IntBuffer offsets;
+  private IntBuffer positions;
+
+  /**
+   *  @param fieldString The field that the term occurs in.
+   *  @param file The mapped postings file.
+   *  @param start The offset of the inverted list in the file.
+   */
+  public MappedInvList(String fieldString, ByteBuffer file, int start) {
+    super(fieldString, true);
+
+    this.df = file.getInt(start);
+    this.ctf = file.getInt(start + 4);
+
+    int p = start + 8;
+    this.docids = slice(file, p, this.df);
+    p += 4 * this.df;
+    this.tfs = slice(file, p, this.df);
+    p += 4 * this.df;
+    this.offsets = slice(file, p, this.df + 1);
+    p += 4 * (this.df + 1);
+    this.positions = slice(file, p, this.ctf);
+  }
+
+  /**
+   *  An IntBuffer view of n ints of a mapped file.
+   */
+  private static IntBuffer slice(ByteBuffer file, int start, int n) {
+    ByteBuffer b = file.duplicate();
+    b.position(start);
+    b.limit(start + 4 * n);
+    return b.slice().asIntBuffer();
+  }
+
+  /**
+   *  Get the n'th document id from the inverted list.
+   *  @param n The index of the requested document.
+   *  @return The internal document id.
+   */
+  public int getDocid(int n) {
+    return this.docids.get(n);
+  }
+
+  /**
+   *  Get the term frequency in the n'th document of the inverted list.
+   *  @param n The index of the requested document term frequency.
+   *  @return The document's term frequency.
+   */
+  public int getTf(int n) {
+    return this.tfs.get(n);
+  }
+
+  /**
+   *  Get the j'th location in the n'th document of the inverted list.
+   *  @param n The index of the requested document.
+   *  @param j The index of the requested location in that document.
+   *  @return The location.
+   */
+  public int getPosition(int n, int j) {
+    return this.positions.get(this.offsets.get(n) + j);
+  }
+
+  /**
+   *  Get the amount of heap memory that the list uses:  the list, its
+   *  four IntBuffer views of the mapped file (about 64 bytes each),
+   *  and its skip list.  The postings are not on the heap.  Mapped
+   *  lists are read in place, so InvListCache never holds them.
+   *  @return The size of the list's heap objects in bytes.
+   */
+  public long sizeInBytes() {
+    return 96 + 4 * 64 + this.skipsSizeInBytes();
+  }
+}
@@ -0,0 +1,452 @@
+/**
+ *  Copyright (c) 2016, Carnegie Mellon University.  All Rights Reserved.
+ */
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.charset.Charset;
+import java.util.*;
+
+import org.apache.lucene.index.*;
+import org.apache.lucene.search.*;
+import org.apache.lucene.store.*;
+import org.apache.lucene.util.*;
+
+/**
+ *  A sidecar copy of the index's inverted lists in a flat binary
+ *  format that is read through memory-mapped files.  The lists are
+ *  read in place (zero-copy) by MappedInvList, so nothing is decoded
+ *  when a query starts, and several QryEval processes on one machine
+ *  share the postings through the operating system's page cache.
+ *  <p>
+ *  The sidecar is a directory next to the index (INDEX_PATH.postings)
+ *  that is built offline by running this class.  Idx uses it
+ *  automatically if it exists and was built from the index that is
+ *  open; a sidecar built from another commit of the index is ignored.
+ *  Each exported field has two kinds of files.  FIELD.dic is the term
+ *  dictionary:
+ *  </p>
+ *  <pre>
+ *    int   MAGIC, VERSION
+ *          IndexIdentity of the index
+ *    int   numTerms
+ *    int   termStart[numTerms+1]   offsets of the terms in termBytes
+ *    int   fileNo[numTerms]        the FIELD.n.pst file of each list
+ *    long  listStart[numTerms]     offset of each list in that file
+ *    byte  termBytes[]             UTF-8 terms, in Lucene (byte) order
+ *  </pre>
+ *  <p>
+ *  FIELD.n.pst holds the inverted lists, each of which is:
+ *  </p>
+ *  <pre>
+ *    int   df, ctf
+ *    int   docids[df], tfs[df], offsets[df+1], positions[ctf]
+ *  </pre>
+ *  <p>
+ *  A .pst file is at most MAX_FILE_SIZE bytes (unless a single list is
+ *  larger), so that it can be mapped with one MappedByteBuffer.
+ *  </p>
+ */
+public class MappedPostings {
+
+  //  --------------- Constants and variables ---------------------
+
+  private static final int MAGIC = 0x51455650;
+  private static final int VERSION = 2;
+  private static final int HEADER_SIZE = 4 + 4 + IndexIdentity.SIZE;
+  private static final long MAX_FILE_SIZE = 1L << 30;
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+
+  /**
+   *  The fields that are exported by default; these are the fields
+   *  that the query parser accepts.
+   */
+  public static final String[] FIELDS =
+    { "url", "keywords", "title", "body", "inlink" };
+
+  static String usage =
+    "Usage:  java " +
+    System.getProperty("sun.java.command") +
+    " -index INDEX_PATH [-fields FIELD,FIELD,...]\n\n" +
+    "Writes the postings of the specified fields (default: " +
+    "url,keywords,title,body,inlink)\nto INDEX_PATH.postings.\n";
+
+  private Map<String, FieldPostings> fields =
+    new HashMap<String, FieldPostings>();
+
+  /**
+   *  The mapped dictionary and postings of one field.
+   */
+  private static class FieldPostings {
+    int numTerms;
+    ByteBuffer dictionary;
+    int termStartBase;
+    int fileNoBase;
+    int listStartBase;
+    int termBytesBase;
+    ByteBuffer[] files;
+  }
+
+  //  --------------- Methods ---------------------------------------
+
+  /**
+   *  Get the sidecar directory of an index.
+   *  @param indexPath A directory that contains a Lucene index.
+   *  @return The sidecar directory.
+   */
+  public static File getDirectory (String indexPath) {
+    return new File (new File (indexPath).getPath () + ".postings");
+  }
+
+  private MappedPostings () {
+  }
+
+  /**
+   *  Open the sidecar postings of an index.
+   *  @param dir The sidecar directory.
+   *  @param identity The index that is open.
+   *  @return The postings, or null if a field's dictionary was built
+   *  from a different index.
+   *  @throws IOException Error reading the sidecar.
+   */
+  public static MappedPostings open (File dir, IndexIdentity identity)
+    throws IOException {
+
+    MappedPostings postings = new MappedPostings ();
+
+    for (String field : FIELDS) {
+      File dic = new File (dir, field + ".dic");
+
+      if (! dic.exists ())
+        continue;
+
+      //  Check the header before mapping anything.
+
+      DataInputStream in = new DataInputStream (
+        new BufferedInputStream (new FileInputStream (dic), HEADER_SIZE));
+
+      try {
+        if ((in.readInt () != MAGIC) || (in.readInt () != VERSION)) {
+          throw new IOException ("Unrecognized postings file " + dic);
+        }
+
+        if (! identity.equals (IndexIdentity.read (in))) {
+          return null;
+        }
+      } finally {
+        in.close ();
+      }
+
+      FieldPostings f = new FieldPostings ();
+      f.dictionary = map (dic);
+      f.numTerms = f.dictionary.getInt (HEADER_SIZE);
+      f.termStartBase = HEADER_SIZE + 4;
+      f.fileNoBase = f.termStartBase + 4 * (f.numTerms + 1);
+      f.listStartBase = f.fileNoBase + 4 * f.numTerms;
+      f.termBytesBase = f.listStartBase + 8 * f.numTerms;
+
+      int numFiles = 0;
+
+      while (new File (dir, field + "." + numFiles + ".pst").exists ())
+        numFiles ++;
+
+      f.files = new ByteBuffer[numFiles];
+
+      for (int i = 0; i < numFiles; i++)
+        f.files[i] = map (new File (dir, field + "." + i + ".pst"));
+
+      postings.fields.put (field, f);
+    }
+
+    return postings;
+  }
+
+  /**
+   *  Map a file read-only.
+   */
+  private static ByteBuffer map (File file) throws IOException {
+    RandomAccessFile raf = new RandomAccessFile (file, "r");
+
+    try {
+      FileChannel channel = raf.getChannel ();
+      return channel.map (FileChannel.MapMode.READ_ONLY, 0, channel.size ());
+    } finally {
+      raf.close ();
+    }
+  }
+
+  /**
+   *  Does the sidecar have postings for the field?
+   *  @param field The field name.
+   *  @return True if the field was exported.
+   */
+  public boolean hasField (String field) {
+    return this.fields.containsKey (field);
+  }
+
+  /**
+   *  Get the inverted list of a term.
+   *  @param termString The processed (stemmed, lower-cased, etc) term string.
+   *  @param fieldString The field that the term occurs in.
+   *  @return The inverted list (empty if the term does not occur), or
+   *  null if the field was not exported.
+   */
+  public InvList getInvList (String termString, String fieldString) {
+
+    FieldPostings f = this.fields.get (fieldString);
+
+    if (f == null)
+      return null;
+
+    int t = findTerm (f, termString.getBytes (UTF8));
+
+    if (t < 0)
+      return new InvList (fieldString);
+
+    ByteBuffer file = f.files[f.dictionary.getInt (f.fileNoBase + 4 * t)];
+    long start = f.dictionary.getLong (f.listStartBase + 8 * t);
+
+    return new MappedInvList (fieldString, file, (int) start);
+  }
+
+  /**
+   *  Binary search the dictionary for a term.
+   *  @return The index of the term, or -1 if it is not in the dictionary.
+   */
+  private static int findTerm (FieldPostings f, byte[] term) {
+    int lo = 0;
+    int hi = f.numTerms - 1;
+
+    while (lo <= hi) {
+      int mid = (lo + hi) >>> 1;
+      int c = compareTerm (f, mid, term);
+
+      if (c < 0)
+        lo = mid + 1;
+      else if (c > 0)
+        hi = mid - 1;
+      else
+        return mid;
+    }
+
+    return -1;
+  }
+
+  /**
+   *  Compare the t'th dictionary term to a term, as unsigned bytes
+   *  (the order that Lucene uses).
+   */
+  private static int compareTerm (FieldPostings f, int t, byte[] term) {
+    int start = f.termBytesBase + f.dictionary.getInt (f.termStartBase + 4 * t);
+    int end = f.termBytesBase + f.dictionary.getInt (f.termStartBase + 4 * (t + 1));
+    int len = end - start;
+
+    for (int i = 0; (i < len) && (i < term.length); i++) {
+      int a = f.dictionary.get (start + i) & 0xFF;
+      int b = term[i] & 0xFF;
+
+      if (a != b)
+        return a - b;
+    }
+
+    return len - term.length;
+  }
+
+  /**
+   *  Export the postings of some fields of an index.
+   *  @param reader The index.
+   *  @param dir The sidecar directory.
+   *  @param fieldNames The fields to export.
+   *  @throws IOException Error accessing the index or writing the sidecar.
+   */
+  public static void write (DirectoryReader reader, File dir,
+                            String[] fieldNames)
+    throws IOException {
+
+    if (! dir.exists () && ! dir.mkdirs ())
+      throw new IOException ("Can't create " + dir);
+
+    Bits liveDocs = MultiFields.getLiveDocs (reader);
+    IndexIdentity identity = IndexIdentity.of (reader);
+
+    for (String field : fieldNames) {
+      Terms terms = MultiFields.getTerms (reader, field);
+
+      if (terms == null) {
+        System.err.println ("Warning:  No postings for field " + field);
+        continue;
+      }
+
+      //  The dictionary is assembled in memory and written last.
+
+      ByteArrayOutputStream termBytes = new ByteArrayOutputStream ();
+      IntArray termStart = new IntArray ();
+      IntArray fileNo = new IntArray ();
+      ArrayList<Long> listStart = new ArrayList<Long> ();
+
+      int file = 0;
+      long fileSize = 0;
+      DataOutputStream out = openPostingsFile (dir, field, file);
+
+      int[] docids = new int[16];
+      int[] tfs = new int[16];
+      IntArray positions = new IntArray ();
+
+      TermsEnum ithTerm = terms.iterator (null);
+      BytesRef term;
+
+      while ((term = ithTerm.next ()) != null) {
+
+        //  Read the list.
+
+        DocsAndPositionsEnum iList = ithTerm.docsAndPositions (liveDocs, null);
+        int df = 0;
+        positions.size = 0;
+
+        while (iList.nextDoc () != DocIdSetIterator.NO_MORE_DOCS) {
+          if (df == docids.length) {
+            docids = Arrays.copyOf (docids, 2 * df);
+            tfs = Arrays.copyOf (tfs, 2 * df);
+          }
+
+          int tf = iList.freq ();
+          docids[df] = iList.docID ();
+          tfs[df] = tf;
+          df++;
+
+          for (int j = 0; j < tf; j++)
+            positions.add (iList.nextPosition ());
+        }
+
+        if (df == 0)
+          continue;		// Only in deleted documents.
+
+        //  Start a new postings file if this list doesn't fit.
+
+        long listSize = 4L * (2 + 3 * df + 1 + positions.size);
+
+        if ((fileSize > 0) && (fileSize + listSize > MAX_FILE_SIZE)) {
+          out.close ();
+          file ++;
+          fileSize = 0;
+          out = openPostingsFile (dir, field, file);
+        }
+
+        termStart.add (termBytes.size ());
+        termBytes.write (term.bytes, term.offset, term.length);
+        fileNo.add (file);
+        listStart.add (fileSize);
+
+        out.writeInt (df);
+        out.writeInt (positions.size);
+
+        for (int i = 0; i < df; i++)
+          out.writeInt (docids[i]);
+
+        for (int i = 0; i < df; i++)
+          out.writeInt (tfs[i]);
+
+        int offset = 0;
+
+        for (int i = 0; i < df; i++) {
+          out.writeInt (offset);
+          offset += tfs[i];
+        }
+
+        out.writeInt (offset);
+
+        for (int i = 0; i < positions.size; i++)
+          out.writeInt (positions.values[i]);
+
+        fileSize += listSize;
+      }
+
+      out.close ();
+      termStart.add (termBytes.size ());
+
+      //  Write the dictionary.
+
+      DataOutputStream dic = new DataOutputStream (new BufferedOutputStream (
+        new FileOutputStream (new File (dir, field + ".dic"))));
+      int numTerms = fileNo.size;
+
+      dic.writeInt (MAGIC);
+      dic.writeInt (VERSION);
+      identity.write (dic);
+      dic.writeInt (numTerms);
+
+      for (int i = 0; i <= numTerms; i++)
+        dic.writeInt (termStart.values[i]);
+
+      for (int i = 0; i < numTerms; i++)
+        dic.writeInt (fileNo.values[i]);
+
+      for (int i = 0; i < numTerms; i++)
+        dic.writeLong (listStart.get (i));
+
+      termBytes.writeTo (dic);
+      dic.close ();
+
+      System.out.println (field + ":  " + numTerms + " terms, " +
+                          (file + 1) + " postings file(s)");
+    }
+  }
+
+  /**
+   *  Create a postings file for writing.
+   */
+  private static DataOutputStream openPostingsFile (File dir, String field,
+                                                    int file)
+    throws IOException {
+    return new DataOutputStream (new BufferedOutputStream (
+      new FileOutputStream (new File (dir, field + "." + file + ".pst")),
+      1 << 16));
+  }
+
+  /**
+   *  A growable int array.
+   */
+  private static class IntArray {
+    int[] values = new int[16];
+    int size = 0;
+
+    void add (int v) {
+      if (this.size == this.values.length)
+        this.values = Arrays.copyOf (this.values, 2 * this.size);
+      this.values[this.size++] = v;
+    }
+  }
+
+  /**
+   *  Build the sidecar postings of an index.
+   *  @param args See the usage message.
+   *  @throws IOException Error accessing the index or writing the sidecar.
+   */
+  public static void main (String[] args) throws IOException {
+
+    String indexPath = null;
+    String[] fieldNames = FIELDS;
+
+    for (int i = 0; i < args.length; i++) {
+      if ("-index".equals (args[i]) && ((i + 1) < args.length)) {
+        indexPath = args[++i];
+      } else if ("-fields".equals (args[i]) && ((i + 1) < args.length)) {
+        fieldNames = args[++i].split (",");
+      } else {
+        System.err.println ("\nWarning:  Unknown argument " + args[i]
+                            + " ignored.");
+      }
+    }
+
+    if (indexPath == null) {
+      System.err.println (usage);
+      System.exit (1);
+    }
+
+    DirectoryReader reader =
+      DirectoryReader.open (FSDirectory.open (new File (indexPath)));
+
+    write (reader, getDirectory (indexPath), fieldNames);
+    reader.close ();
+  }
+}
@@ -0,0 +1,357 @@
+/**
+ *  Copyright (c) 2016, Carnegie Mellon University.  All Rights Reserved.
+ */
+import java.io.*;
+import java.util.*;
+
+import org.apache.lucene.index.*;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.util.BytesRef;
+
+/**
+ *  The term proximity learning-to-rank features:  the reciprocal of
+ *  the length of the shortest span of positions that contains every
+ *  query term (f17), and the reciprocal of the average pairwise
+ *  distance between query terms (f18).  The distance between two
+ *  different query terms is the smallest distance between their
+ *  locations, and f18 averages it over the pairs of query terms that
+ *  both occur in the field.  Each is computed for the body and title
+ *  fields, and the larger (closer) of the two is the feature.
+ *  <p>
+ *  The features are reciprocals so that larger is better, as it is
+ *  for the other features.  A document in which no field has a span,
+ *  or two different query terms, gets 0, so it normalizes to the
+ *  worst end of the query's range, not to the best.
+ *  </p>
+ *  <p>
+ *  The locations of the query terms in the candidate documents are
+ *  read from the postings, in one pass per (term, field) that visits
+ *  the candidates in docid order.  Both features of a (document,
+ *  field) are then computed in one k-way merge of the query terms'
+ *  locations, as #WINDOW does, but with a heap that holds the next
+ *  location of each term.  The heap's smallest location and the
+ *  largest location seen so far bound a span that contains every
+ *  term, so the shortest span is found in O(locations * log k) time
+ *  for k query terms.  The same merge records the last location of
+ *  each term, and the distance from it to each new location gives the
+ *  closest pair of locations for every pair of terms, in O(locations *
+ *  k) time.
+ *  </p>
+ */
+public class ProximityFeatures implements FeatureExtractor {
+
+  //  --------------- Constants and variables ---------------------
+
+  static final int MIN_SPAN = 17;
+  static final int AVERAGE_DISTANCE = 18;
+
+  private static final String[] FIELDS = { "body", "title" };
+
+  static final FeatureExtractor.Factory FACTORY =
+    new FeatureExtractor.Factory () {
+      public int[] getFeatureIds () {
+        return new int[] { MIN_SPAN, AVERAGE_DISTANCE };
+      }
+
+      public FeatureExtractor create (Qry q, BitSet enabled) {
+        return new ProximityFeatures (q);
+      }
+    };
+
+  /**
+   *  The query terms, as TextFieldFeatures finds them.
+   */
+  private final BytesRef[] termBytes;
+
+  //  --------------- Methods ---------------------------------------
+
+  /**
+   *  @param q The query.
+   */
+  public ProximityFeatures (Qry q) {
+    HashSet<String> terms = TextFieldFeatures.getTerms (q);
+
+    this.termBytes = new BytesRef[terms.size ()];
+
+    int t = 0;
+
+    for (String term : terms)
+      this.termBytes[t++] = new BytesRef (term);
+  }
+
+  /**
+   *  Compute the enabled proximity features of documents.
+   *  @param docs The documents.
+   *  @param enabled The features that must be computed.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public void addTo (List<FeatureDocument> docs, BitSet enabled)
+    throws IOException {
+
+    int n = docs.size ();
+    int k = this.termBytes.length;
+    double[] span = new double[n];
+    double[] distance = new double[n];
+
+    //  Visit the candidates in docid order.  Each is packed with its
+    //  index, so sorting them keeps track of where they came from.
+
+    long[] order = new long[n];
+
+    for (int i = 0; i < n; i++)
+      order[i] = ((long) docs.get (i).internal_id << 32) | i;
+
+    Arrays.sort (order);
+
+    PositionMerge merge = new PositionMerge (k);
+
+    for (String field : FIELDS) {
+
+      //  locations[i][t] has the locations of term t in candidate i,
+      //  or it is null if the candidate doesn't have the term.
+
+      int[][][] locations = new int[n][k][];
+
+      for (int t = 0; t < k; t++) {
+        DocsAndPositionsEnum postings =
+          MultiFields.getTermPositionsEnum (Idx.INDEXREADER, null, field,
+                                            this.termBytes[t]);
+
+        if (postings == null)
+          continue;
+
+        int current = -1;
+        int[] locs = null;
+
+        for (int j = 0; j < n; j++) {
+          int docid = (int) (order[j] >>> 32);
+
+          if (current < docid) {
+            current = postings.advance (docid);
+            locs = null;
+          }
+
+          if (current == DocIdSetIterator.NO_MORE_DOCS)
+            break;
+
+          if (current != docid)
+            continue;
+
+          //  A document's locations are read once, even if it is a
+          //  candidate more than once.
+
+          if (locs == null) {
+            locs = new int[postings.freq ()];
+
+            for (int p = 0; p < locs.length; p++)
+              locs[p] = postings.nextPosition ();
+          }
+
+          locations[(int) order[j]][t] = locs;
+        }
+      }
+
+      for (int i = 0; i < n; i++) {
+        merge.run (locations[i]);
+
+        if (merge.span > span[i])
+          span[i] = merge.span;
+
+        if (merge.distance > distance[i])
+          distance[i] = merge.distance;
+      }
+    }
+
+    for (int i = 0; i < n; i++) {
+      if (enabled.get (MIN_SPAN))
+        docs.get (i).addFeatureValue (MIN_SPAN, span[i]);
+
+      if (enabled.get (AVERAGE_DISTANCE))
+        docs.get (i).addFeatureValue (AVERAGE_DISTANCE, distance[i]);
+    }
+  }
+
+  /**
+   *  A k-way merge of the locations of the query terms in one field of
+   *  one document.  The heap arrays are reused from one document to
+   *  the next.
+   */
+  private static class PositionMerge {
+
+    /**
+     *  A min-heap of the next location of each term that has more:
+     *  the location, the term, and the location's index in the term's
+     *  list.
+     */
+    private final int[] heapLoc;
+    private final int[] heapTerm;
+    private final int[] heapIndex;
+    private int size;
+
+    /**
+     *  The last location of each term that the merge has visited, and
+     *  the smallest distance between each pair of terms (t, u), t < u,
+     *  at pairDistance[t * k + u].
+     */
+    private final int[] lastLoc;
+    private final int[] pairDistance;
+
+    /**
+     *  The results of run:  the reciprocals of the length of the
+     *  shortest span that contains every term and of the average
+     *  pairwise distance between terms, or 0.
+     */
+    double span;
+    double distance;
+
+    PositionMerge (int k) {
+      this.heapLoc = new int[k];
+      this.heapTerm = new int[k];
+      this.heapIndex = new int[k];
+      this.lastLoc = new int[k];
+      this.pairDistance = new int[k * k];
+    }
+
+    /**
+     *  Merge the locations of the terms.
+     *  @param lists The sorted locations of each term, or null if the
+     *  term doesn't occur.
+     */
+    void run (int[][] lists) {
+
+      int k = lists.length;
+
+      this.span = 0;
+      this.distance = 0;
+      this.size = 0;
+
+      Arrays.fill (this.lastLoc, -1);
+      Arrays.fill (this.pairDistance, Integer.MAX_VALUE);
+
+      int max = -1;
+
+      for (int t = 0; t < lists.length; t++) {
+        if (lists[t] != null) {
+          this.push (lists[t][0], t, 0);
+          max = Math.max (max, lists[t][0]);
+        }
+      }
+
+      //  Every term is in the heap until one of them runs out, so until
+      //  then, the heap's smallest location and max bound a span that
+      //  contains every term.
+
+      boolean complete = (lists.length > 0) && (this.size == lists.length);
+      int minSpan = Integer.MAX_VALUE;
+
+      while (this.size > 0) {
+        int loc = this.heapLoc[0];
+        int t = this.heapTerm[0];
+        int next = this.heapIndex[0] + 1;
+
+        if (complete)
+          minSpan = Math.min (minSpan, max - loc + 1);
+
+        //  The closest location of term u before this one is its last
+        //  location, so this finds the closest pair of each two terms.
+
+        for (int u = 0; u < k; u++) {
+          if ((u != t) && (this.lastLoc[u] >= 0)) {
+            int pair = (t < u) ? t * k + u : u * k + t;
+
+            this.pairDistance[pair] =
+              Math.min (this.pairDistance[pair], loc - this.lastLoc[u]);
+          }
+        }
+
+        this.lastLoc[t] = loc;
+
+        //  Replace the term's location with its next one, if any.
+
+        if (next < lists[t].length) {
+          this.heapLoc[0] = lists[t][next];
+          this.heapIndex[0] = next;
+          max = Math.max (max, lists[t][next]);
+        } else {
+          this.size --;
+          this.heapLoc[0] = this.heapLoc[this.size];
+          this.heapTerm[0] = this.heapTerm[this.size];
+          this.heapIndex[0] = this.heapIndex[this.size];
+          complete = false;
+        }
+
+        this.siftDown (0);
+      }
+
+      if (minSpan != Integer.MAX_VALUE)
+        this.span = 1.0 / minSpan;
+
+      long distanceSum = 0;
+      int distances = 0;
+
+      for (int pair = 0; pair < this.pairDistance.length; pair++) {
+        if (this.pairDistance[pair] != Integer.MAX_VALUE) {
+          distanceSum += this.pairDistance[pair];
+          distances ++;
+        }
+      }
+
+      //  Different terms don't share a location, so the average is at
+      //  least 1; the bound only guards against a zero.
+
+      if (distances > 0)
+        this.distance =
+          1.0 / Math.max ((double) distanceSum / distances, 1.0);
+    }
+
+    private void push (int loc, int term, int index) {
+      int i = this.size ++;
+
+      this.heapLoc[i] = loc;
+      this.heapTerm[i] = term;
+      this.heapIndex[i] = index;
+
+      while (i > 0) {
+        int parent = (i - 1) / 2;
+
+        if (this.heapLoc[parent] <= this.heapLoc[i])
+          break;
+
+        this.swap (i, parent);
+        i = parent;
+      }
+    }
+
+    private void siftDown (int i) {
+      while (true) {
+        int child = 2 * i + 1;
+
+        if (child >= this.size)
+          break;
+
+        if ((child + 1 < this.size) &&
+            (this.heapLoc[child + 1] < this.heapLoc[child]))
+          child ++;
+
+        if (this.heapLoc[i] <= this.heapLoc[child])
+          break;
+
+        this.swap (i, child);
+        i = child;
+      }
+    }
+
+    private void swap (int i, int j) {
+      int loc = this.heapLoc[i];
+      int term = this.heapTerm[i];
+      int index = this.heapIndex[i];
+
+      this.heapLoc[i] = this.heapLoc[j];
+      this.heapTerm[i] = this.heapTerm[j];
+      this.heapIndex[i] = this.heapIndex[j];
+      this.heapLoc[j] = loc;
+      this.heapTerm[j] = term;
+      this.heapIndex[j] = index;
+    }
+  }
+}
@@ -403,6 +403,21 @@ public abstract class Qry {
 	 */
 	public abstract void initialize(RetrievalModel r) throws IOException;
 
+	/**
+	 *  Initialize the query operator (and its arguments) from another
+	 *  copy of the same query that is initialized already, without
+	 *  evaluating anything again.  The copies share their inverted
+	 *  lists, but each has its own internal iterators, so they can be
+	 *  iterated by different threads.
+	 *  @param other An initialized query with the same structure.
+	 *  @throws IOException Error accessing the Lucene index.
+	 */
+	public void initializeFrom(Qry other) throws IOException {
+		for (int i = 0; i < this.args.size(); i++) {
+			this.args.get(i).initializeFrom(other.args.get(i));
+		}
+	}
+
 	/**
 	 *  Removes an argument from the list of query operator arguments.
 	 *  @param i The index of the query operator to remove.
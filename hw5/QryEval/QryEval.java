@@ -5,6 +5,7 @@
 
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.*;
 
 import org.apache.lucene.analysis.Analyzer.TokenStreamComponents;
 import org.apache.lucene.analysis.TokenStream;
@@ -55,19 +56,48 @@ public class QryEval {
 
 	private static final EnglishAnalyzerConfigurable ANALYZER =
 			new EnglishAnalyzerConfigurable(Version.LUCENE_43);
-	private static final String[] TEXT_FIELDS =
-		{ "body", "title", "url", "inlink" };
+
+	/**
+	 *  The number of documents that are printed for each query.
+	 */
+	static final int MAX_RESULTS = 100;
+
+	/**
+	 *  The number of threads that evaluate queries concurrently.  Set
+	 *  from the parameter file.
+	 */
+	static int evaluationThreads = 1;
+
+	/**
+	 *  The number of docid ranges that a document-at-a-time query is
+	 *  split into, which are evaluated concurrently by partitionPool.
+	 *  Set from the parameter file.
+	 */
+	static int evaluationPartitions = 1;
+	static ForkJoinPool partitionPool;
+
+	/**
+	 *  If true, a document-at-a-time query is evaluated one index
+	 *  segment (Lucene leaf reader) at a time, concurrently, by
+	 *  segmentPool.  Set from the parameter file; it is false if the
+	 *  index has only one segment.
+	 */
+	static boolean evaluationSegments = false;
+	static ForkJoinPool segmentPool;
+
+	/**
+	 *  The pool that computes learning-to-rank features, if there are
+	 *  several evaluationThreads.
+	 */
+	static ForkJoinPool featurePool;
 	static StringBuilder builder;
 	static PrintWriter outputFile;
-	static HashMap<String,InvList> invListMap = new HashMap<>();
 	static Map<String, String> parameters;
 	static Map<String, Double> pagerankMap;
 	static Map<String, Map<String, Double>> relevanceMap;
-	static Map<String, Map<String,FeatureDocument>> docMap = new HashMap<>();
-	static String currentQuery;
-	static Map<String,Map<String,Double>> maxFeatureMap = new HashMap<>();
-	static Map<String,Map<String,Double>> minFeatureMap = new HashMap<>();
-	static HashSet<Integer> ignoreFeaturesSet = new HashSet<>();
+	static Map<String, Map<String,FeatureDocument>> docMap = new ConcurrentHashMap<>();
+	static Map<String,FeatureRanges> featureRanges = new ConcurrentHashMap<>();
+	static BitSet enabledFeatures = FeatureRegistry.allFeatures();
 	static RetrievalModelBM25 bm25Model;
 	static RetrievalModelIndri indriModel;
 	static HashMap<String,ArrayList<FeatureDocument>> finalScores = new HashMap<>();
@@ -110,6 +140,7 @@ public class QryEval {
 		ANALYZER.setStemmer(EnglishAnalyzerConfigurable.StemmerType.KSTEM);
 
 		Idx.initialize (parameters.get ("indexPath"));
+		initializePostings (parameters);
 		RetrievalModel model = initializeRetrievalModel (parameters);
 
 
@@ -123,13 +154,13 @@ public class QryEval {
 		}
 
 		if(model.isLetor()){
-			createFeatures(parameters.get("letor:trainingQueryFile"), model);
 			if(parameters.containsKey("letor:featureDisable")){
 				String [] ignoreFeaturesArr = parameters.get("letor:featureDisable").split(",");
 				for(String n : ignoreFeaturesArr){
-					ignoreFeaturesSet.add(Integer.parseInt(n));
+					enabledFeatures.clear(Integer.parseInt(n.trim()));
 				}
 			}
+			createFeatures(parameters.get("letor:trainingQueryFile"), model);
 			ArrayList<String> queries = new ArrayList<>();
 			queries.addAll(docMap.keySet());
 			Collections.sort(queries);
@@ -144,7 +175,7 @@ public class QryEval {
 
 			trainSVMModel();
 
-			docMap = new HashMap<>();
+			docMap = new ConcurrentHashMap<>();
 			processQueryFile(parameters.get("queryFilePath"), bm25Model);
 
 			queries = new ArrayList<>();
@@ -183,6 +214,9 @@ public class QryEval {
 			//  Clean up.
 		}
 		timer.stop ();
+		if(InvListCache.isEnabled()){
+			System.out.println (InvListCache.getStatistics());
+		}
 		System.out.println ("Time:  " + timer);
 		outputFile.write(builder.toString().substring(0,builder.length()-1));
 		outputFile.close();
@@ -233,10 +267,12 @@ public class QryEval {
 			boolean isTest){
 		for(String query : queries){
 			if(isTest) finalScores.put(query, new ArrayList<>());
+			FeatureRanges ranges = featureRanges.get(query);
 			for(String doc : docMap.get(query).keySet()){
+				FeatureDocument document = docMap.get(query).get(doc);
 				StringBuilder builder = new StringBuilder();
 				if(isTest){
-					finalScores.get(query).add(docMap.get(query).get(doc));
+					finalScores.get(query).add(document);
 					builder.append(0);
 				}else{
 					builder.append(relevanceMap.get(query).get(doc).intValue());
@@ -244,19 +280,16 @@ public class QryEval {
 				builder.append(" ");
 				builder.append("qid:").append(query).append(" ");
 
-				for(int i =1; i <= 18; i++){
-					if(!ignoreFeaturesSet.contains(i)){
-						String currFeature=  "f"+i;
-						if(docMap.get(query).get(doc).features.containsKey(currFeature)){
-							builder.append(i).append(":");
-							double f = normalizeFeature(maxFeatureMap.get(query).get(currFeature),
-									minFeatureMap.get(query).get(currFeature),
-									docMap.get(query).get(doc).features.get(currFeature));
-							builder.append(f).append(" ");
-						}
+				for(int i = enabledFeatures.nextSetBit(1); i >= 0;
+						i = enabledFeatures.nextSetBit(i + 1)){
+					if(document.hasFeature(i)){
+						builder.append(i).append(":");
+						double f = normalizeFeature(ranges.getMax(i),
+								ranges.getMin(i), document.getFeature(i));
+						builder.append(f).append(" ");
 					}
 				}
-				builder.append("#" ).append(docMap.get(query).get(doc).external_id).append("\n");
+				builder.append("#" ).append(document.external_id).append("\n");
 				featuresFile.write(builder.toString());
 			}
 		}
@@ -264,6 +297,58 @@ public class QryEval {
 	private static double normalizeFeature(double max, double min, double value){
 		return (max != min && value != Double.MAX_VALUE?(value - min)/ (max - min): 0);
 	}
+	/**
+	 * Configure how query operators access inverted lists, using
+	 * parameters from the parameter file.
+	 * @param parameters The parameters from the parameter file.
+	 */
+	private static void initializePostings (Map<String, String> parameters) {
+		QryIopTerm.lazyPostings =
+				"true".equalsIgnoreCase(parameters.get("postings:lazy"));
+		if(parameters.containsKey("postings:skipInterval")){
+			InvList.skipInterval =
+					Integer.parseInt(parameters.get("postings:skipInterval"));
+		}
+		CompressedInvList.compressPostings =
+				"true".equalsIgnoreCase(parameters.get("postings:compress"));
+		TermAtATime.enabled =
+				! "false".equalsIgnoreCase(parameters.get("evaluation:taat"));
+		if(parameters.containsKey("evaluation:threads")){
+			evaluationThreads =
+					Integer.parseInt(parameters.get("evaluation:threads"));
+			if(evaluationThreads > 1){
+				featurePool = new ForkJoinPool(evaluationThreads);
+			}
+		}
+		if(parameters.containsKey("evaluation:partitions")){
+			evaluationPartitions =
+					Integer.parseInt(parameters.get("evaluation:partitions"));
+			if(evaluationPartitions > 1){
+				partitionPool = new ForkJoinPool(evaluationPartitions);
+			}
+		}
+		int leaves = Idx.INDEXREADER.leaves().size();
+		evaluationSegments =
+				"true".equalsIgnoreCase(parameters.get("evaluation:segments")) &&
+				(leaves > 1);
+		if(evaluationSegments){
+			segmentPool = new ForkJoinPool(
+					Math.min(leaves, Runtime.getRuntime().availableProcessors()));
+		}
+		if("true".equalsIgnoreCase(parameters.get("postings:cache"))){
+			long megabytes = 256;
+			if(parameters.containsKey("postings:cacheMB")){
+				megabytes = Long.parseLong(parameters.get("postings:cacheMB"));
+			}
+			InvListCache.Policy policy = InvListCache.Policy.LRU;
+			if(parameters.containsKey("postings:cachePolicy")){
+				policy = InvListCache.Policy.valueOf(
+						parameters.get("postings:cachePolicy").toUpperCase());
+			}
+			InvListCache.initialize(megabytes * 1024L * 1024L, policy);
+		}
+	}
+
 	/**
 	 * Allocate the retrieval model and initialize it using parameters
 	 * from the parameter file.
@@ -285,6 +370,7 @@ public class QryEval {
 			double k_3 = Double.parseDouble(parameters.get("BM25:k_3"));
 			double b = Double.parseDouble(parameters.get("BM25:b"));
 			model = new RetrievalModelBM25(k_1,k_3,b);
+			initializePruning((RetrievalModelBM25) model, parameters);
 		}else if (modelString.equalsIgnoreCase("indri")){
 			int mu = Integer.parseInt(parameters.get("Indri:mu"));
 			double lambda = Double.parseDouble(parameters.get("Indri:lambda"));
@@ -298,6 +384,7 @@ public class QryEval {
 			double b = Double.parseDouble(parameters.get("BM25:b"));
 			bm25Model = new RetrievalModelBM25(k_1,k_3,b);
 			bm25Model.setLetor();
+			initializePruning(bm25Model, parameters);
 			int mu = Integer.parseInt(parameters.get("Indri:mu"));
 			double lambda = Double.parseDouble(parameters.get("Indri:lambda"));
 			indriModel = new RetrievalModelIndri(mu,lambda);
@@ -307,9 +394,44 @@ public class QryEval {
 			throw new IllegalArgumentException
 			("Unknown retrieval model " + parameters.get("retrievalAlgorithm"));
 		}
+
+		//  Collection statistics come from one snapshot that is read
+		//  when the index is opened.
+
+		model.setCollectionStats(Idx.getCollectionStats());
+		if(bm25Model != null) bm25Model.setCollectionStats(Idx.getCollectionStats());
+		if(indriModel != null) indriModel.setCollectionStats(Idx.getCollectionStats());
 		return model;
 	}
 
+	/**
+	 * Enable top-k dynamic pruning for BM25 if the parameter file asks
+	 * for it.
+	 * @param model The BM25 retrieval model.
+	 * @param parameters The parameters from the parameter file.
+	 */
+	private static void initializePruning (RetrievalModelBM25 model,
+			Map<String, String> parameters) {
+		if("true".equalsIgnoreCase(parameters.get("BM25:pruning"))){
+			model.setTopK(resultsRequired());
+		}
+	}
+
+	/**
+	 * The number of documents that must be ranked correctly for each
+	 * query: the number that are printed, or the number of feedback
+	 * documents if that is larger.
+	 * @return The number of documents.
+	 */
+	static int resultsRequired () {
+		int k = MAX_RESULTS;
+		if("true".equalsIgnoreCase(parameters.get("fb")) &&
+				parameters.containsKey("fbDocs")){
+			k = Math.max(k, Integer.parseInt(parameters.get("fbDocs")));
+		}
+		return k;
+	}
+
 	/**
 	 * Optimize the query by removing degenerate nodes produced during
 	 * query parsing, for example '#NEAR/1 (of the)' which turns into 
@@ -369,7 +491,6 @@ public class QryEval {
 	 *          A query tree
 	 * @throws IOException Error accessing the Lucene index.
 	 */
-	static Stack<Qry> opStack;
 	static Qry parseQuery(String qString, RetrievalModel model) throws IOException {
 
 		//  Add a default query operator to every query. This is a tiny
@@ -388,7 +509,7 @@ public class QryEval {
 		//  the parser's state.
 
 		Qry currentOp = null;
-		opStack = new Stack<Qry>();
+		Stack<Qry> opStack = new Stack<Qry>();
 		Stack<Qry> weightStack = new Stack<Qry>();
 
 		//  Each pass of the loop processes one token. The query operator
@@ -424,51 +545,51 @@ public class QryEval {
 			} else if (token.equalsIgnoreCase("#or")) {
 				currentOp = new QrySopOr ();
 				currentOp.setDisplayName (token);
-				setWeight();
+				setWeight(opStack);
 				opStack.push(currentOp);
 			}else if (token.equalsIgnoreCase("#and")){
 				currentOp = new QrySopAnd ();
 				currentOp.setDisplayName (token);
-				setWeight();
+				setWeight(opStack);
 				opStack.push(currentOp);
 			}else if (token.equalsIgnoreCase("#wand")){
 				currentOp = new QrySopWAnd ();
 				currentOp.setDisplayName (token);
-				setWeight();
+				setWeight(opStack);
 				opStack.push(currentOp);
-				setWeight();
+				setWeight(opStack);
 			} else if (token.equalsIgnoreCase("#syn")) {
 				currentOp = new QryIopSyn();
 				currentOp.setDisplayName (token);
-				setWeight();
+				setWeight(opStack);
 				opStack.push(currentOp);
 			}else if (token.equalsIgnoreCase("#sum")){
 				currentOp = new QrySopSum();
 				currentOp.setDisplayName (token);
-				setWeight();
+				setWeight(opStack);
 				opStack.push(currentOp);
 			}else if (token.equalsIgnoreCase("#wsum")){
 				currentOp = new QrySopWSum ();
 				currentOp.setDisplayName (token);
-				setWeight();
+				setWeight(opStack);
 				opStack.push(currentOp);
-				setWeight();
+				setWeight(opStack);
 			}else if (token.split("/")[0].equalsIgnoreCase("#near")){
 				String [] operation = token.split("/");
 				currentOp = new QryIopNear(Integer.parseInt(operation[1]));
 				currentOp.setDisplayName (operation[0]);
-				setWeight();
+				setWeight(opStack);
 				opStack.push(currentOp);
 			} else if (token.split("/")[0].equalsIgnoreCase("#window")){
 				String [] operation = token.split("/");
 				currentOp = new QryIopWindow(Integer.parseInt(operation[1]));
 				currentOp.setDisplayName (operation[0]);
-				setWeight();
+				setWeight(opStack);
 				opStack.push(currentOp);
 			} else {
 
 				if(opStack.peek().expectWeight && 
-						(isWeightedOp())){
+						(isWeightedOp(opStack))){
 					try
 					{	
 						double w = Double.parseDouble(token);
@@ -510,13 +631,13 @@ public class QryEval {
 				//  multiple terms (e.g., "near" and "death").
 
 				String t[] = tokenizeQuery(term);
-				if(t.length == 0 && isWeightedOp()){
+				if(t.length == 0 && isWeightedOp(opStack)){
 					QrySop curr = (QrySop) opStack.peek();
 					curr.weights.remove(curr.weights.size()-1);
 				}
-				setWeight();
+				setWeight(opStack);
 				for (int j = 0; j < t.length; j++) {
-					if (isWeightedOp() && j > 0){
+					if (isWeightedOp(opStack) && j > 0){
 						QrySop curr = (QrySop) opStack.peek();
 						curr.weights.add(curr.weights.get(curr.weights.size()-1));
 					}
@@ -525,11 +646,6 @@ public class QryEval {
 					currentOp.appendArg (termOp);
 				}
 
-				//Creates an InvList for that field being queried
-				if(!invListMap.containsKey(field)){
-					invListMap.put(field, new InvList(field));
-				}
-
 			}
 		}
 
@@ -542,10 +658,10 @@ public class QryEval {
 
 		return currentOp;
 	}
-	public static void setWeight(){
-		if(!opStack.isEmpty() && isWeightedOp()) opStack.peek().expectWeight = true;
+	public static void setWeight(Stack<Qry> opStack){
+		if(!opStack.isEmpty() && isWeightedOp(opStack)) opStack.peek().expectWeight = true;
 	}
-	public static boolean isWeightedOp(){
+	public static boolean isWeightedOp(Stack<Qry> opStack){
 		return (opStack.peek() instanceof QrySopWAnd || opStack.peek() instanceof QrySopWSum);
 	}
 	/**
@@ -566,153 +682,91 @@ public class QryEval {
 		System.out.println("Memory used:  "
 				+ ((runtime.totalMemory() - runtime.freeMemory()) / (1024L * 1024L)) + " MB");
 	}
-	private static HashSet<String> getTerms(Qry q){
-		HashSet<String> queryTerms = new HashSet<>();
-		for(Qry arg : q.args){
-			while(arg.args.size() > 0){
-				arg = arg.args.get(0);
-			}
-			String s = arg.toString();
-			s = s.replace(".body", "");
-
-			queryTerms.add(s.trim());
-		}
-		return queryTerms;
-	}
-	static void computeIndri(FeatureDocument doc, String field, String indriFeature, Qry q,
-			RetrievalModelIndri indriModel) throws IOException{
-
-		TermVector stemvector =  new TermVector(doc.internal_id, field);
-		HashSet<String> queryTerms;
-		HashSet<String> seenTerms = new HashSet<>();
-
-		double score = 1.0;
-		queryTerms = getTerms(q);
-		seenTerms.addAll(queryTerms);
-		if(Idx.getFieldLength(field, doc.internal_id) == 0){
-			doc.addFeatureValue(indriFeature, Double.MAX_VALUE);
-			return;
-		}
-		for(String term : queryTerms){
-			if (stemvector.positionsLength() == 0){
-				break;
-			}
+	/**
+	 * Start computing the features of documents for a query.  The
+	 * documents are split into one batch per thread, and the batches
+	 * are computed by featurePool, or by this thread if there is no
+	 * pool.
+	 * @param qid The query id.
+	 * @param q The query.
+	 * @param extIds The external ids of the documents.
+	 * @param docids The internal ids of the documents, or null if they
+	 * must be looked up.
+	 * @param ignoreErrors True if documents whose features can't be
+	 * computed are skipped.
+	 * @return The batches, in document order.
+	 * @throws IOException Error accessing the Lucene index.
+	 */
+	static List<Future<FeatureBatch>> submitFeatures(String qid, Qry q,
+			List<String> extIds, int[] docids, boolean ignoreErrors)
+			throws IOException {
 
-			int i = stemvector.indexOfStem(term);
-			int tf = 0;
-			if (i != -1){
-				tf = stemvector.stemFreq(i);
-				seenTerms.remove(term);
+		List<Future<FeatureBatch>> batches = new ArrayList<>();
+		List<FeatureExtractor> extractors =
+				FeatureRegistry.createExtractors(q, enabledFeatures);
+		int threads = (featurePool == null) ? 1 : evaluationThreads;
+		int batchSize = Math.max(1, (extIds.size() + threads - 1) / threads);
+
+		for(int i = 0; i < extIds.size(); i += batchSize){
+			FeatureBatch batch = new FeatureBatch(qid, extractors,
+					enabledFeatures, ignoreErrors);
+			for(int j = i; j < Math.min(i + batchSize, extIds.size()); j++){
+				batch.add(extIds.get(j), (docids == null) ? -1 : docids[j]);
 			}
-
-			long ctf = Idx.INDEXREADER.totalTermFreq (new Term (field, new BytesRef (term))); //Corpus term frequency
-			long cLen = 0; //sum of all term frequencies of terms in this field
-			int docLen = 0;
-			try {
-				cLen = Idx.getSumOfFieldLengths(field);
-				docLen = Idx.getFieldLength(field,doc.internal_id);
-			} catch (IOException e) {
-				e.printStackTrace();
+			if(featurePool != null){
+				batches.add(featurePool.submit(batch));
+			}else{
+				FutureTask<FeatureBatch> task = new FutureTask<>(batch);
+				task.run();
+				batches.add(task);
 			}
-			double p_q_c = ((double)ctf)/cLen;//probability P(t|C)
-
-			double p =  (1-indriModel.lambda)*((tf + indriModel.mu*p_q_c)/(docLen + indriModel.mu)) +
-					indriModel.lambda*p_q_c;
-			score*=Math.pow(p, 1.0/queryTerms.size());
 		}
-
-
-		if(seenTerms.size() == queryTerms.size()) score = 0.0;
-		doc.addFeatureValue(indriFeature, score);
-
+		return batches;
 	}
 
+	/**
+	 * Wait for the feature batches of a query, and add their documents
+	 * to docMap and their feature ranges to featureRanges, in document
+	 * order.
+	 * @param qid The query id.
+	 * @param batches The batches, from submitFeatures.
+	 * @throws Exception Error computing features.
+	 */
+	static void addFeatures(String qid, List<Future<FeatureBatch>> batches)
+			throws Exception {
 
-	static void computeBM25(FeatureDocument doc, String field, String bM25Features, Qry q,
-			String queryOverlapFeatures,RetrievalModelBM25 bm25model) throws IOException{
-
-		TermVector stemvector =  new TermVector(doc.internal_id, field);
-		HashSet<String> queryTerms;
-		HashSet<String> seenTerms = new HashSet<>();
-
-		double score = 0.0;
-		queryTerms = getTerms(q);
-		seenTerms.addAll(queryTerms);
-		double overlap = 0;
-		if(Idx.getFieldLength(field, doc.internal_id) == 0){
-			doc.addFeatureValue(queryOverlapFeatures, Double.MAX_VALUE);
-			doc.addFeatureValue(bM25Features, Double.MAX_VALUE);
-			return;
-		}
-		for(String term : queryTerms){
-			if (stemvector.positionsLength() == 0){
-				break;
-			}
-			int i = stemvector.indexOfStem(term);
-			int tf = 0;
-			if (i != -1){
-				overlap++;
-				tf = stemvector.stemFreq(i);
-				seenTerms.remove(term);
-			}else{
-				continue;
-			}
-			int docLen = Idx.getFieldLength(field, doc.internal_id);
-			int df = stemvector.stemDf(i);
-			long N = Idx.getNumDocs();
-			double qtf = 1.0;
-			double averageDocLen = 0.0;
-		
-			if(bm25model.containsField(field)){
-				averageDocLen = bm25model.getAverageDocLen(field);
-			}else{
-				averageDocLen = Idx.getSumOfFieldLengths(field) /
-						(float) Idx.getDocCount (field);
-				bm25model.addAverageDocLen(field, averageDocLen);
-			}
-			score+= Math.max(0, Math.log((N + 0.5 - df)/(df+0.5)))*
-					(tf/(tf+bm25model.getK1()*(1-bm25model.getB()+bm25model.getB()*docLen/averageDocLen)))*
-					((bm25model.getK3()+1)*qtf/(bm25model.getK3()+qtf));
-		}
-		
-		overlap = overlap / queryTerms.size();
-
-		doc.addFeatureValue(queryOverlapFeatures, overlap);
-		if(seenTerms.size() == queryTerms.size()) score = 0.0;
-		doc.addFeatureValue(bM25Features, score);
+		FeatureRanges ranges = new FeatureRanges();
 
-	}
-	static void createFeaturesQryDoc(Qry q, String extId) throws IOException{
-		FeatureDocument current = docMap.get(QryEval.currentQuery).get(extId);
-		String [] BM25Features = new String[]{"f5","f8","f11","f14"};
-		String [] queryBM25OverlapFeatures = new String[]{"f7","f10","f13","f16"};
-		String [] indriFeatures = new String[]{"f6","f9","f12","f15"};
-		for(int i = 0 ; i < TEXT_FIELDS.length;i++){
-			computeBM25(current,TEXT_FIELDS[i],BM25Features[i],q,queryBM25OverlapFeatures[i],
-					bm25Model);
-			computeIndri(current,TEXT_FIELDS[i],indriFeatures[i],q,indriModel);
+		if(!batches.isEmpty() && !docMap.containsKey(qid)){
+			docMap.put(qid, new HashMap<>());
 		}
-	}
-	static void createQueryFeatures(Qry q){
-
-		for(String extId: relevanceMap.get(currentQuery).keySet()){
-			if(!docMap.containsKey(QryEval.currentQuery)){
-				docMap.put(QryEval.currentQuery, new HashMap<>());
-			}
-			try{
-				docMap.get(QryEval.currentQuery).put(extId, new FeatureDocument(QryEval.currentQuery,
-						extId, Idx.getInternalDocid(extId)));
 
-				createFeaturesQryDoc(q,extId);
-
-			}catch(Exception e){
-				
+		for(Future<FeatureBatch> future : batches){
+			FeatureBatch batch = getResult(future);
+			for(FeatureDocument doc : batch.documents){
+				docMap.get(qid).put(doc.external_id, doc);
 			}
+			ranges.merge(batch.ranges);
+		}
+		if(featureRanges.containsKey(qid)){
+			featureRanges.get(qid).merge(ranges);
+		}else{
+			featureRanges.put(qid, ranges);
 		}
 	}
 
+	/**
+	 * Compute the features of the judged documents of the training
+	 * queries.  The features of several queries are computed at once;
+	 * each query's are added in query file order.
+	 * @param queryFilePath The training query file.
+	 * @param model The retrieval model.
+	 * @throws IOException Error accessing the Lucene index.
+	 */
 	static void createFeatures(String queryFilePath, RetrievalModel model) throws IOException{
 		BufferedReader input = null;
+		ArrayDeque<QueryContext> pending = new ArrayDeque<>();
+		int maxPending = 4 * evaluationThreads;
 
 		try {
 			String qLine = null;
@@ -731,13 +785,19 @@ public class QryEval {
 
 				String qid = qLine.substring(0, d);
 				String query = qLine.substring(d + 1);
-				currentQuery = qid.trim();
 				Qry q = parseQuery(query, model);
 				q = optimizeQuery (q);
 
-				createQueryFeatures(q);
-
+				QueryContext context = new QueryContext(qid.trim(), query, model);
+				context.featureBatches = submitFeatures(context.qid, q,
+						new ArrayList<>(relevanceMap.get(context.qid).keySet()),
+						null, true);
+				pending.add(context);
 
+				if(pending.size() >= maxPending){
+					context = pending.remove();
+					addFeatures(context.qid, context.featureBatches);
+				}
 			}
 		} catch (IOException ex) {
 			ex.printStackTrace();
@@ -746,6 +806,17 @@ public class QryEval {
 		} finally {
 			input.close();
 		}
+
+		//  The queries that were read before an error are complete.
+
+		try {
+			while(! pending.isEmpty()){
+				QueryContext context = pending.remove();
+				addFeatures(context.qid, context.featureBatches);
+			}
+		} catch (Exception e) {
+			e.printStackTrace();
+		}
 	}
 
 
@@ -773,16 +844,39 @@ public class QryEval {
 
 			if (q.args.size () > 0) {		// Ignore empty queries
 
-				q.initialize (model);
+				//  The evaluation strategy depends on the shape of the query.
+				//  A flat BM25 #SUM only needs to rank the top k documents
+				//  correctly, so most documents can be skipped.  Other flat
+				//  queries are evaluated term-at-a-time.  Structured queries
+				//  are evaluated document-at-a-time, possibly one index
+				//  segment or several docid ranges at once.  Segments are
+				//  initialized separately, so the query is only initialized
+				//  here for the other strategies.
+
+				boolean pruneBM25 = (model instanceof RetrievalModelBM25) &&
+						(((RetrievalModelBM25) model).getTopK() > 0) &&
+						(q instanceof QrySopSum) &&
+						((QrySopSum) q).canPruneBM25(model);
+				boolean taat = TermAtATime.canEvaluate(q, model);
+
+				boolean segments = evaluationSegments && ! pruneBM25 && ! taat;
+
+				if (! segments) {
+					q.initialize (model);
+				}
 
-				while (q.docIteratorHasMatch (model)) {
-					int docid = q.docIteratorGetMatch ();
-					if(model instanceof RetrievalModelIndri){
-						((RetrievalModelIndri)model).currentDoc = docid;
-					}
-					double score = ((QrySop) q).getScore (model);
-					r.add (docid, score);
-					q.docIteratorAdvancePast (docid);
+				if (pruneBM25) {
+					r = ((QrySopSum) q).getTopKBM25(model,
+							((RetrievalModelBM25) model).getTopK());
+				} else if (taat) {
+					r = TermAtATime.evaluate(q, model, resultsRequired());
+				} else if (segments) {
+					r = evaluateSegments(qString, q, model, resultsRequired());
+				} else if (evaluationPartitions > 1) {
+					r = evaluatePartitions(qString, q, model, resultsRequired());
+				} else {
+					r = evaluateRange(q, model, 0, Integer.MAX_VALUE,
+							resultsRequired());
 				}
 			}
 
@@ -794,22 +888,267 @@ public class QryEval {
 	}
 
 	/**
-	 * Process the query file.
+	 * Evaluate an initialized query document-at-a-time, for the
+	 * documents in a docid range.
+	 * @param q The query.
+	 * @param model The retrieval model.
+	 * @param start The first docid of the range.
+	 * @param end The docid after the range.
+	 * @param k The number of documents that must be ranked correctly.
+	 * @return The unsorted scores of the documents that can be in the
+	 * top k of the range.
+	 * @throws IOException Error accessing the Lucene index.
+	 */
+	static ScoreList evaluateRange(Qry q, RetrievalModel model,
+			int start, int end, int k) throws IOException {
+
+		QryScorer scorer = ((QrySop) q).compile (model);
+		TopKCollector collector = new TopKCollector (k);
+
+		if (start > 0) {
+			q.docIteratorAdvanceTo (start);
+		}
+
+		while (q.docIteratorHasMatch (model)) {
+			int docid = q.docIteratorGetMatch ();
+			if (docid >= end) {
+				break;
+			}
+			double score = scorer.score (docid);
+			collector.collect (docid, score);
+			q.docIteratorAdvancePast (docid);
+		}
+		return collector.getScoreList ();
+	}
+
+	/**
+	 * Evaluate a query document-at-a-time in evaluationPartitions docid
+	 * ranges concurrently, and merge the top k documents of the ranges.
+	 * The query is initialized once.  Each other range has its own copy
+	 * of the query tree, which shares the inverted lists of the first
+	 * tree (initializeFrom) but has its own iterators, and starts at the
+	 * range's first docid.  Statistics such as the df of a #NEAR are
+	 * those of the one tree, so each document gets the same score as it
+	 * does in a sequential evaluation.
+	 * @param qString The query string.
+	 * @param q The query, parsed and initialized.  It is used for the
+	 * first range.
+	 * @param model The retrieval model.
+	 * @param k The number of documents that must be ranked correctly.
+	 * @return The unsorted scores of the documents that can be in the
+	 * top k.
+	 * @throws Exception Error evaluating the query.
+	 */
+	static ScoreList evaluatePartitions(final String qString, final Qry q,
+			final RetrievalModel model, final int k) throws Exception {
+
+		int maxDoc = Idx.INDEXREADER.maxDoc();
+		List<Callable<ScoreList>> tasks = new ArrayList<>();
+
+		for (int i = 0; i < evaluationPartitions; i++) {
+			final int start = (int) ((long) maxDoc * i / evaluationPartitions);
+			final int end = (i == evaluationPartitions - 1) ? Integer.MAX_VALUE :
+				(int) ((long) maxDoc * (i + 1) / evaluationPartitions);
+
+			//  The copies are made before any range is evaluated, so
+			//  that nothing reads q while its iterators move.
+
+			final Qry partition;
+			if (i == 0) {
+				partition = q;
+			} else {
+				partition = optimizeQuery (parseQuery(qString, model));
+				partition.initializeFrom (q);
+			}
+
+			tasks.add(new Callable<ScoreList>() {
+				public ScoreList call() throws Exception {
+					return evaluateRange(partition, model, start, end, k);
+				}
+			});
+		}
+
+		TopKCollector merged = new TopKCollector (k);
+
+		for (Future<ScoreList> future : partitionPool.invokeAll(tasks)) {
+			ScoreList partial = getResult(future);
+			for (int i = 0; i < partial.size(); i++) {
+				merged.collect (partial.getDocid(i), partial.getDocidScore(i));
+			}
+		}
+		return merged.getScoreList ();
+	}
+
+	/**
+	 * Evaluate a query document-at-a-time one index segment at a time,
+	 * concurrently, and merge the top k documents of the segments.
+	 * Each segment has its own copy of the query tree, whose terms read
+	 * the segment's postings directly from its leaf reader instead of
+	 * through MultiFields.  Docids stay those of the whole index.
+	 * <p>
+	 * A segment's operators only see the segment's documents, so their
+	 * df, ctf and largest tf are replaced by the sums (or the maximum)
+	 * over the segments before any document is scored.  These are the
+	 * statistics of the whole index, and field lengths come from the
+	 * CollectionStats as usual, so each document gets the same score as
+	 * it does in a sequential evaluation.
+	 * </p>
+	 * @param qString The query string.
+	 * @param q The query, parsed but not initialized.  It is used for
+	 * the first segment.
+	 * @param model The retrieval model.
+	 * @param k The number of documents that must be ranked correctly.
+	 * @return The unsorted scores of the documents that can be in the
+	 * top k.
+	 * @throws Exception Error evaluating the query.
+	 */
+	static ScoreList evaluateSegments(final String qString, final Qry q,
+			final RetrievalModel model, final int k) throws Exception {
+
+		final List<AtomicReaderContext> leaves = Idx.INDEXREADER.leaves();
+		final Qry[] trees = new Qry[leaves.size()];
+		List<Callable<Qry>> initializers = new ArrayList<>();
+
+		for (int i = 0; i < trees.length; i++) {
+			final int leaf = i;
+
+			initializers.add(new Callable<Qry>() {
+				public Qry call() throws Exception {
+					Qry tree = q;
+					if (leaf > 0) {
+						tree = optimizeQuery (parseQuery(qString, model));
+					}
+					setLeaf(tree, leaves.get(leaf));
+					tree.initialize (model);
+					return tree;
+				}
+			});
+		}
+
+		List<Future<Qry>> initialized = segmentPool.invokeAll(initializers);
+		for (int i = 0; i < trees.length; i++) {
+			trees[i] = getResult(initialized.get(i));
+		}
+
+		//  The trees have the same shape, so the operators of the
+		//  segments line up.  Only the statistics that the operators'
+		//  parents use are combined; streaming operators have none.
+
+		List<List<QryIop>> operators = new ArrayList<>();
+		for (Qry tree : trees) {
+			List<QryIop> list = new ArrayList<>();
+			getQryIops(tree, list);
+			operators.add(list);
+		}
+
+		for (int j = 0; j < operators.get(0).size(); j++) {
+			if (! operators.get(0).get(j).statisticsRequired) {
+				continue;
+			}
+
+			int df = 0;
+			int ctf = 0;
+			int maxTf = 0;
+
+			for (List<QryIop> list : operators) {
+				QryIop op = list.get(j);
+				df += op.getDf();
+				ctf += op.getCtf();
+				maxTf = Math.max(maxTf, op.getMaxTf());
+			}
+
+			for (List<QryIop> list : operators) {
+				list.get(j).setGlobalStatistics(df, ctf, maxTf);
+			}
+		}
+
+		List<Callable<ScoreList>> tasks = new ArrayList<>();
+
+		for (int i = 0; i < trees.length; i++) {
+			final Qry tree = trees[i];
+			final int start = leaves.get(i).docBase;
+			final int end = start + leaves.get(i).reader().maxDoc();
+
+			tasks.add(new Callable<ScoreList>() {
+				public ScoreList call() throws Exception {
+					return evaluateRange(tree, model, start, end, k);
+				}
+			});
+		}
+
+		TopKCollector merged = new TopKCollector (k);
+
+		for (Future<ScoreList> future : segmentPool.invokeAll(tasks)) {
+			ScoreList partial = getResult(future);
+			for (int i = 0; i < partial.size(); i++) {
+				merged.collect (partial.getDocid(i), partial.getDocidScore(i));
+			}
+		}
+		return merged.getScoreList ();
+	}
+
+	/**
+	 * Restrict the terms of a query to one index segment.
+	 * @param q The query, before it is initialized.
+	 * @param leaf The index segment.
+	 */
+	static void setLeaf(Qry q, AtomicReaderContext leaf) {
+		if (q instanceof QryIopTerm) {
+			((QryIopTerm) q).setLeaf(leaf);
+		}
+		for (Qry arg : q.args) {
+			setLeaf(arg, leaf);
+		}
+	}
+
+	/**
+	 * Get the inverted list operators of a query, in preorder.
+	 * @param q The query.
+	 * @param list The list that the operators are added to.
+	 */
+	static void getQryIops(Qry q, List<QryIop> list) {
+		if (q instanceof QryIop) {
+			list.add((QryIop) q);
+		}
+		for (Qry arg : q.args) {
+			getQryIops(arg, list);
+		}
+	}
+
+	/**
+	 * Process the query file.  Queries are evaluated concurrently by
+	 * evaluationThreads worker threads, and their results are written
+	 * in query file order.  If a query fails, the run fails; results
+	 * are never silently truncated.
 	 * @param queryFilePath
 	 * @param model
-	 * @throws IOException Error accessing the Lucene index.
+	 * @throws Exception Error reading the query file, or a query failed.
+	 * The error names the query.
 	 */
 	static void processQueryFile(String queryFilePath,RetrievalModel model)
-			throws IOException {
+			throws Exception {
 
 		BufferedReader input = null;
+		ExecutorService pool = null;
 
 		try {
 			String qLine = null;
 
 			input = new BufferedReader(new FileReader(queryFilePath));
 
-			//  Each pass of the loop processes one query.
+			//  Queries that were submitted to the pool, in query file
+			//  order.  A few queries per thread are kept in flight, so
+			//  that the threads don't wait for a slow query's results
+			//  to be written.
+
+			ArrayDeque<Future<QueryContext>> pending = new ArrayDeque<>();
+			int maxPending = 4 * evaluationThreads;
+
+			if(evaluationThreads > 1){
+				pool = Executors.newFixedThreadPool(evaluationThreads);
+			}
+
+			//  Each pass of the loop reads one query.
 
 			while ((qLine = input.readLine()) != null) {
 				int d = qLine.indexOf(':');
@@ -821,180 +1160,263 @@ public class QryEval {
 
 				printMemoryUsage(false);
 
-				String qid = qLine.substring(0, d);
-				String query = qLine.substring(d + 1);
-				currentQuery = qid.trim();
-
-				ScoreList r = null;
+				final QueryContext context = new QueryContext(
+						qLine.substring(0, d), qLine.substring(d + 1), model);
 
-				if(model.isLetor()){
+				if(pool == null){
+					writeResults(evaluateQueryOrFail(context));
+					continue;
+				}
 
-					r = processQuery(query, model);
-					r.truncate(100);
-					if(!docMap.containsKey(currentQuery)){
-						docMap.put(currentQuery, new HashMap<>());
+				pending.add(pool.submit(new Callable<QueryContext>() {
+					public QueryContext call() throws Exception {
+						return evaluateQueryOrFail(context);
 					}
-					Qry q = parseQuery(query, model);
-					q = optimizeQuery (q);
+				}));
 
+				if(pending.size() >= maxPending){
+					writeResults(getResult(pending.remove()));
+				}
+			}
 
-					for(int i =0; i < r.size(); i++){
-						String ext = Idx.getExternalDocid(r.getDocid(i));
-						docMap.get(currentQuery).put(ext, new FeatureDocument(currentQuery,
-								ext,r.getDocid(i)));
-						createFeaturesQryDoc(q,ext);
-					}
+			while(! pending.isEmpty()){
+				writeResults(getResult(pending.remove()));
+			}
+		} finally {
+			if(pool != null){
+				pool.shutdownNow();
+			}
+			if(input != null){
+				input.close();
+			}
+		}
+	}
 
-				}else if(!parameters.containsKey("fb") || parameters.get("fb").equals("false")){
-					r = processQuery(query, model);
-					if (r != null) {
-						printResults(qid, r);
-					}
-				}else{
-					String f = "body";
-					//else, create an arraylist of top documents from either the original query or the 
-					//given files and a map from docid to weight.
-					ArrayList<Integer> topDocsList = new ArrayList<>();
-					HashMap<String,TopTerm> topTermsMap = new HashMap<>();
-					int fbDocs = Integer.parseInt(parameters.get("fbDocs"));
-					HashMap<Integer,Double> docScoreMap = new HashMap<>();
-
-					int fbTerms = Integer.parseInt(parameters.get("fbTerms"));
-					if(!parameters.containsKey("fbInitialRankingFile")){
-						r = processQuery(query, model);
-						for(int i = 0; i < fbDocs;i++){
-							topDocsList.add(r.getDocid(i));
-							docScoreMap.put(r.getDocid(i), r.getDocidScore(i));
-							TermVector termVector = new TermVector(r.getDocid(i),f);
-							for(int j = 0; j < termVector.stemsLength();j++){
-								if(termVector.stemString(j) == null || termVector.stemString(j).contains(".") || 
-										termVector.stemString(j).contains(",")){
-									continue;
-								}
-								if(!topTermsMap.containsKey(termVector.stemString(j))) topTermsMap.put(termVector.stemString(j), 
-										new TopTerm(termVector.stemString(j),0.0,
-												termVector.totalStemFreq(j)));
-							}
-						}
-					}else{
+	/**
+	 * Evaluate one query from the query file, and name the query in
+	 * any error, so that a failed run says which query failed.
+	 * @param context The query.
+	 * @return The query's context, which has its results.
+	 * @throws Exception Error evaluating the query.
+	 */
+	private static QueryContext evaluateQueryOrFail(QueryContext context)
+			throws Exception {
+		try {
+			evaluateQuery(context);
+			return context;
+		} catch (Exception e) {
+			throw new Exception("Query " + context.qid + " failed:  " + e, e);
+		}
+	}
 
-						File fbInitialRankingFile = new File (parameters.get("fbInitialRankingFile"));
+	/**
+	 * Wait for a task that a worker thread runs.
+	 * @param future The task's future.
+	 * @return The task's result.
+	 * @throws Exception The error that the task threw.
+	 */
+	private static <T> T getResult(Future<T> future)
+			throws Exception {
+		try {
+			return future.get();
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof Exception) {
+				throw (Exception) e.getCause();
+			}
+			throw e;
+		}
+	}
 
-						if (! fbInitialRankingFile.canRead ()) {
-							throw new IllegalArgumentException
-							("Can't read " + fbInitialRankingFile);
-						}
-						Scanner scan = new Scanner(fbInitialRankingFile);
-						String line = null;
-						for(int i = 0; i < fbDocs;i++){
-							if(scan.hasNextLine()){
-								line = scan.nextLine();
-								String[] values = line.split (" ");
-								int internalId = Idx.getInternalDocid(values[2]);
-								topDocsList.add(internalId);
-								TermVector termVector = new TermVector(internalId,f);
-								for(int j = 0; j < termVector.stemsLength();j++){
-									if(termVector.stemString(j) == null || termVector.stemString(j).contains(".") || 
-											termVector.stemString(j).contains(",")){
-										continue;
-									}
-									if(!topTermsMap.containsKey(termVector.stemString(j))) topTermsMap.put(termVector.stemString(j), 
-											new TopTerm(termVector.stemString(j),0.0,
-													termVector.totalStemFreq(j)));
-								}
-								docScoreMap.put(internalId, 
-										Double.parseDouble(values[4]));
-							}else{
-								break;
-							}
-						}
+	/**
+	 * Evaluate one query from the query file.  Everything that the query
+	 * writes is kept in its context, so this method may be called by
+	 * several threads at once.
+	 * @param context The query.
+	 * @throws Exception Error evaluating the query.
+	 */
+	static void evaluateQuery(QueryContext context) throws Exception {
 
-						scan.close();
+		String qid = context.qid;
+		String query = context.query;
+		RetrievalModel model = context.model;
+		String currentQuery = qid.trim();
 
-					}
-					HashMap<String,Long> fieldLenMap = new HashMap<>();
+		ScoreList r = null;
+
+		if(model.isLetor()){
 
-					int mu = Integer.parseInt(parameters.get("fbMu"));
-					for(int doc : topDocsList){
-						if(!fieldLenMap.containsKey(f)){
-							fieldLenMap.put(f, Idx.getSumOfFieldLengths(f));
+			r = processQuery(query, model);
+			r.truncate(MAX_RESULTS);
+			if(!docMap.containsKey(currentQuery)){
+				docMap.put(currentQuery, new HashMap<>());
+			}
+			Qry q = parseQuery(query, model);
+			q = optimizeQuery (q);
+
+
+			List<String> extIds = new ArrayList<>();
+			int[] docids = new int[r.size()];
+			for(int i =0; i < r.size(); i++){
+				extIds.add(r.getExternalDocid(i));
+				docids[i] = r.getDocid(i);
+			}
+			addFeatures(currentQuery,
+					submitFeatures(currentQuery, q, extIds, docids, false));
+
+		}else if(!parameters.containsKey("fb") || parameters.get("fb").equals("false")){
+			r = processQuery(query, model);
+			if (r != null) {
+				printResults(context, r);
+			}
+		}else{
+			String f = "body";
+			//else, create an arraylist of top documents from either the original query or the 
+			//given files and a map from docid to weight.
+			ArrayList<Integer> topDocsList = new ArrayList<>();
+			HashMap<String,TopTerm> topTermsMap = new HashMap<>();
+			int fbDocs = Integer.parseInt(parameters.get("fbDocs"));
+			HashMap<Integer,Double> docScoreMap = new HashMap<>();
+
+			int fbTerms = Integer.parseInt(parameters.get("fbTerms"));
+			if(!parameters.containsKey("fbInitialRankingFile")){
+				r = processQuery(query, model);
+				for(int i = 0; i < fbDocs;i++){
+					topDocsList.add(r.getDocid(i));
+					docScoreMap.put(r.getDocid(i), r.getDocidScore(i));
+					TermVector termVector = new TermVector(r.getDocid(i),f);
+					for(int j = 0; j < termVector.stemsLength();j++){
+						if(termVector.stemString(j) == null || termVector.stemString(j).contains(".") || 
+								termVector.stemString(j).contains(",")){
+							continue;
 						}
-						long fieldlen = fieldLenMap.get(f);
-						long docFieldLen = Idx.getFieldLength(f, doc);
-						TermVector termVector = new TermVector(doc,f);
-						for(int i = 0; i < termVector.stemsLength();i++){
-							if(!topTermsMap.containsKey(termVector.stemString(i))) {
+						if(!topTermsMap.containsKey(termVector.stemString(j))) topTermsMap.put(termVector.stemString(j), 
+								new TopTerm(termVector.stemString(j),0.0,
+										termVector.totalStemFreq(j)));
+					}
+				}
+			}else{
+
+				File fbInitialRankingFile = new File (parameters.get("fbInitialRankingFile"));
+
+				if (! fbInitialRankingFile.canRead ()) {
+					throw new IllegalArgumentException
+					("Can't read " + fbInitialRankingFile);
+				}
+				Scanner scan = new Scanner(fbInitialRankingFile);
+				String line = null;
+				for(int i = 0; i < fbDocs;i++){
+					if(scan.hasNextLine()){
+						line = scan.nextLine();
+						String[] values = line.split (" ");
+						int internalId = Idx.getInternalDocid(values[2]);
+						topDocsList.add(internalId);
+						TermVector termVector = new TermVector(internalId,f);
+						for(int j = 0; j < termVector.stemsLength();j++){
+							if(termVector.stemString(j) == null || termVector.stemString(j).contains(".") || 
+									termVector.stemString(j).contains(",")){
 								continue;
 							}
+							if(!topTermsMap.containsKey(termVector.stemString(j))) topTermsMap.put(termVector.stemString(j), 
+									new TopTerm(termVector.stemString(j),0.0,
+											termVector.totalStemFreq(j)));
+						}
+						docScoreMap.put(internalId, 
+								Double.parseDouble(values[4]));
+					}else{
+						break;
+					}
+				}
 
-							//For each documents and field, compute score for each term
-							//and add to global score
+				scan.close();
 
-							double tf = (termVector.stemFreq(i) + mu* 
-									((double)termVector.totalStemFreq(i))/fieldlen)/(docFieldLen + mu);
+			}
+			HashMap<String,Long> fieldLenMap = new HashMap<>();
 
-							double s = tf * docScoreMap.get(doc)*
-									Math.log(fieldlen/((double)termVector.totalStemFreq(i)));
-							String term = termVector.stemString(i);
+			int mu = Integer.parseInt(parameters.get("fbMu"));
+			for(int doc : topDocsList){
+				if(!fieldLenMap.containsKey(f)){
+					fieldLenMap.put(f, model.getCollectionStats().getSumOfFieldLengths(f));
+				}
+				long fieldlen = fieldLenMap.get(f);
+				long docFieldLen = Idx.getFieldLength(f, doc);
+				TermVector termVector = new TermVector(doc,f);
+				for(int i = 0; i < termVector.stemsLength();i++){
+					if(!topTermsMap.containsKey(termVector.stemString(i))) {
+						continue;
+					}
 
-							topTermsMap.get(term).updateScore(s);
-						}
+					//For each documents and field, compute score for each term
+					//and add to global score
 
+					double tf = (termVector.stemFreq(i) + mu* 
+							((double)termVector.totalStemFreq(i))/fieldlen)/(docFieldLen + mu);
 
-						for(String t : topTermsMap.keySet()){
+					double s = tf * docScoreMap.get(doc)*
+							Math.log(fieldlen/((double)termVector.totalStemFreq(i)));
+					String term = termVector.stemString(i);
 
-							double defaultScore = docScoreMap.get(doc)*(mu* 
-									((double)topTermsMap.get(t).totalFreq)/fieldlen)/(docFieldLen + mu);
-							topTermsMap.get(t).unsetPresent(
-									defaultScore*Math.log(fieldlen/
-											((double)topTermsMap.get(t).totalFreq)));
-						}
+					topTermsMap.get(term).updateScore(s);
+				}
 
-					}
-					ArrayList<TopTerm> topTermsList = new ArrayList<>();
-					topTermsList.addAll(topTermsMap.values());
-					Collections.sort(topTermsList);
-					//creates expanded query and persist to disk
-					if(parameters.containsKey("fbExpansionQueryFile")){
-						PrintWriter outputExQueryFile = new PrintWriter(new BufferedWriter(
-								new FileWriter(parameters.get("fbExpansionQueryFile"), true)));
-
-						StringBuffer expandedQueryBuffer = new StringBuffer();
-						expandedQueryBuffer.append( "#wand (");
-						for(int i = 0; i <fbTerms;i++){
-							expandedQueryBuffer.append(" " + topTermsList.get(i).score + " " + 
-									topTermsList.get(i).term);
 
-						}
-						expandedQueryBuffer.append(")");
+				for(String t : topTermsMap.keySet()){
 
+					double defaultScore = docScoreMap.get(doc)*(mu* 
+							((double)topTermsMap.get(t).totalFreq)/fieldlen)/(docFieldLen + mu);
+					topTermsMap.get(t).unsetPresent(
+							defaultScore*Math.log(fieldlen/
+									((double)topTermsMap.get(t).totalFreq)));
+				}
 
-						double originalWeight = Double.parseDouble(parameters.get("fbOrigWeight"));
-						//Add default operator so that we can divide the weight
-						String defaultOp = model.defaultQrySopName ();
-						query = defaultOp + "(" + query + ")";
+			}
+			ArrayList<TopTerm> topTermsList = new ArrayList<>();
+			topTermsList.addAll(topTermsMap.values());
+			Collections.sort(topTermsList);
+			//creates expanded query and persist to disk
+			if(parameters.containsKey("fbExpansionQueryFile")){
+				StringBuffer expandedQueryBuffer = new StringBuffer();
+				expandedQueryBuffer.append( "#wand (");
+				for(int i = 0; i <fbTerms;i++){
+					expandedQueryBuffer.append(" " + topTermsList.get(i).score + " " + 
+							topTermsList.get(i).term);
 
-						String newQuery = "#wand ( " + originalWeight + " " + query + 
-								" " + (1-originalWeight) + " " + expandedQueryBuffer.toString() + " )";
-						//Process the new, expanded query
-						//						System.out.println(newQuery);
-						r = processQuery(newQuery, model);
-						if (r != null) {
-							printResults(qid, r);
-						}
-						//persist expansion part to disk.
-						outputExQueryFile.write(qid+": "+ expandedQueryBuffer.toString()+"\n");
-						outputExQueryFile.close();
-					}
 				}
+				expandedQueryBuffer.append(")");
+
+
+				double originalWeight = Double.parseDouble(parameters.get("fbOrigWeight"));
+				//Add default operator so that we can divide the weight
+				String defaultOp = model.defaultQrySopName ();
+				query = defaultOp + "(" + query + ")";
+
+				String newQuery = "#wand ( " + originalWeight + " " + query + 
+						" " + (1-originalWeight) + " " + expandedQueryBuffer.toString() + " )";
+				//Process the new, expanded query
+				//						System.out.println(newQuery);
+				r = processQuery(newQuery, model);
+				if (r != null) {
+					printResults(context, r);
+				}
+				//persist expansion part to disk, after the results.
+				context.expansionQuery = qid+": "+ expandedQueryBuffer.toString()+"\n";
 			}
-		} catch (IOException ex) {
-			ex.printStackTrace();
-		} catch (Exception e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
-		} finally {
-			input.close();
+		}
+	}
+
+	/**
+	 * Write the output of an evaluated query.
+	 * @param context The query.
+	 * @throws IOException Error writing the expansion query file.
+	 */
+	private static void writeResults(QueryContext context) throws IOException {
+		System.out.print(context.output);
+		builder.append(context.output);
+
+		if(context.expansionQuery != null){
+			PrintWriter outputExQueryFile = new PrintWriter(new BufferedWriter(
+					new FileWriter(parameters.get("fbExpansionQueryFile"), true)));
+			outputExQueryFile.write(context.expansionQuery);
+			outputExQueryFile.close();
 		}
 	}
 
@@ -1006,28 +1428,31 @@ public class QryEval {
 	 * 
 	 * QueryID Q0 DocID Rank Score RunID
 	 * 
-	 * @param queryName
-	 *          Original query.
+	 * The results are added to the query's output, which is written
+	 * when the query is done.
+	 * 
+	 * @param context
+	 *          The query.
 	 * @param result
 	 *          A list of document ids and scores
 	 * @throws IOException Error accessing the Lucene index.
 	 */
-	static void printResults(String queryName, ScoreList result) throws IOException {
+	static void printResults(QueryContext context, ScoreList result) throws IOException {
+
+		String queryName = context.qid;
 
 		String exp_id = "fubar";
 
 
 		if (result.size() < 1) {
 			String output = queryName + " Q0 dummy 1 0.000000000000 "+ exp_id;
-			System.out.println(output);
-			builder.append(output).append("\n");
+			context.println(output);
 		} else {
-			result.truncate(100);
+			result.truncate(MAX_RESULTS);
 			for (int i = 0; i < result.size(); i++) {
-				String output =queryName + " Q0 " + Idx.getExternalDocid(result.getDocid(i)) 
+				String output =queryName + " Q0 " + result.getExternalDocid(i) 
 				+ " " +(i+1) +" " + String.format("%.12f",result.getDocidScore(i)) + " " + exp_id;
-				builder.append(output).append("\n");
-				System.out.println(output);
+				context.println(output);
 			}
 		}
 	}
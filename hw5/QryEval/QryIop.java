@@ -34,6 +34,22 @@ public abstract class QryIop extends Qry {
    *  Iteration in QryIop and QrySop is very different.  In QryIop,
    *  docIterator and locIterator iterate over the cached inverted
    *  list, NOT recursively over the query arguments.
+   *
+   *  docIteratorAdvanceTo and docIteratorAdvancePast use
+   *  InvList.findDocid, which gallops over the docids, so a rare
+   *  argument that leapfrogs over a common one costs O(log df) per
+   *  step rather than O(df).
+   *
+   *  Operators with arguments (#SYN, #NEAR, #WINDOW) implement
+   *  StreamingIop.nextMatch, which finds their next document and its
+   *  locations.
+   *  If the parent doesn't need the operator's df and ctf, the
+   *  operator is "streaming": nextMatch is called on demand by the
+   *  docIterator, so documents that the parent skips are never
+   *  evaluated and no inverted list is built.  Otherwise (e.g., the
+   *  operator is scored by BM25 or Indri, or is initialized again)
+   *  the inverted list is materialized by calling nextMatch for every
+   *  document.
    */
 
   /**
@@ -41,18 +57,71 @@ public abstract class QryIop extends Qry {
    */
   private static final int INVALID_ITERATOR_INDEX = -1;
 
+  /**
+   *  The docid of a streaming operator whose next match has not been
+   *  computed yet.
+   */
+  private static final int STREAM_NOT_COMPUTED = -2;
+
   /**
    *  The document field that the query operator applies to; this is
    *  inferred from query operator arguments.
    */
   protected String field = null;
 
+  /**
+   *  True if the parent of this query operator uses the locIterator.
+   *  QryIop operators set it on their arguments before initializing
+   *  them; terms that are only scored (e.g., by #SCORE) leave it false,
+   *  so their locations are never read from the index.
+   */
+  protected boolean positionsRequired = false;
+
+  /**
+   *  True if the parent of this query operator needs its df and ctf.
+   *  QrySopScore sets it according to the retrieval model; QryIop
+   *  operators clear it on their arguments.
+   */
+  protected boolean statisticsRequired = true;
+
+  /**
+   *  True if the operator computes its matches on demand instead of
+   *  materializing an inverted list.
+   */
+  private boolean streaming = false;
+
+  /**
+   *  True once the operator has been initialized.  An operator that
+   *  is initialized again is materialized.
+   */
+  private boolean initialized = false;
+
+  /**
+   *  The state of a streaming docIterator: the current match (or
+   *  INVALID_DOCID when there are no more), and the smallest docid
+   *  that the next match may have if it hasn't been computed yet.
+   *  The locations of the current match are in positionsBuffer.
+   */
+  private int streamDocid = QryIop.STREAM_NOT_COMPUTED;
+  private int streamTarget = 0;
+
   /**
    *  The inverted list that is produced when the query operator is
    *  initialized; use the docIterator to access this list.
    */
   protected InvList invertedList = null;
 
+  /**
+   *  Corpus-level statistics that replace the ones of the inverted
+   *  list, or -1 if there are none.  When a query is evaluated one
+   *  index segment at a time, each segment's copy of the operator
+   *  only has the segment's postings, so it is given the statistics
+   *  of the whole index.
+   */
+  private int globalDf = -1;
+  private int globalCtf = -1;
+  private int globalMaxTf = -1;
+
   /**
    *  The index of the document that the docIterator points to now.
    */
@@ -63,6 +132,14 @@ public abstract class QryIop extends Qry {
    */
   private int locIteratorIndex = QryIop.INVALID_ITERATOR_INDEX;
 
+  /**
+   *  A reusable buffer in which nextMatch assembles the locations of
+   *  one document.  Only the first positionsBufferSize entries are
+   *  valid.
+   */
+  protected int[] positionsBuffer = new int[16];
+  protected int positionsBufferSize = 0;
+
   /**
    *  Advance the query operator's internal iterator beyond the
    *  specified document.
@@ -70,10 +147,13 @@ public abstract class QryIop extends Qry {
    */
   public void docIteratorAdvancePast (int docid) {
 
-    while ((this.docIteratorIndex < this.invertedList.df) &&
-           (this.invertedList.getDocid (this.docIteratorIndex) <= docid)) {
-      this.docIteratorIndex ++;
+    if (this.streaming) {
+      this.docIteratorAdvanceTo (docid + 1);
+      return;
     }
+
+    this.docIteratorIndex =
+      this.invertedList.findDocid (this.docIteratorIndex, docid + 1);
            
     this.locIteratorIndex = 0;
   }
@@ -85,10 +165,20 @@ public abstract class QryIop extends Qry {
    */
   public void docIteratorAdvanceTo (int docid) {
 
-    while ((this.docIteratorIndex < this.invertedList.df) &&
-           (this.invertedList.getDocid (this.docIteratorIndex) < docid)) {
-      this.docIteratorIndex ++;
+    if (this.streaming) {
+      if ((this.streamDocid == QryIop.STREAM_NOT_COMPUTED) ||
+          ((this.streamDocid != Qry.INVALID_DOCID) &&
+           (this.streamDocid < docid))) {
+        this.streamDocid = QryIop.STREAM_NOT_COMPUTED;
+        this.streamTarget = Math.max (this.streamTarget, docid);
+      }
+
+      this.locIteratorIndex = 0;
+      return;
     }
+
+    this.docIteratorIndex =
+      this.invertedList.findDocid (this.docIteratorIndex, docid);
            
     this.locIteratorIndex = 0;
   }
@@ -98,7 +188,12 @@ public abstract class QryIop extends Qry {
    *  any possible document.
    */
   public void docIteratorFinish () {
-    this.docIteratorIndex = this.invertedList.postings.size();
+    if (this.streaming) {
+      this.streamDocid = Qry.INVALID_DOCID;
+      return;
+    }
+
+    this.docIteratorIndex = this.invertedList.df;
   }
 
   /**
@@ -109,16 +204,25 @@ public abstract class QryIop extends Qry {
    *  @return The internal id of the current document.
    */
   public int docIteratorGetMatch () {
+    if (this.streaming)
+      return this.streamGetMatch ();
+
     return this.invertedList.getDocid (this.docIteratorIndex);
   }
 
   /**
-   *  Return the postings for the document that the docIterator points to
-   *  now, or throw an error if the docIterator doesn't point at a document.
-   *  @return A document posting.
+   *  Return the term frequency of the document that the docIterator
+   *  points to now, or throw an error if the docIterator doesn't point
+   *  at a document.
+   *  @return The term frequency (tf) of the matching document.
    */
-  public InvList.DocPosting docIteratorGetMatchPosting () {
-    return this.invertedList.postings.get(docIteratorIndex);
+  public int docIteratorGetMatchTf () {
+    if (this.streaming) {
+      this.streamGetMatch ();
+      return this.positionsBufferSize;
+    }
+
+    return this.invertedList.getTf (this.docIteratorIndex);
   }
 
   /**
@@ -127,9 +231,104 @@ public abstract class QryIop extends Qry {
    *  @return True if the query matches a document, otherwise false.
    */
   public boolean docIteratorHasMatch (RetrievalModel r) {
+    if (this.streaming)
+      return (this.streamGetMatch () != Qry.INVALID_DOCID);
+
     return (this.docIteratorIndex < this.invertedList.df);
   }
 
+  /**
+   *  Get the current match of a streaming operator, computing it if
+   *  necessary.
+   *  @return The matching docid, or INVALID_DOCID if there is none.
+   */
+  private int streamGetMatch () {
+    if (this.streamDocid == QryIop.STREAM_NOT_COMPUTED) {
+      this.streamDocid = ((StreamingIop) this).nextMatch (this.streamTarget);
+      this.locIteratorIndex = 0;
+    }
+
+    return this.streamDocid;
+  }
+
+  /**
+   *  Build the operator's inverted list by calling nextMatch for each
+   *  matching document.  StreamingIop operators can use this as their
+   *  evaluate method.
+   */
+  protected void materialize () {
+
+    StreamingIop stream = (StreamingIop) this;
+
+    //  Create an empty inverted list.  If there are no query arguments,
+    //  that's the final result.
+
+    InvList.Builder builder = new InvList.Builder (this.getField());
+
+    if (this.args.size () == 0) {
+      this.invertedList = builder.build ();
+      return;
+    }
+
+    int docid = stream.nextMatch (0);
+
+    while (docid != Qry.INVALID_DOCID) {
+      builder.appendPosting (docid, this.positionsBuffer,
+                             this.positionsBufferSize);
+      docid = stream.nextMatch (docid + 1);
+    }
+
+    //  A long materialized list may be compressed.  It belongs to this
+    //  operator, so it doesn't need a view.
+
+    this.invertedList = CompressedInvList.compress (builder.build ());
+  }
+
+  /**
+   *  Advance all of the arguments to the first document at or after
+   *  docid that they all match.  This is how #NEAR and #WINDOW find
+   *  candidate documents.
+   *  @param docid The smallest docid that may match.
+   *  @return The docid, or INVALID_DOCID if there is none.
+   */
+  protected int advanceArgsToMatchAll (int docid) {
+
+    boolean matchFound = false;
+
+    while (! matchFound) {
+      matchFound = true;
+
+      for (Qry q_i: this.args) {
+        q_i.docIteratorAdvanceTo (docid);
+
+        if (! q_i.docIteratorHasMatch (null))
+          return Qry.INVALID_DOCID;
+
+        int docid_i = q_i.docIteratorGetMatch ();
+
+        if (docid_i != docid) {	// docid can't match.  Try again.
+          docid = docid_i;
+          matchFound = false;
+          break;
+        }
+      }
+    }
+
+    return docid;
+  }
+
+  /**
+   *  Append a location to positionsBuffer, growing it if necessary.
+   *  @param loc The location to append.
+   */
+  protected void positionsBufferAdd (int loc) {
+    if (this.positionsBufferSize == this.positionsBuffer.length) {
+      this.positionsBuffer =
+        Arrays.copyOf (this.positionsBuffer, 2 * this.positionsBuffer.length);
+    }
+    this.positionsBuffer[this.positionsBufferSize++] = loc;
+  }
+
   /**
    *  Get the collection term frequency (ctf) associated with this
    *  query operator.  It is an error to call this method before the
@@ -137,6 +336,12 @@ public abstract class QryIop extends Qry {
    *  @return The collection term frequency (ctf).
    */
   public int getCtf () {
+    if (this.globalCtf >= 0)
+      return this.globalCtf;
+
+    if (this.streaming)
+      throw new IllegalStateException ("A streaming operator has no ctf.");
+
     return this.invertedList.ctf;
   }
 
@@ -147,9 +352,45 @@ public abstract class QryIop extends Qry {
    *  @return The document frequency (df).
    */
   public int getDf () {
+    if (this.globalDf >= 0)
+      return this.globalDf;
+
+    if (this.streaming)
+      throw new IllegalStateException ("A streaming operator has no df.");
+
     return this.invertedList.df;
   }
 
+  /**
+   *  Get the largest term frequency in any document that this query
+   *  operator matches.  It is an error to call this method before
+   *  the object's initialize method is called.
+   *  @return The largest tf.
+   */
+  public int getMaxTf () {
+    if (this.globalMaxTf >= 0)
+      return this.globalMaxTf;
+
+    if (this.streaming)
+      throw new IllegalStateException ("A streaming operator has no tf statistics.");
+
+    return this.invertedList.getMaxTf ();
+  }
+
+  /**
+   *  Replace the corpus-level statistics of the query operator, e.g.,
+   *  with the statistics of the whole index when the operator only
+   *  has the postings of one index segment.
+   *  @param df The document frequency (df).
+   *  @param ctf The collection term frequency (ctf).
+   *  @param maxTf The largest tf.
+   */
+  public void setGlobalStatistics (int df, int ctf, int maxTf) {
+    this.globalDf = df;
+    this.globalCtf = ctf;
+    this.globalMaxTf = maxTf;
+  }
+
   /**
    *  Get the field associated with this query operator.
    *  @return The field associated with this query operator.
@@ -173,21 +414,68 @@ public abstract class QryIop extends Qry {
    */
   public void initialize(RetrievalModel r) throws IOException {
 
-    //  Initialize the query arguments (if any).
+    //  Initialize the query arguments (if any).  Operators that have
+    //  arguments (#SYN, #NEAR, #WINDOW) combine argument locations.
 
     for (Qry q_i: this.args) {
+      ((QryIop) q_i).positionsRequired = true;
+      ((QryIop) q_i).statisticsRequired = false;
       ((QryIop) q_i).initialize (r);
     }
 
-    //  Evaluate the operator.
-    
-    this.evaluate ();
+    //  StreamingIop operators with arguments stream their matches if
+    //  nothing needs their statistics, unless they are being reused.
+    //  Otherwise, evaluate the operator.
+
+    this.streaming =
+      (this instanceof StreamingIop) && (this.args.size () > 0) &&
+      (! this.statisticsRequired) && (! this.initialized);
+    this.initialized = true;
+    this.invertedList = null;
+    this.streamDocid = QryIop.STREAM_NOT_COMPUTED;
+    this.streamTarget = 0;
+
+    if (! this.streaming) {
+      this.evaluate ();
+    }
 
     //  Initialize the internal iterators.
 
     this.docIteratorIndex = 0;
     this.locIteratorIndex = 0;
   }
+
+  /**
+   *  Initialize the query operator (and its arguments) from another
+   *  copy of the same query that is initialized already.  The copy
+   *  iterates over a view of the other operator's inverted list, or
+   *  streams its matches from its own arguments if the other operator
+   *  streams.
+   *  @param other An initialized query with the same structure.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public void initializeFrom (Qry other) throws IOException {
+
+    super.initializeFrom (other);
+
+    QryIop op = (QryIop) other;
+
+    this.field = op.field;
+    this.positionsRequired = op.positionsRequired;
+    this.statisticsRequired = op.statisticsRequired;
+    this.streaming = op.streaming;
+    this.initialized = true;
+    this.globalDf = op.globalDf;
+    this.globalCtf = op.globalCtf;
+    this.globalMaxTf = op.globalMaxTf;
+    this.invertedList =
+      (op.invertedList == null) ? null : op.invertedList.view ();
+    this.streamDocid = QryIop.STREAM_NOT_COMPUTED;
+    this.streamTarget = 0;
+
+    this.docIteratorIndex = 0;
+    this.locIteratorIndex = 0;
+  }
   
  /**
    *  Advance the query operator's internal iterator to the
@@ -203,11 +491,19 @@ public abstract class QryIop extends Qry {
    *  @param loc The location to advance beyond.
    */
   public void locIteratorAdvancePast (int loc) {
-    int tf = this.invertedList.postings.get(this.docIteratorIndex).tf;
-    Vector<Integer> positions = this.invertedList.postings.get(this.docIteratorIndex).positions;
+    if (this.streaming) {
+      while ((this.locIteratorIndex < this.docIteratorGetMatchTf ()) &&
+             (this.positionsBuffer[this.locIteratorIndex] <= loc)) {
+        this.locIteratorIndex ++;
+      }
+      return;
+    }
+
+    int tf = this.invertedList.getTf (this.docIteratorIndex);
 
     while ((this.locIteratorIndex < tf) &&
-           (positions.get (this.locIteratorIndex) <= loc)) {
+           (this.invertedList.getPosition (this.docIteratorIndex,
+                                           this.locIteratorIndex) <= loc)) {
       locIteratorIndex ++;
     }
   }
@@ -217,8 +513,13 @@ public abstract class QryIop extends Qry {
    *  any possible location.
    */
   public void locIteratorFinish () {
+    if (this.streaming) {
+      this.locIteratorIndex = this.docIteratorGetMatchTf ();
+      return;
+    }
+
     this.locIteratorIndex =
-      this.invertedList.postings.get(this.docIteratorIndex).tf;
+      this.invertedList.getTf (this.docIteratorIndex);
   }
 
   /**
@@ -229,8 +530,13 @@ public abstract class QryIop extends Qry {
    *  @return The internal id of the current document.
    */
   public int locIteratorGetMatch () {
-    Vector<Integer> locations = this.docIteratorGetMatchPosting().positions;
-    return locations.get (this.locIteratorIndex);
+    if (this.streaming) {
+      this.streamGetMatch ();
+      return this.positionsBuffer[this.locIteratorIndex];
+    }
+
+    return this.invertedList.getPosition (this.docIteratorIndex,
+                                          this.locIteratorIndex);
   }
 
   /**
@@ -239,6 +545,9 @@ public abstract class QryIop extends Qry {
    *  @return True if the iterator currently points to a location.
    */
   public boolean locIteratorHasMatch () {
+    if (this.streaming)
+      return (this.locIteratorIndex < this.docIteratorGetMatchTf ());
+
     return (this.locIteratorIndex <
             this.invertedList.getTf (this.docIteratorIndex));
   }
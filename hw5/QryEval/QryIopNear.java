@@ -7,7 +7,7 @@ import java.util.*;
 /**
  *  The NEAR operator for all retrieval models.
  */
-public class QryIopNear extends QryIop {
+public class QryIopNear extends QryIop implements StreamingIop {
 
 	int distance = 0;	
 	public QryIopNear(int distance) {
@@ -20,48 +20,26 @@ public class QryIopNear extends QryIop {
 	 *  @throws IOException Error accessing the Lucene index.
 	 */
 	protected void evaluate () throws IOException {
+		this.materialize ();
+	}
 
-		//  Create an empty inverted list.  If there are no query arguments,
-		//  that's the final result.
-
-		this.invertedList = new InvList (this.getField());
-
-		if (args.size () == 0) {
-			return;
-		}
-
-		//Finds the smallest document list to make comparison smaller
-		int min = Integer.MAX_VALUE;
-		QryIop q_0 = null;
-		for (Qry q_i: this.args) {
-			int freq = ((QryIop) q_i).getDf();
-			if(freq < min){
-				q_0 =(QryIop) q_i;
-				min = freq;
-			}
-		}
-
-		//Iterate through smallest list
-		while (q_0.docIteratorHasMatch(null)) {
-
-			int current_doc = q_0.docIteratorGetMatch();
-			//move all document pointers to q0 pointer. If document does not exist, skip it
-			for (Qry q_i: this.args) {
-				if(q_i == q_0) continue;
-				q_i.docIteratorAdvanceTo(current_doc);
-
-				if(!q_i.docIteratorHasMatch(null) || q_i.docIteratorGetMatch() != current_doc){
-					q_0.docIteratorAdvancePast(current_doc);
-					break;
-				}
+	/**
+	 *  Find the next document in which all of the arguments occur, in
+	 *  order, within distance of each other.
+	 *  @param docid The smallest docid that may match.
+	 *  @return The matching docid, or INVALID_DOCID if there is none.
+	 */
+	public int nextMatch (int docid) {
 
-			}
-			if(!q_0.docIteratorHasMatch(null) || q_0.docIteratorGetMatch() != current_doc) continue;
+		while (true) {
 
+			//move all document pointers to the next document that they all contain
+			int current_doc = this.advanceArgsToMatchAll(docid);
+			if(current_doc == Qry.INVALID_DOCID) return Qry.INVALID_DOCID;
 
 			//Here all pointers are in the same documents.
 
-			List<Integer> positions = new ArrayList<Integer>();
+			this.positionsBufferSize = 0;
 
 			int last = -1;
 			QryIop firstArg = this.getArg(0);
@@ -98,13 +76,16 @@ public class QryIopNear extends QryIop {
 				}
 				if(last != -1){
 					//if all terms are near each other, add the position to positions list
-					positions.add(last);
+					this.positionsBufferAdd(last);
 				}
 			}
-			q_0.docIteratorAdvancePast(current_doc);
-			if(positions.size() == 0) continue;
-			Collections.sort (positions);
-			this.invertedList.appendPosting (current_doc, positions);
+			if(this.positionsBufferSize > 0){
+				Arrays.sort (this.positionsBuffer, 0, this.positionsBufferSize);
+				return current_doc;
+			}
+
+			//no near match in this document, try the next one
+			docid = current_doc + 1;
 		}
 	}
 
@@ -7,7 +7,7 @@ import java.util.*;
 /**
  *  The SYN operator for all retrieval models.
  */
-public class QryIopSyn extends QryIop {
+public class QryIopSyn extends QryIop implements StreamingIop {
 
   /**
    *  Evaluate the query operator; the result is an internal inverted
@@ -15,59 +15,57 @@ public class QryIopSyn extends QryIop {
    *  @throws IOException Error accessing the Lucene index.
    */
   protected void evaluate () throws IOException {
+    this.materialize ();
+  }
 
-    //  Create an empty inverted list.  If there are no query arguments,
-    //  that's the final result.
-    
-    this.invertedList = new InvList (this.getField());
-
-    if (args.size () == 0) {
-      return;
-    }
+  /**
+   *  Find the next document that any argument matches.  Its locations
+   *  are the union of the argument locations.
+   *  @param docid The smallest docid that may match.
+   *  @return The matching docid, or INVALID_DOCID if there is none.
+   */
+  public int nextMatch (int docid) {
 
-    //  Each pass of the loop adds 1 document to result inverted list
-    //  until all of the argument inverted lists are depleted.
+    //  Find the minimum next document id.  If there is none, we're done.
 
-    while (true) {
+    int minDocid = Qry.INVALID_DOCID;
 
-      //  Find the minimum next document id.  If there is none, we're done.
+    for (Qry q_i: this.args) {
+      q_i.docIteratorAdvanceTo (docid);
 
-      int minDocid = Qry.INVALID_DOCID;
+      if (q_i.docIteratorHasMatch (null)) {
+        int q_iDocid = q_i.docIteratorGetMatch ();
 
-      for (Qry q_i: this.args) {
-        if (q_i.docIteratorHasMatch (null)) {
-          int q_iDocid = q_i.docIteratorGetMatch ();
-          
-          if ((minDocid > q_iDocid) ||
-              (minDocid == Qry.INVALID_DOCID)) {
-            minDocid = q_iDocid;
-          }
+        if ((minDocid > q_iDocid) ||
+            (minDocid == Qry.INVALID_DOCID)) {
+          minDocid = q_iDocid;
         }
       }
+    }
 
-      if (minDocid == Qry.INVALID_DOCID)
-        break;				// All docids have been processed.  Done.
-      
-      //  Create a new posting that is the union of the posting lists
-      //  that match the minDocid.  Save it.
-      //  Note:  This implementation assumes that a location will not appear
-      //  in two or more arguments.  #SYN (apple apple) would break it.
+    if (minDocid == Qry.INVALID_DOCID)
+      return Qry.INVALID_DOCID;		// All docids have been processed.
 
-      List<Integer> positions = new ArrayList<Integer>();
+    //  The locations are the union of the argument locations that
+    //  match the minDocid.
+    //  Note:  This implementation assumes that a location will not appear
+    //  in two or more arguments.  #SYN (apple apple) would break it.
 
-      for (Qry q_i: this.args) {
-        if (q_i.docIteratorHasMatch (null) &&
-            (q_i.docIteratorGetMatch () == minDocid)) {
-          Vector<Integer> locations_i =
-            ((QryIop) q_i).docIteratorGetMatchPosting().positions;
-	  positions.addAll (locations_i);
-          q_i.docIteratorAdvancePast (minDocid);
-	}
-      }
+    this.positionsBufferSize = 0;
 
-      Collections.sort (positions);
-      this.invertedList.appendPosting (minDocid, positions);
+    for (Qry q_i: this.args) {
+      if (q_i.docIteratorHasMatch (null) &&
+          (q_i.docIteratorGetMatch () == minDocid)) {
+        QryIop q_iop = (QryIop) q_i;
+        while (q_iop.locIteratorHasMatch ()) {
+          this.positionsBufferAdd (q_iop.locIteratorGetMatch ());
+          q_iop.locIteratorAdvance ();
+        }
+      }
     }
+
+    Arrays.sort (this.positionsBuffer, 0, this.positionsBufferSize);
+    return minDocid;
   }
 
 }
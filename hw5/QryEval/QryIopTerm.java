@@ -4,18 +4,68 @@
 import java.io.*;
 import java.util.*;
 
+import org.apache.lucene.index.*;
+import org.apache.lucene.search.*;
+import org.apache.lucene.util.*;
+
 /**
  *  The TERM operator for all retrieval models.  The TERM operator stores
  *  information about a query term, for example "apple" in the query
  *  "#AND (apple pie).  Although it may seem odd to use a query
  *  operator to store a term, doing so makes it easy to build
  *  structured queries with nested query operators.
- *
+ *  <p>
+ *  By default the term's inverted list is copied from Lucene when the
+ *  operator is initialized.  If lazyPostings is set, the operator
+ *  instead iterates over Lucene's DocsAndPositionsEnum directly:
+ *  docIteratorAdvanceTo uses Lucene's skip lists, and the locations
+ *  of a document are decoded only if the locIterator is used.  The df
+ *  and ctf then come from the term dictionary, so they include
+ *  deleted documents.
+ *  </p><p>
+ *  If the index has MappedPostings, the term's list is read from them
+ *  instead, in place.
+ *  </p><p>
+ *  Locations are read from the index only if positionsRequired is
+ *  set, i.e., if the term is an argument of #SYN, #NEAR or #WINDOW.
+ *  Terms that are only scored use Lucene's docs-and-freqs postings.
+ *  </p><p>
+ *  If the operator is restricted to one index segment (setLeaf), it
+ *  reads only that segment's postings, from the segment's reader, and
+ *  adds the segment's docBase to their docids.  Mapped postings and
+ *  the InvListCache cover the whole index, so they aren't used.
+ *  </p>
  */
 public class QryIopTerm extends QryIop {
 
+  /**
+   *  If true, terms are evaluated lazily from the Lucene index rather
+   *  than materialized as an InvList, unless the InvListCache already
+   *  has the list.  Set from the parameter file.
+   */
+  public static boolean lazyPostings = false;
+
   private String term;
 
+  //  The index segment that the term is restricted to, or null.
+
+  private AtomicReaderContext leaf = null;
+  private int docBase = 0;
+
+  //  State used when the term is evaluated lazily.
+
+  private boolean lazy = false;
+  private DocsEnum postings = null;
+  private int postingsDocid = DocIdSetIterator.NO_MORE_DOCS;
+  private int df = 0;
+  private int ctf = 0;
+
+  //  The locations of postingsDocid, once they have been decoded.
+
+  private int[] locations = new int[16];
+  private int locationsDocid = Qry.INVALID_DOCID;
+  private int locationsIndex = 0;
+
   /**
    *  The term is assumed to match the body field.
    *  @param termString A term string.
@@ -35,13 +85,384 @@ public class QryIopTerm extends QryIop {
     this.field = fieldString;
   }
 
+  /**
+   *  Restrict the term to the postings of one index segment.  It must
+   *  be called before the operator is initialized.
+   *  @param leaf The index segment.
+   */
+  public void setLeaf (AtomicReaderContext leaf) {
+    this.leaf = leaf;
+    this.docBase = leaf.docBase;
+  }
+
   /**
    *  Evaluate the query operator; the result is an internal inverted
    *  list that may be accessed via the internal iterators.
    *  @throws IOException Error accessing the Lucene index.
    */
   protected void evaluate () throws IOException {
-    this.invertedList = new InvList(this.term, this.field);
+
+    //  A segment's list is read from the segment's reader.
+
+    if ((this.leaf != null) && ! QryIopTerm.lazyPostings) {
+      this.invertedList = new InvList(this.term, this.field,
+                                      this.positionsRequired, this.leaf);
+      return;
+    }
+
+    //  Memory-mapped postings are read in place, so they are preferred
+    //  to the cache and to lazy evaluation.
+
+    this.invertedList = (this.leaf == null) ?
+      Idx.getMappedInvList (this.term, this.field) : null;
+
+    if (this.invertedList != null) {
+      this.lazy = false;
+      return;
+    }
+
+    //  Cached lists may be compressed and shared, so each operator
+    //  iterates over its own view.  A list that isn't cached is used
+    //  once, so it isn't compressed.
+
+    if (! QryIopTerm.lazyPostings) {
+      if (InvListCache.isEnabled ())
+        this.invertedList =
+          InvListCache.get (this.term, this.field, this.positionsRequired)
+                      .view ();
+      else
+        this.invertedList =
+          new InvList(this.term, this.field, this.positionsRequired);
+      return;
+    }
+
+    //  Lazy evaluation, unless the list is cached already.  Streamed
+    //  lists are never added to the cache.
+
+    if (InvListCache.isEnabled () && (this.leaf == null)) {
+      this.invertedList = InvListCache.getIfPresent (this.term, this.field,
+                                                     this.positionsRequired);
+
+      if (this.invertedList != null) {
+        this.invertedList = this.invertedList.view ();
+        this.lazy = false;
+        return;
+      }
+    }
+
+    //  Just position the Lucene iterator on the first document.
+
+    this.lazy = true;
+    this.locationsDocid = Qry.INVALID_DOCID;
+
+    BytesRef termBytes = new BytesRef(this.term);
+    Term t = new Term(this.field, termBytes);
+
+    IndexReader reader = (this.leaf == null) ? Idx.INDEXREADER :
+      this.leaf.reader();
+
+    this.df = reader.docFreq(t);
+
+    if (this.df < 1) {
+      this.postings = null;
+      this.postingsDocid = DocIdSetIterator.NO_MORE_DOCS;
+      return;
+    }
+
+    this.ctf = (int) reader.totalTermFreq(t);
+
+    if (this.positionsRequired)
+      this.postings =
+        MultiFields.getTermPositionsEnum(reader,
+                                         MultiFields.getLiveDocs(reader),
+                                         this.field, termBytes);
+    else
+      this.postings =
+        MultiFields.getTermDocsEnum(reader,
+                                    MultiFields.getLiveDocs(reader),
+                                    this.field, termBytes,
+                                    DocsEnum.FLAG_FREQS);
+
+    this.postingsDocid = this.toIndexDocid (this.postings.nextDoc());
+  }
+
+  /**
+   *  Initialize the term from another copy of it that is initialized
+   *  already.  A lazy term's Lucene iterator can't be shared, so the
+   *  copy opens its own, which reads nothing until it is advanced.
+   *  @param other An initialized copy of the term.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public void initializeFrom (Qry other) throws IOException {
+    super.initializeFrom (other);
+
+    QryIopTerm term = (QryIopTerm) other;
+
+    this.leaf = term.leaf;
+    this.docBase = term.docBase;
+    this.lazy = false;
+
+    if (term.lazy)
+      this.evaluate ();
+  }
+
+  /**
+   *  Convert a docid of the Lucene iterator to a docid of the index.
+   *  @param docid A docid of the term's reader, or NO_MORE_DOCS.
+   *  @return The internal document id, or NO_MORE_DOCS.
+   */
+  private int toIndexDocid (int docid) {
+    if (docid == DocIdSetIterator.NO_MORE_DOCS)
+      return docid;
+
+    return this.docBase + docid;
+  }
+
+  /**
+   *  Advance the query operator's internal iterator beyond the
+   *  specified document.
+   *  @param docid The document's internal document id
+   */
+  public void docIteratorAdvancePast (int docid) {
+    if (! this.lazy) {
+      super.docIteratorAdvancePast (docid);
+      return;
+    }
+
+    this.advanceLucene (docid + 1);
+  }
+
+  /**
+   *  Advance the query operator's internal iterator to the specified
+   *  document if it exists, or beyond if it doesn't.
+   *  @param docid The document's internal document id
+   */
+  public void docIteratorAdvanceTo (int docid) {
+    if (! this.lazy) {
+      super.docIteratorAdvanceTo (docid);
+      return;
+    }
+
+    this.advanceLucene (docid);
+  }
+
+  /**
+   *  Advance the Lucene iterator to the target document, or beyond.
+   *  Lucene requires the target to be beyond the current document.
+   *  @param target The document's internal document id
+   */
+  private void advanceLucene (int target) {
+    if (this.postingsDocid < target) {
+      try {
+        this.postingsDocid =
+          this.toIndexDocid (this.postings.advance (target - this.docBase));
+      } catch (IOException e) {
+        throw new IllegalStateException (e);
+      }
+    }
+
+    this.locationsIndex = 0;
+  }
+
+  /**
+   *  Advance the query operator's internal iterator beyond the
+   *  any possible document.
+   */
+  public void docIteratorFinish () {
+    if (! this.lazy) {
+      super.docIteratorFinish ();
+      return;
+    }
+
+    this.postingsDocid = DocIdSetIterator.NO_MORE_DOCS;
+  }
+
+  /**
+   *  Return the id of the document that the query operator's internal
+   *  iterator points to now.
+   *  @return The internal id of the current document.
+   */
+  public int docIteratorGetMatch () {
+    if (! this.lazy)
+      return super.docIteratorGetMatch ();
+
+    return this.postingsDocid;
+  }
+
+  /**
+   *  Return the term frequency of the document that the docIterator
+   *  points to now.
+   *  @return The term frequency (tf) of the matching document.
+   */
+  public int docIteratorGetMatchTf () {
+    if (! this.lazy)
+      return super.docIteratorGetMatchTf ();
+
+    try {
+      return this.postings.freq ();
+    } catch (IOException e) {
+      throw new IllegalStateException (e);
+    }
+  }
+
+  /**
+   *  Indicates whether the query has a matching document.
+   *  @param r A retrieval model (that is ignored - it can be null)
+   *  @return True if the query matches a document, otherwise false.
+   */
+  public boolean docIteratorHasMatch (RetrievalModel r) {
+    if (! this.lazy)
+      return super.docIteratorHasMatch (r);
+
+    return (this.postingsDocid != DocIdSetIterator.NO_MORE_DOCS);
+  }
+
+  /**
+   *  Get the collection term frequency (ctf) of the term.
+   *  @return The collection term frequency (ctf).
+   */
+  public int getCtf () {
+    if (! this.lazy)
+      return super.getCtf ();
+
+    return this.ctf;
+  }
+
+  /**
+   *  Get the largest term frequency of the term.  Lazy postings can't
+   *  know it without reading the whole list, so they report a value
+   *  that no document exceeds.
+   *  @return The largest tf.
+   */
+  public int getMaxTf () {
+    if (! this.lazy)
+      return super.getMaxTf ();
+
+    return Integer.MAX_VALUE;
+  }
+
+  /**
+   *  Get the document frequency (df) of the term.
+   *  @return The document frequency (df).
+   */
+  public int getDf () {
+    if (! this.lazy)
+      return super.getDf ();
+
+    return this.df;
+  }
+
+  /**
+   *  Replace the corpus-level statistics of the term.
+   *  @param df The document frequency (df).
+   *  @param ctf The collection term frequency (ctf).
+   *  @param maxTf The largest tf.
+   */
+  public void setGlobalStatistics (int df, int ctf, int maxTf) {
+    super.setGlobalStatistics (df, ctf, maxTf);
+    this.df = df;
+    this.ctf = ctf;
+  }
+
+  /**
+   *  Decode the locations of the current document, if that has not
+   *  been done already, and reset the locIterator.
+   */
+  private void decodeLocations () {
+    if (this.locationsDocid == this.postingsDocid)
+      return;
+
+    try {
+      int tf = this.postings.freq ();
+
+      if (tf > this.locations.length)
+        this.locations = new int[Math.max (tf, 2 * this.locations.length)];
+
+      DocsAndPositionsEnum positions = (DocsAndPositionsEnum) this.postings;
+
+      for (int j = 0; j < tf; j++)
+        this.locations[j] = positions.nextPosition ();
+    } catch (IOException e) {
+      throw new IllegalStateException (e);
+    }
+
+    this.locationsDocid = this.postingsDocid;
+    this.locationsIndex = 0;
+  }
+
+  /**
+   *  Advance the query operator's internal iterator to the
+   *  next location.
+   */
+  public void locIteratorAdvance () {
+    if (! this.lazy) {
+      super.locIteratorAdvance ();
+      return;
+    }
+
+    this.decodeLocations ();
+    this.locationsIndex ++;
+  }
+
+  /**
+   *  Advance the query operator's internal iterator beyond the
+   *  specified location.
+   *  @param loc The location to advance beyond.
+   */
+  public void locIteratorAdvancePast (int loc) {
+    if (! this.lazy) {
+      super.locIteratorAdvancePast (loc);
+      return;
+    }
+
+    this.decodeLocations ();
+
+    int tf = this.docIteratorGetMatchTf ();
+
+    while ((this.locationsIndex < tf) &&
+           (this.locations[this.locationsIndex] <= loc)) {
+      this.locationsIndex ++;
+    }
+  }
+
+  /**
+   *  Advance the query operator's internal iterator beyond the
+   *  any possible location.
+   */
+  public void locIteratorFinish () {
+    if (! this.lazy) {
+      super.locIteratorFinish ();
+      return;
+    }
+
+    this.decodeLocations ();
+    this.locationsIndex = this.docIteratorGetMatchTf ();
+  }
+
+  /**
+   *  Return the document location that the query operator's internal
+   *  iterator points to now.
+   *  @return The current location.
+   */
+  public int locIteratorGetMatch () {
+    if (! this.lazy)
+      return super.locIteratorGetMatch ();
+
+    this.decodeLocations ();
+    return this.locations[this.locationsIndex];
+  }
+
+  /**
+   *  Returns true if the query operator's internal iterator currently
+   *  points to a location.
+   *  @return True if the iterator currently points to a location.
+   */
+  public boolean locIteratorHasMatch () {
+    if (! this.lazy)
+      return super.locIteratorHasMatch ();
+
+    this.decodeLocations ();
+    return (this.locationsIndex < this.docIteratorGetMatchTf ());
   }
 
   /**
@@ -1,9 +1,9 @@
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
-import java.util.List;
 import java.util.PriorityQueue;
-public class QryIopWindow extends QryIop {
+public class QryIopWindow extends QryIop implements StreamingIop {
 	int range;
 	public QryIopWindow(int r) {
 		this.range = r;
@@ -11,47 +11,21 @@ public class QryIopWindow extends QryIop {
 
 	@Override
 	protected void evaluate() throws IOException {
-		//  Create an empty inverted list.  If there are no query arguments,
-		//  that's the final result.
-
-		this.invertedList = new InvList (this.getField());
-
-		if (args.size () == 0) {
-			return;
-		}
-
-		//Finds the smallest document list to make comparison smaller
-		int min = Integer.MAX_VALUE;
-		QryIop q_0 = null;
-		for (Qry q_i: this.args) {
-			int freq = ((QryIop) q_i).getDf();
-			if(freq < min){
-				q_0 =(QryIop) q_i;
-				min = freq;
-			}
-		}
-
-		//Iterate through smallest list
-		while (q_0.docIteratorHasMatch(null)) {
-
-			int current_doc = q_0.docIteratorGetMatch();
-			//move all document pointers to q0 pointer. If document does not exist, skip it
-			for (Qry q_i: this.args) {
-				if(q_i == q_0) continue;
-				q_i.docIteratorAdvanceTo(current_doc);
+		this.materialize();
+	}
 
-				if(!q_i.docIteratorHasMatch(null) || q_i.docIteratorGetMatch() != current_doc){
-					q_0.docIteratorAdvancePast(current_doc);
-					break;
-				}
+	@Override
+	public int nextMatch(int docid) {
 
-			}
-			if(!q_0.docIteratorHasMatch(null) || q_0.docIteratorGetMatch() != current_doc) continue;
+		while (true) {
 
+			//move all document pointers to the next document that they all contain
+			int current_doc = this.advanceArgsToMatchAll(docid);
+			if(current_doc == Qry.INVALID_DOCID) return Qry.INVALID_DOCID;
 
 			//Here all pointers are in the same documents.
 
-			List<Integer> positions = new ArrayList<Integer>();
+			this.positionsBufferSize = 0;
 			ArrayList<QryObject> qryObjectList = new ArrayList<>(this.args.size());
 			
 
@@ -63,7 +37,10 @@ public class QryIopWindow extends QryIop {
 				}
 				qryObjectList.add(new QryObject(q_iop.locIteratorGetMatch(),q_iop));
 			}
-			if (qryObjectList.size() < this.args.size()) continue;
+			if (qryObjectList.size() < this.args.size()) {
+				docid = current_doc + 1;
+				continue;
+			}
 			
 			Collections.sort(qryObjectList);
 			
@@ -73,7 +50,7 @@ public class QryIopWindow extends QryIop {
 				int minLocation = currentObject.qry.locIteratorGetMatch();
 				int maxLocation = qryObjectList.get(qryObjectList.size()-1).qry.locIteratorGetMatch();
 				if(maxLocation - minLocation < this.range){
-					positions.add(minLocation);
+					this.positionsBufferAdd(minLocation);
 					for(QryObject obj : qryObjectList){
 						obj.qry.locIteratorAdvance();
 						if(!obj.qry.locIteratorHasMatch()){
@@ -93,10 +70,13 @@ public class QryIopWindow extends QryIop {
 				Collections.sort(qryObjectList);
 				currentObject = qryObjectList.get(0);
 			}
-			q_0.docIteratorAdvancePast(current_doc);
-			if(positions.size() == 0) continue;
-			Collections.sort (positions);
-			this.invertedList.appendPosting (current_doc, positions);
+			if(this.positionsBufferSize > 0){
+				Arrays.sort (this.positionsBuffer, 0, this.positionsBufferSize);
+				return current_doc;
+			}
+
+			//no window in this document, try the next one
+			docid = current_doc + 1;
 		}
 	}
 }
@@ -0,0 +1,114 @@
+/**
+ *  Copyright (c) 2016, Carnegie Mellon University.  All Rights Reserved.
+ */
+import java.io.*;
+
+/**
+ *  A query operator compiled for one retrieval model.  After a query
+ *  is initialized, QrySop.compile binds each score operator to a
+ *  scorer that implements the retrieval model's formula for that
+ *  operator, with its per-query constants (e.g., idf) already
+ *  computed.  Scoring a document then doesn't test the type of the
+ *  retrieval model or look up collection statistics; each scorer
+ *  class has just one implementation of score, which the JIT can
+ *  inline.
+ */
+public abstract class QryScorer {
+
+  //  --------------- Constants and variables ---------------------
+
+  /**
+   *  The Unranked Boolean scorer, for all operators: a document that
+   *  matches scores 1.
+   */
+  static final QryScorer UNRANKED_BOOLEAN = new QryScorer () {
+    public double score (int docid) {
+      return 1.0;
+    }
+  };
+
+  //  --------------- Methods ---------------------------------------
+
+  /**
+   *  Get the score of a document that the operator matches.
+   *  @param docid The internal id of the document.
+   *  @return The document score.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public abstract double score (int docid) throws IOException;
+
+  /**
+   *  Get the score of a document that the operator doesn't match.
+   *  Only the Indri retrieval model gives such documents a score.
+   *  @param docid The internal id of the document.
+   *  @return The document score.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public double defaultScore (int docid) throws IOException {
+    return 0.0;
+  }
+
+  /**
+   *  Does a query operator match a document?
+   *  @param q The query operator.
+   *  @param r The retrieval model that determines what is a match.
+   *  @param docid The internal id of the document.
+   *  @return True if q's docIterator is at the document.
+   */
+  static boolean matches (Qry q, RetrievalModel r, int docid) {
+    return q.docIteratorHasMatch (r) && (q.docIteratorGetMatch () == docid);
+  }
+
+  /**
+   *  The Indri score of each argument for a document: its score if it
+   *  matches the document, otherwise its default score.
+   *  @param args The arguments.
+   *  @param scorers The arguments' scorers.
+   *  @param r The retrieval model.
+   *  @param docid The internal id of the document.
+   *  @param argIndex The index of the argument.
+   *  @return The argument's score.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  static double argScoreIndri (Qry[] args, QryScorer[] scorers,
+                               RetrievalModel r, int docid, int argIndex)
+    throws IOException {
+    if (matches (args[argIndex], r, docid)) {
+      return scorers[argIndex].score (docid);
+    } else {
+      return scorers[argIndex].defaultScore (docid);
+    }
+  }
+
+  /**
+   *  The Ranked Boolean scorer for #AND and #WAND: the smallest score
+   *  of the arguments that match the document.
+   */
+  static class RankedBooleanMin extends QryScorer {
+    private final Qry[] args;
+    private final QryScorer[] scorers;
+    private final RetrievalModel r;
+
+    RankedBooleanMin (Qry[] args, QryScorer[] scorers, RetrievalModel r) {
+      this.args = args;
+      this.scorers = scorers;
+      this.r = r;
+    }
+
+    public double score (int docid) throws IOException {
+      double min = Double.MAX_VALUE;
+
+      for (int i = 0; i < this.args.length; i++) {
+        if (matches (this.args[i], this.r, docid)) {
+          double score = this.scorers[i].score (docid);
+          if (min > score) {
+            min = score;
+          }
+        }
+      }
+
+      if (min == Double.MAX_VALUE) min = 0.0;
+      return min;
+    }
+  }
+}
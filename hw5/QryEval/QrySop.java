@@ -15,15 +15,75 @@ import java.util.ArrayList;
  */
 public abstract class QrySop extends Qry {
 	ArrayList<Double> weights = new ArrayList<>();
+
+  /**
+   *  The scorer that the operator was compiled to, or null if it
+   *  hasn't been compiled since it was initialized.
+   */
+  private QryScorer scorer = null;
+  private RetrievalModel scorerModel = null;
+
   /**
    *  Get a score for the document that docIteratorHasMatch matched.
+   *  The operator is compiled if necessary.
    *  @param r The retrieval model that determines how scores are calculated.
    *  @return The document score.
    *  @throws IOException Error accessing the Lucene index
    */
-  public abstract double getScore (RetrievalModel r)
+  public double getScore (RetrievalModel r) throws IOException {
+    return this.compile (r).score (this.docIteratorGetMatch ());
+  }
+
+  /**
+   *  Compile the query operator (and its arguments) into a scorer for
+   *  a retrieval model.  The operator must have been initialized.  The
+   *  scorer is kept until the operator is initialized again.
+   *  @param r The retrieval model that determines how scores are calculated.
+   *  @return The scorer.
+   *  @throws IOException Error accessing the Lucene index
+   */
+  public QryScorer compile (RetrievalModel r) throws IOException {
+    if ((this.scorer == null) || (this.scorerModel != r)) {
+      this.scorer = this.newScorer (r);
+      this.scorerModel = r;
+    }
+    return this.scorer;
+  }
+
+  /**
+   *  Create a scorer that implements this query operator in a
+   *  retrieval model.
+   *  @param r The retrieval model that determines how scores are calculated.
+   *  @return The scorer.
+   *  @throws IOException Error accessing the Lucene index
+   *  @throws IllegalArgumentException The retrieval model doesn't
+   *    support the operator.
+   */
+  protected abstract QryScorer newScorer (RetrievalModel r)
     throws IOException;
-  public abstract double getDefaultScore(RetrievalModel r) throws IOException;
+
+  /**
+   *  Get the query arguments as an array, for scorers.
+   *  @return The arguments.
+   */
+  protected Qry[] getArgArray () {
+    return this.args.toArray (new Qry[this.args.size ()]);
+  }
+
+  /**
+   *  Compile each of the query arguments.
+   *  @param r The retrieval model that determines how scores are calculated.
+   *  @return The arguments' scorers.
+   *  @throws IOException Error accessing the Lucene index
+   */
+  protected QryScorer[] compileArgs (RetrievalModel r) throws IOException {
+    QryScorer[] scorers = new QryScorer[this.args.size ()];
+
+    for (int i = 0; i < scorers.length; i++) {
+      scorers[i] = ((QrySop) this.args.get (i)).compile (r);
+    }
+    return scorers;
+  }
 
   /**
    *  Initialize the query operator (and its arguments), including any
@@ -35,9 +95,22 @@ public abstract class QrySop extends Qry {
    */
   
   public void initialize(RetrievalModel r) throws IOException {
+    this.scorer = null;
+
     for (Qry q_i: this.args) {
       q_i.initialize (r);
     }
   }
 
+  /**
+   *  Initialize the query operator (and its arguments) from another
+   *  copy of the same query that is initialized already.
+   *  @param other An initialized query with the same structure.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public void initializeFrom(Qry other) throws IOException {
+    this.scorer = null;
+    super.initializeFrom (other);
+  }
+
 }
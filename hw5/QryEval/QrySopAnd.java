@@ -2,97 +2,65 @@ import java.io.IOException;
 
 public class QrySopAnd extends QrySop {
 
+	/**
+	 *  Create a scorer that implements the AND operator in a retrieval
+	 *  model.
+	 *  @param r The retrieval model that determines how scores are calculated.
+	 *  @return The scorer.
+	 *  @throws IOException Error accessing the Lucene index
+	 */
 	@Override
-	public double getScore(RetrievalModel r) throws IOException {
-		if (this.docIteratorHasMatch(r)){
-			if (r instanceof RetrievalModelUnrankedBoolean) {
-				return this.getScoreUnrankedBoolean (r);
-			} else if( r instanceof RetrievalModelRankedBoolean){
-				return this.getScoreRankedBoolean(r);
-			}else if (r instanceof RetrievalModelIndri){
-				return this.getScoreIndri(r);
-			}
-			else{
-				throw new IllegalArgumentException
-				(r.getClass().getName() + " doesn't support the AND operator.");
-			}
-		}else{
-			return this.getDefaultScore(r);
-		}
-	}
-	public double getDefaultScore(RetrievalModel r) throws IOException{
+	protected QryScorer newScorer(RetrievalModel r) throws IOException {
 		if (r instanceof RetrievalModelUnrankedBoolean) {
-			return this.getDefaultScoreUnrankedBoolean (r);
+			return QryScorer.UNRANKED_BOOLEAN;
 		} else if( r instanceof RetrievalModelRankedBoolean){
-			return this.getDefaultScoreRankedBoolean(r);
+			//Return the min value of the matches
+			return new QryScorer.RankedBooleanMin(this.getArgArray(),
+					this.compileArgs(r), r);
 		}else if (r instanceof RetrievalModelIndri){
-			return this.getDefaultScoreIndri(r);
+			return new IndriScorer(this.getArgArray(), this.compileArgs(r), r);
 		}
 		else{
 			throw new IllegalArgumentException
 			(r.getClass().getName() + " doesn't support the AND operator.");
 		}
 	}
-	
 
-	private double getDefaultScoreRankedBoolean(RetrievalModel r) {
-		return 0.0;
-	}
-
-	private double getDefaultScoreUnrankedBoolean(RetrievalModel r) {
-		return 0.0;
-	}
+	/**
+	 *  The Indri AND score is the geometric mean of the argument scores.
+	 *  A document that doesn't match gets the same combination of the
+	 *  arguments' default scores.
+	 */
+	static final class IndriScorer extends QryScorer {
+		private final Qry[] args;
+		private final QryScorer[] scorers;
+		private final RetrievalModel r;
+		private final double exponent;
 
-	private double getDefaultScoreIndri(RetrievalModel r) throws IOException {
-		return getScoreIndri(r);
-		
-	}
-	
-	private double getScoreIndri(RetrievalModel r) throws IOException {
-
-		double prod = 1.0;
-		
-		
-		for(Qry arg : this.args){
-
-			if(arg instanceof QrySop){
-				QrySop sopArg = (QrySop) arg;
-				double score = 0.0;
-				if(arg.docIteratorHasMatch(r) &&
-						arg.docIteratorGetMatch() == ((RetrievalModelIndri) r).currentDoc ){
-					score = sopArg.getScore(r);
-				}else{
-					score = sopArg.getDefaultScore(r);
-				}
-				prod*= Math.pow(score, 1.0/this.args.size());
-			}
+		IndriScorer(Qry[] args, QryScorer[] scorers, RetrievalModel r) {
+			this.args = args;
+			this.scorers = scorers;
+			this.r = r;
+			this.exponent = 1.0/args.length;
 		}
 
-		return prod;
-	}
-	private double getScoreUnrankedBoolean(RetrievalModel r) {
-		return 1.0;
-	}
-	private double getScoreRankedBoolean(RetrievalModel r) throws IOException {
-		//Return the min value of the matches
-		double min = Double.MAX_VALUE;
-		for(Qry arg : this.args){
-			if(!arg.docIteratorHasMatch(r)) continue;
+		public double score(int docid) throws IOException {
+			double prod = 1.0;
 
-			if(this.docIteratorGetMatch() == arg.docIteratorGetMatch()){
-				if(arg instanceof QrySop){
-					QrySop sopArg = (QrySop) arg;
-					double score = sopArg.getScore(r);
-					if(min > score){
-						min = score;
-					}
-				}
+			for (int i = 0; i < this.args.length; i++) {
+				double score =
+					QryScorer.argScoreIndri(this.args, this.scorers, this.r, docid, i);
+				prod*= Math.pow(score, this.exponent);
 			}
+
+			return prod;
 		}
-		if(min == Double.MAX_VALUE) min = 0.0;
-		return min;
 
+		public double defaultScore(int docid) throws IOException {
+			return this.score(docid);
+		}
 	}
+
 	@Override
 	public boolean docIteratorHasMatch(RetrievalModel r) {
 		if(r instanceof RetrievalModelIndri){
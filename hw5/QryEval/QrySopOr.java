@@ -19,21 +19,19 @@ public class QrySopOr extends QrySop {
 	}
 
 	/**
-	 *  Get a score for the document that docIteratorHasMatch matched.
+	 *  Create a scorer that implements the OR operator in a retrieval
+	 *  model.
 	 *  @param r The retrieval model that determines how scores are calculated.
-	 *  @return The document score.
+	 *  @return The scorer.
 	 *  @throws IOException Error accessing the Lucene index
 	 */
-	public double getScore (RetrievalModel r) throws IOException {
-		if(!this.docIteratorHasMatch(r)){
-			return getDefaultScore(r);
-		}
+	protected QryScorer newScorer (RetrievalModel r) throws IOException {
 		if (r instanceof RetrievalModelUnrankedBoolean) {
-			return this.getScoreUnrankedBoolean (r);
+			return QryScorer.UNRANKED_BOOLEAN;
 		}else if(r instanceof RetrievalModelRankedBoolean) {
-			return this.getScoreRankedBoolean(r);
+			return new RankedBooleanScorer(this.getArgArray(), this.compileArgs(r), r);
 		}else if (r instanceof RetrievalModelIndri){
-			return this.getScoreIndri(r);
+			return new IndriScorer(this.getArgArray(), this.compileArgs(r), r);
 		}
 		else {
 			throw new IllegalArgumentException
@@ -41,91 +39,70 @@ public class QrySopOr extends QrySop {
 		}
 	}
 
-	private double getScoreIndri(RetrievalModel r) throws IOException {
-		
-		double prod = 1.0;
-		
-		for(Qry arg : this.args){
-
-			if(arg instanceof QrySop){
-				QrySop sopArg = (QrySop) arg;
-				double score = 0.0;
-				if(arg.docIteratorHasMatch(r) &&
-						arg.docIteratorGetMatch() == ((RetrievalModelIndri) r).currentDoc ){
-					score = sopArg.getScore(r);
-				}else{
-					score = sopArg.getDefaultScore(r);
-				}
+	/**
+	 *  The Indri OR score is the probability that any argument matches.
+	 *  A document that doesn't match gets the same combination of the
+	 *  arguments' default scores.
+	 */
+	static final class IndriScorer extends QryScorer {
+		private final Qry[] args;
+		private final QryScorer[] scorers;
+		private final RetrievalModel r;
+
+		IndriScorer(Qry[] args, QryScorer[] scorers, RetrievalModel r) {
+			this.args = args;
+			this.scorers = scorers;
+			this.r = r;
+		}
+
+		public double score(int docid) throws IOException {
+			double prod = 1.0;
+
+			for (int i = 0; i < this.args.length; i++) {
+				double score =
+					QryScorer.argScoreIndri(this.args, this.scorers, this.r, docid, i);
 				prod*= (1 - score);
 			}
+
+			return 1 - prod;
 		}
 
-		return 1 - prod;
+		public double defaultScore(int docid) throws IOException {
+			return this.score(docid);
+		}
 	}
 
 	/**
-	 *  getScore for the UnrankedBoolean retrieval model.
-	 *  @param r The retrieval model that determines how scores are calculated.
-	 *  @return The document score.
-	 *  @throws IOException Error accessing the Lucene index
+	 *  The Ranked Boolean OR score is the largest score of the arguments
+	 *  that match the document.
 	 */
-	private double getScoreUnrankedBoolean (RetrievalModel r) throws IOException {
-		if (! this.docIteratorHasMatchCache()) {
-			return 0.0;
-		} else {
-			return 1.0;
+	static final class RankedBooleanScorer extends QryScorer {
+		private final Qry[] args;
+		private final QryScorer[] scorers;
+		private final RetrievalModel r;
+
+		RankedBooleanScorer(Qry[] args, QryScorer[] scorers, RetrievalModel r) {
+			this.args = args;
+			this.scorers = scorers;
+			this.r = r;
 		}
-	}
-	private double getScoreRankedBoolean(RetrievalModel r) throws IOException {
-		if (! this.docIteratorHasMatchCache()) {
-			return 0.0;
-		} else {
+
+		public double score(int docid) throws IOException {
 			//Return the max value of the matches
 			double max = Double.MIN_VALUE;
-			for(Qry arg : this.args){
-				if(arg instanceof QrySop){
-					if(!arg.docIteratorHasMatch(r)) continue;
-
-					if(this.docIteratorGetMatch() == arg.docIteratorGetMatch()){
-						QrySop sopArg = (QrySop) arg;
-						double score = sopArg.getScore(r);
-						if(max < score){
-							max = score;
-						}
+
+			for (int i = 0; i < this.args.length; i++) {
+				if (QryScorer.matches(this.args[i], this.r, docid)) {
+					double score = this.scorers[i].score(docid);
+					if(max < score){
+						max = score;
 					}
 				}
 			}
+
 			if(max == Double.MIN_VALUE) max = 0.0;
 			return max;
 		}
-
-
-	}
-
-	@Override
-	public double getDefaultScore(RetrievalModel r) throws IOException {
-		if (r instanceof RetrievalModelUnrankedBoolean) {
-			return this.getDefaultScoreUnrankedBoolean (r);
-		}else if(r instanceof RetrievalModelRankedBoolean) {
-			return this.getDefaultScoreRankedBoolean(r);
-		}else if (r instanceof RetrievalModelIndri){
-			return this.getDefaultScoreIndri(r);
-		}
-		else {
-			throw new IllegalArgumentException
-			(r.getClass().getName() + " doesn't support the OR operator.");
-		}	}
-
-	private double getDefaultScoreIndri(RetrievalModel r) throws IOException {
-		return this.getScoreIndri(r);
-	}
-
-	private double getDefaultScoreRankedBoolean(RetrievalModel r) {
-		return 0.0;
-	}
-
-	private double getDefaultScoreUnrankedBoolean(RetrievalModel r) {
-		return 0.0;
 	}
 
 }
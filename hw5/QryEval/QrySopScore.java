@@ -9,11 +9,6 @@ import java.lang.IllegalArgumentException;
  */
 public class QrySopScore extends QrySop {
 
-	/**
-	 *  Document-independent values that should be determined just once.
-	 *  Some retrieval models have these, some don't.
-	 */
-
 	/**
 	 *  Indicates whether the query has a match.
 	 *  @param r The retrieval model that determines what is a match
@@ -24,157 +19,188 @@ public class QrySopScore extends QrySop {
 	}
 
 	/**
-	 *  Get a score for the document that docIteratorHasMatch matched.
+	 *  Create a scorer that implements the SCORE operator in a
+	 *  retrieval model.
 	 *  @param r The retrieval model that determines how scores are calculated.
-	 *  @return The document score.
+	 *  @return The scorer.
 	 *  @throws IOException Error accessing the Lucene index
 	 */
-	public double getScore (RetrievalModel r) throws IOException {
-		if (! this.docIteratorHasMatchCache()) {
-			return this.getDefaultScore(r);
-		}
+	protected QryScorer newScorer (RetrievalModel r) throws IOException {
+		QryIop qry = this.getArg(0);
+
 		if (r instanceof RetrievalModelUnrankedBoolean) {
-			return this.getScoreUnrankedBoolean (r);
+			return QryScorer.UNRANKED_BOOLEAN;
 		} else if (r instanceof RetrievalModelRankedBoolean){
-			return this.getScoreRankedBoolean(r);
+			return new RankedBooleanScorer(qry);
 		}
 		else if (r instanceof RetrievalModelBM25){
-			return this.getScoreBM25(r);
+			return new BM25Scorer(qry, (RetrievalModelBM25) r);
 		}else if (r instanceof RetrievalModelIndri){
-			return this.getScoreIndri(r);
+			return new IndriScorer(qry, (RetrievalModelIndri) r);
 		} else{
 			throw new IllegalArgumentException
 			(r.getClass().getName() + " doesn't support the SCORE operator.");
 		}
 	}
-	private double getDefaultScoreRankedBoolean(RetrievalModel r) {
-		return 0.0;
-	}
 
-	private double getDefaultScoreUnrankedBoolean(RetrievalModel r) {
-		return 0.0;
-	}
-	private double getDefaultScoreBM25(RetrievalModel r) {
-		return 0.0;
-	}
-	
-	private double getDefaultScoreIndri(RetrievalModel r) {
-		QryIop qry = this.getArg(0);
-		return computeIndriScore(0,r,qry);
-	}
 	/**
-	 * Function to compute the Indri score. It uses the document ID store in 
-	 * the retrieval model and is called with a 0 for termFrequency when computing
-	 * the default score
-	 * @param termFrequency
-	 * @param r
-	 * @param qry
-	 * @return
+	 *  A scorer for the SCORE operator.  It can also score a document
+	 *  given its term frequency, for evaluation strategies that read
+	 *  postings without the docIterator.
 	 */
-	private double computeIndriScore(int termFrequency, RetrievalModel r,QryIop qry) {
-
-		RetrievalModelIndri model = (RetrievalModelIndri) r;
-
-		int ctf = qry.getCtf();//Corpus term frequency
-		long cLen = 0; //sum of all term frequencies of terms in this field
-		int docLen = 0;
-		try {
-			cLen = Idx.getSumOfFieldLengths(qry.getField());
-			docLen = Idx.getFieldLength(qry.getField(), model.currentDoc);
-		} catch (IOException e) {
-			e.printStackTrace();
-		}
-		double p_q_c = ((double)ctf)/cLen;//probability P(t|C)
-		
+	static abstract class TermScorer extends QryScorer {
+		final QryIop qry;
 
-		return (1-model.lambda)*((termFrequency + model.mu*p_q_c)/(docLen + model.mu)) +
-				model.lambda*p_q_c;
-	}
+		TermScorer(QryIop qry) {
+			this.qry = qry;
+		}
 
+		public double score (int docid) throws IOException {
+			return this.score(this.qry.docIteratorGetMatchTf(), docid);
+		}
 
-	private double getScoreIndri(RetrievalModel r) throws IOException{
-		QryIop qry = this.getArg(0);
-		
-		return computeIndriScore(qry.docIteratorGetMatchPosting().tf,r,qry);
-		
+		/**
+		 *  Get the score of a document.
+		 *  @param tf The term frequency in the document.
+		 *  @param docid The internal id of the document.
+		 *  @return The document score.
+		 *  @throws IOException Error accessing the Lucene index
+		 */
+		abstract double score (int tf, int docid) throws IOException;
 	}
 
-	private double getScoreBM25(RetrievalModel r) throws IOException {
+	/**
+	 *  The Ranked Boolean score is the term frequency.
+	 */
+	static final class RankedBooleanScorer extends TermScorer {
+		RankedBooleanScorer(QryIop qry) {
+			super(qry);
+		}
 
+		double score (int tf, int docid) {
+			return tf;
+		}
+	}
 
-		RetrievalModelBM25 model= (RetrievalModelBM25) r;
-		QryIop qry = this.getArg(0);
+	/**
+	 *  The BM25 score.  idf and the query term weight are computed
+	 *  once, and so are the field's average length and ordinal.
+	 */
+	static final class BM25Scorer extends TermScorer {
+		private final int fieldOrdinal;
+		private final double idf;
+		private final double qtfWeight;
+		private final double k_1;
+		private final double b;
+		private final double averageDocLen;
+
+		BM25Scorer(QryIop qry, RetrievalModelBM25 model) throws IOException {
+			super(qry);
+
+			CollectionStats stats = model.getCollectionStats();
+			int df = qry.getDf();
+			long N = stats.getNumDocs();
+			double qtf = 1.0;
+
+			this.fieldOrdinal = Idx.getFieldOrdinal(qry.getField());
+			this.idf = Math.max(0, Math.log((N + 0.5 - df)/(df+0.5)));
+			this.qtfWeight = (model.getK3()+1)*qtf/(model.getK3()+qtf);
+			this.k_1 = model.getK1();
+			this.b = model.getB();
+			this.averageDocLen = stats.getAverageFieldLength(qry.getField());
+		}
 
+		double score (int tf, int docid) throws IOException {
+			int docLen = Idx.getFieldLength(this.fieldOrdinal, docid);
 
-		int tf = qry.docIteratorGetMatchPosting().tf;
-		int docLen = Idx.getFieldLength(qry.getField(), qry.docIteratorGetMatchPosting().docid);
-		int df = qry.getDf();
-		long N = Idx.getNumDocs();
-		double qtf = 1.0;
-		double averageDocLen = 0.0;
-
-		//Caches doc length to make processing faster
-		if(model.containsField(qry.getField())){
-			averageDocLen = model.getAverageDocLen(qry.getField());
-		}else{
-			averageDocLen = Idx.getSumOfFieldLengths(qry.getField()) /
-					(float) Idx.getDocCount (qry.getField());
-			model.addAverageDocLen(qry.getField(), averageDocLen);
+			return this.idf*
+					(tf/(tf+this.k_1*(1-this.b+this.b*docLen/this.averageDocLen)))*
+					this.qtfWeight;
 		}
 
-		return Math.max(0, Math.log((N + 0.5 - df)/(df+0.5)))*
-				(tf/(tf+model.getK1()*(1-model.getB()+model.getB()*docLen/averageDocLen)))*
-				((model.getK3()+1)*qtf/(model.getK3()+qtf));
-
+		/**
+		 *  An upper bound on the score of any document, for dynamic
+		 *  pruning.  The tf weight grows with tf and shrinks as the
+		 *  document gets longer, so no document scores more than one
+		 *  with the largest tf and no other terms.
+		 *  @return The largest possible document score.
+		 */
+		double maxScore () {
+			int maxTf = this.qry.getMaxTf();
+
+			if (maxTf == 0) {
+				return 0.0;			// No document matches.
+			}
+
+			double K = this.k_1*Math.max(0, 1-this.b);
+			double tfWeight = (maxTf == Integer.MAX_VALUE) ? 1.0 :
+				maxTf/(maxTf+K);
+
+			return this.idf*tfWeight*this.qtfWeight;
+		}
 	}
+
 	/**
-	 *  getScore for the Unranked retrieval model.
-	 *  @param r The retrieval model that determines how scores are calculated.
-	 *  @return The document score.
-	 *  @throws IOException Error accessing the Lucene index
+	 *  The Indri score, with Dirichlet smoothing and Jelinek-Mercer
+	 *  mixing.  The term's collection probability P(t|C) is computed
+	 *  once, and so is the field's ordinal.  A document that doesn't
+	 *  match gets the score of tf 0.
 	 */
-	public double getScoreUnrankedBoolean (RetrievalModel r) throws IOException {
-
-		return 1.0;
+	static final class IndriScorer extends TermScorer {
+		private final int fieldOrdinal;
+		private final int mu;
+		private final double oneMinusLambda;
+		private final double muP_q_c;
+		private final double lambdaP_q_c;
+
+		IndriScorer(QryIop qry, RetrievalModelIndri model) throws IOException {
+			super(qry);
+
+			int ctf = qry.getCtf();//Corpus term frequency
+			//sum of all term frequencies of terms in this field
+			long cLen = model.getCollectionStats().getSumOfFieldLengths(qry.getField());
+			double p_q_c = ((double)ctf)/cLen;//probability P(t|C)
+
+			this.fieldOrdinal = Idx.getFieldOrdinal(qry.getField());
+			this.mu = model.mu;
+			this.oneMinusLambda = 1-model.lambda;
+			this.muP_q_c = model.mu*p_q_c;
+			this.lambdaP_q_c = model.lambda*p_q_c;
+		}
 
-	}
-	public double getScoreRankedBoolean (RetrievalModel r) throws IOException {
+		double score (int tf, int docid) throws IOException {
+			int docLen = Idx.getFieldLength(this.fieldOrdinal, docid);
 
-		QryIop qry = this.getArg(0);
-		//Return score as term frequency
-		return qry.docIteratorGetMatchPosting().tf;
+			return this.oneMinusLambda*((tf + this.muP_q_c)/(docLen + this.mu)) +
+					this.lambdaP_q_c;
+		}
 
+		public double defaultScore (int docid) throws IOException {
+			return this.score(0, docid);
+		}
 	}
 
 	/**
 	 *  Initialize the query operator (and its arguments), including any
 	 *  internal iterators.  If the query operator is of type QryIop, it
-	 *  is fully evaluated, and the results are stored in an internal
+	 *  is evaluated, and the results are stored in an internal
 	 *  inverted list that may be accessed via the internal iterator.
 	 *  @param r A retrieval model that guides initialization
 	 *  @throws IOException Error accessing the Lucene index.
 	 */
 	public void initialize (RetrievalModel r) throws IOException {
 		Qry q = this.args.get (0);
-		q.initialize (r);
-	}
 
-	@Override
-	public double getDefaultScore(RetrievalModel r){
-		if (r instanceof RetrievalModelUnrankedBoolean) {
-			return this.getDefaultScoreUnrankedBoolean (r);
-		} else if( r instanceof RetrievalModelRankedBoolean){
-			return this.getDefaultScoreRankedBoolean(r);
-		}else if (r instanceof RetrievalModelIndri){
-			return this.getDefaultScoreIndri(r);
-		}else if (r instanceof RetrievalModelBM25){
-			return this.getDefaultScoreBM25(r);
-		} else{
-			throw new IllegalArgumentException
-			(r.getClass().getName() + " doesn't support the AND operator.");
+		//  The Boolean models don't use df or ctf, so a #NEAR or #WINDOW
+		//  argument can stream its matches instead of building a list.
+
+		if (q instanceof QryIop) {
+			((QryIop) q).statisticsRequired =
+				! ((r instanceof RetrievalModelUnrankedBoolean) ||
+				   (r instanceof RetrievalModelRankedBoolean));
 		}
+
+		super.initialize (r);
 	}
 
-	
-	
 }
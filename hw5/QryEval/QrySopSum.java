@@ -3,6 +3,7 @@
  */
 
 import java.io.*;
+import java.util.*;
 
 /**
  *  The OR operator for all retrieval models.
@@ -19,60 +20,223 @@ public class QrySopSum extends QrySop {
 	}
 
 	/**
-	 *  Get a score for the document that docIteratorHasMatch matched.
+	 *  Create a scorer that implements the SUM operator in a retrieval
+	 *  model.
 	 *  @param r The retrieval model that determines how scores are calculated.
-	 *  @return The document score.
+	 *  @return The scorer.
 	 *  @throws IOException Error accessing the Lucene index
 	 */
-	public double getScore (RetrievalModel r) throws IOException {
-		if(!this.docIteratorHasMatch(r)){
-			return getDefaultScore(r);
-		}
+	protected QryScorer newScorer (RetrievalModel r) throws IOException {
 		if (r instanceof RetrievalModelBM25){
-			return getScoreBM25(r);
+			return new BM25Scorer(this.getArgArray(), this.compileArgs(r), r);
 		}else {
 			throw new IllegalArgumentException
 			(r.getClass().getName() + " doesn't support the OR operator.");
 		}
 	}
 
-	private double getDefaultScoreBM25(RetrievalModel r){
-		return 0.0;
+	/**
+	 *  The BM25 SUM score is the sum of the scores of the arguments that
+	 *  match the document.
+	 */
+	static final class BM25Scorer extends QryScorer {
+		private final Qry[] args;
+		private final QryScorer[] scorers;
+		private final RetrievalModel r;
+
+		BM25Scorer(Qry[] args, QryScorer[] scorers, RetrievalModel r) {
+			this.args = args;
+			this.scorers = scorers;
+			this.r = r;
+		}
+
+		public double score(int docid) throws IOException {
+			double sum = 0.0;
+
+			for (int i = 0; i < this.args.length; i++) {
+				if (QryScorer.matches(this.args[i], this.r, docid)) {
+					sum+=this.scorers[i].score(docid);
+				}
+			}
+			return sum;
+		}
+	}
+
+	/**
+	 *  Relative slack added to score upper bounds, so that rounding
+	 *  differences between partial scores (which are added in bound
+	 *  order) and final scores never prune a document that belongs in
+	 *  the top k.
+	 */
+	private static final double BOUND_SLACK = 1e-9;
+
+	/**
+	 *  Can the query be evaluated by getTopKBM25?  It can if every
+	 *  argument is a #SCORE operator.
+	 *  @param r The retrieval model that determines how scores are calculated.
+	 *  @return True if the query can be evaluated with pruning.
+	 */
+	public boolean canPruneBM25 (RetrievalModel r) {
+		if (! (r instanceof RetrievalModelBM25)) {
+			return false;
+		}
+
+		for (Qry arg : this.args) {
+			if (! (arg instanceof QrySopScore)) {
+				return false;
+			}
+		}
+		return true;
 	}
 
 	/**
-	 *  getScore for the BM25 retrieval model.
+	 *  Evaluate the query with MaxScore dynamic pruning, and return
+	 *  the scores of (at least) the k highest-scoring documents.  Each
+	 *  argument has a score upper bound.  With the arguments sorted by
+	 *  bound, the ones whose bounds add up to less than the k'th best
+	 *  score so far can't make a document enter the top k on their
+	 *  own, so candidate documents are only drawn from the others.  A
+	 *  candidate stops being scored as soon as its score plus the
+	 *  bounds of its unscored arguments is less than the k'th best
+	 *  score.  Documents that aren't pruned get exactly the score that
+	 *  the SUM scorer would give them, so the ranking of the top k is the
+	 *  same as for exhaustive evaluation.  The query must have been
+	 *  initialized.
 	 *  @param r The retrieval model that determines how scores are calculated.
-	 *  @return The document score.
+	 *  @param k The number of documents that must be ranked correctly.
+	 *  @return The unsorted scores of the documents that can be in the top k.
 	 *  @throws IOException Error accessing the Lucene index
 	 */
+	public ScoreList getTopKBM25 (RetrievalModel r, int k) throws IOException {
+
+		int n = this.args.size ();
+
+		//  Order the arguments by upper bound.  cumulative[i] is the sum
+		//  of the bounds of the first i+1 arguments in that order.
 
-	private double getScoreBM25(RetrievalModel r) throws IOException {
+		final double[] bounds = new double[n];
+		Integer[] order = new Integer[n];
+		QryScorer[] scorers = this.compileArgs (r);
 
+		for (int i = 0; i < n; i++) {
+			bounds[i] = ((QrySopScore.BM25Scorer) scorers[i]).maxScore ();
+			order[i] = i;
+		}
+
+		Arrays.sort (order, new Comparator<Integer> () {
+			public int compare (Integer a, Integer b) {
+				return Double.compare (bounds[a], bounds[b]);
+			}
+		});
+
+		QrySopScore[] sorted = new QrySopScore[n];
+		QryScorer[] sortedScorers = new QryScorer[n];
+		double[] cumulative = new double[n];
 		double sum = 0.0;
-		for(Qry arg : this.args){
-			if(arg instanceof QrySop){
-				if(!arg.docIteratorHasMatch(r)) continue;
 
-				if(this.docIteratorGetMatch() == arg.docIteratorGetMatch()){
-					QrySop sopArg = (QrySop) arg;
+		for (int i = 0; i < n; i++) {
+			sorted[i] = (QrySopScore) this.args.get (order[i]);
+			sortedScorers[i] = scorers[order[i]];
+			sum += bounds[order[i]];
+			cumulative[i] = sum;
+		}
+
+		//  The documents that can be in the top k.  Until there are k
+		//  of them, the threshold is negative infinity and nothing is
+		//  pruned.
+
+		TopKCollector collector = new TopKCollector (k);
+		double threshold = collector.threshold ();
+
+		int firstEssential = 0;
+		double[] argScores = new double[n];
+		boolean[] argMatched = new boolean[n];
 
-					sum+=sopArg.getScore(r);
+		while (true) {
+
+			//  The next candidate is the smallest docid matched by an
+			//  essential argument.
+
+			int docid = Qry.INVALID_DOCID;
+
+			for (int i = firstEssential; i < n; i++) {
+				if (sorted[i].docIteratorHasMatch (r)) {
+					int docid_i = sorted[i].docIteratorGetMatch ();
+					if ((docid == Qry.INVALID_DOCID) || (docid_i < docid)) {
+						docid = docid_i;
+					}
 				}
 			}
-		}
-		return sum;
 
-	}
+			if (docid == Qry.INVALID_DOCID)
+				break;
 
-	@Override
-	public double getDefaultScore(RetrievalModel r) throws IOException {
-		if (r instanceof RetrievalModelBM25){
-			return getDefaultScoreBM25(r);
-		}else {
-			throw new IllegalArgumentException
-			(r.getClass().getName() + " doesn't support the OR operator.");
+			Arrays.fill (argMatched, false);
+			double partial = 0.0;
+
+			for (int i = firstEssential; i < n; i++) {
+				if (sorted[i].docIteratorHasMatch (r) &&
+				    (sorted[i].docIteratorGetMatch () == docid)) {
+					argScores[order[i]] = sortedScorers[i].score (docid);
+					argMatched[order[i]] = true;
+					partial += argScores[order[i]];
+				}
+			}
+
+			//  Score the non-essential arguments, most valuable first,
+			//  while the document can still enter the top k.
+
+			boolean pruned = false;
+
+			for (int i = firstEssential - 1; i >= 0; i--) {
+				if ((partial + cumulative[i]) * (1.0 + BOUND_SLACK) < threshold) {
+					pruned = true;
+					break;
+				}
+
+				sorted[i].docIteratorAdvanceTo (docid);
+
+				if (sorted[i].docIteratorHasMatch (r) &&
+				    (sorted[i].docIteratorGetMatch () == docid)) {
+					argScores[order[i]] = sortedScorers[i].score (docid);
+					argMatched[order[i]] = true;
+					partial += argScores[order[i]];
+				}
+			}
+
+			if (! pruned) {
+
+				//  Add the argument scores in the order that BM25Scorer
+				//  does, so that the score is identical.
+
+				double score = 0.0;
+
+				for (int i = 0; i < n; i++) {
+					if (argMatched[i]) {
+						score += argScores[i];
+					}
+				}
+
+				if (score >= threshold) {
+					collector.collect (docid, score);
+					threshold = collector.threshold ();
+
+					if (threshold > Double.NEGATIVE_INFINITY) {
+						while ((firstEssential < n) &&
+						       (cumulative[firstEssential] * (1.0 + BOUND_SLACK) <
+							threshold)) {
+							firstEssential ++;
+						}
+					}
+				}
+			}
+
+			for (int i = firstEssential; i < n; i++) {
+				sorted[i].docIteratorAdvancePast (docid);
+			}
 		}
+
+		return collector.getScoreList ();
 	}
 
 }
@@ -2,104 +2,70 @@ import java.io.IOException;
 import java.util.ArrayList;
 
 public class QrySopWAnd extends QrySop {
-	
-	
-	
+
+	/**
+	 *  Create a scorer that implements the WAND operator in a retrieval
+	 *  model.
+	 *  @param r The retrieval model that determines how scores are calculated.
+	 *  @return The scorer.
+	 *  @throws IOException Error accessing the Lucene index
+	 */
 	@Override
-	public double getScore(RetrievalModel r) throws IOException {
-		
-		if (this.docIteratorHasMatch(r)){
-			if (r instanceof RetrievalModelUnrankedBoolean) {
-				return this.getScoreUnrankedBoolean (r);
-			} else if( r instanceof RetrievalModelRankedBoolean){
-				return this.getScoreRankedBoolean(r);
-			}else if (r instanceof RetrievalModelIndri){
-				return this.getScoreIndri(r);
-			}
-			else{
-				throw new IllegalArgumentException
-				(r.getClass().getName() + " doesn't support the AND operator.");
-			}
-		}else{
-			return this.getDefaultScore(r);
-		}
-	}
-	public double getDefaultScore(RetrievalModel r) throws IOException{
+	protected QryScorer newScorer(RetrievalModel r) throws IOException {
 		if (r instanceof RetrievalModelUnrankedBoolean) {
-			return this.getDefaultScoreUnrankedBoolean (r);
+			return QryScorer.UNRANKED_BOOLEAN;
 		} else if( r instanceof RetrievalModelRankedBoolean){
-			return this.getDefaultScoreRankedBoolean(r);
+			//Return the min value of the matches
+			return new QryScorer.RankedBooleanMin(this.getArgArray(),
+					this.compileArgs(r), r);
 		}else if (r instanceof RetrievalModelIndri){
-			return this.getDefaultScoreIndri(r);
+			double[] weights = new double[this.weights.size()];
+			for (int i = 0; i < weights.length; i++) {
+				weights[i] = this.weights.get(i);
+			}
+			return new IndriScorer(this.getArgArray(), this.compileArgs(r),
+					weights, r);
 		}
 		else{
 			throw new IllegalArgumentException
 			(r.getClass().getName() + " doesn't support the AND operator.");
 		}
 	}
-	
 
-	private double getDefaultScoreRankedBoolean(RetrievalModel r) {
-		return 0.0;
-	}
-
-	private double getDefaultScoreUnrankedBoolean(RetrievalModel r) {
-		return 0.0;
-	}
+	/**
+	 *  The Indri WAND score is the product of the argument scores, each
+	 *  raised to the power of its weight.  A document that doesn't match
+	 *  gets the same combination of the arguments' default scores.
+	 */
+	static final class IndriScorer extends QryScorer {
+		private final Qry[] args;
+		private final QryScorer[] scorers;
+		private final double[] weights;
+		private final RetrievalModel r;
 
-	private double getDefaultScoreIndri(RetrievalModel r) throws IOException {
-		
-		return getScoreIndri(r);	
-	}
-	
-	private double getScoreIndri(RetrievalModel r) throws IOException {
-
-		double prod = 1.0;
-		
-		int index = 0;
-		for(Qry arg : this.args){
-			
-			if(arg instanceof QrySop){
-				QrySop sopArg = (QrySop) arg;
-				double score = 0.0;
-				if(arg.docIteratorHasMatch(r) &&
-						arg.docIteratorGetMatch() == ((RetrievalModelIndri) r).currentDoc ){
-					score = sopArg.getScore(r);
-				}else{
-					score = sopArg.getDefaultScore(r);
-				}
-				
-				prod*= Math.pow(score, this.weights.get(index));
-			}
-			index+=1;
+		IndriScorer(Qry[] args, QryScorer[] scorers, double[] weights,
+				RetrievalModel r) {
+			this.args = args;
+			this.scorers = scorers;
+			this.weights = weights;
+			this.r = r;
 		}
 
-		return prod;
-	}
-
+		public double score(int docid) throws IOException {
+			double prod = 1.0;
 
-	private double getScoreUnrankedBoolean(RetrievalModel r) {
-		return 1.0;
-	}
-	private double getScoreRankedBoolean(RetrievalModel r) throws IOException {
-		//Return the min value of the matches
-		double min = Double.MAX_VALUE;
-		for(Qry arg : this.args){
-			if(!arg.docIteratorHasMatch(r)) continue;
-
-			if(this.docIteratorGetMatch() == arg.docIteratorGetMatch()){
-				if(arg instanceof QrySop){
-					QrySop sopArg = (QrySop) arg;
-					double score = sopArg.getScore(r);
-					if(min > score){
-						min = score;
-					}
-				}
+			for (int i = 0; i < this.args.length; i++) {
+				double score =
+					QryScorer.argScoreIndri(this.args, this.scorers, this.r, docid, i);
+				prod*= Math.pow(score, this.weights[i]);
 			}
+
+			return prod;
 		}
-		if(min == Double.MAX_VALUE) min = 0.0;
-		return min;
 
+		public double defaultScore(int docid) throws IOException {
+			return this.score(docid);
+		}
 	}
 
 	@Override
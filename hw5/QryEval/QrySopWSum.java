@@ -27,62 +27,62 @@ public class QrySopWSum extends QrySop {
 	}
 
 	/**
-	 *  Get a score for the document that docIteratorHasMatch matched.
+	 *  Create a scorer that implements the WSUM operator in a retrieval
+	 *  model.
 	 *  @param r The retrieval model that determines how scores are calculated.
-	 *  @return The document score.
+	 *  @return The scorer.
 	 *  @throws IOException Error accessing the Lucene index
 	 */
-	public double getScore (RetrievalModel r) throws IOException {
+	protected QryScorer newScorer (RetrievalModel r) throws IOException {
 		initNorm();
-		if(!this.docIteratorHasMatch(r)){
-			return getDefaultScore(r);
-		}
 		if(r instanceof RetrievalModelIndri){
-			return getScoreIndri(r);
+			double[] weights = new double[this.weights.size()];
+			for (int i = 0; i < weights.length; i++) {
+				weights[i] = this.weights.get(i);
+			}
+			return new IndriScorer(this.getArgArray(), this.compileArgs(r),
+					weights, norm, r);
 		}else {
 			throw new IllegalArgumentException
 			(r.getClass().getName() + " doesn't support the OR operator.");
 		}
 	}
 
-	
-	private double getDefaultScoreIndri(RetrievalModel r) throws IOException {
-		initNorm();
-		return getScoreIndri(r);	
-	}
+	/**
+	 *  The Indri WSUM score is the weighted mean of the argument scores.
+	 *  A document that doesn't match gets the same combination of the
+	 *  arguments' default scores.
+	 */
+	static final class IndriScorer extends QryScorer {
+		private final Qry[] args;
+		private final QryScorer[] scorers;
+		private final double[] weights;
+		private final double norm;
+		private final RetrievalModel r;
 
-	private double getScoreIndri(RetrievalModel r) throws IOException {
-		
-		double sum = 0.0;
-		int index = 0;
-		for(Qry arg : this.args){
-			
-			if(arg instanceof QrySop){
-				QrySop sopArg = (QrySop) arg;
-				double score = 0.0;
-				if(arg.docIteratorHasMatch(r) &&
-						arg.docIteratorGetMatch() == ((RetrievalModelIndri) r).currentDoc ){
-					score = sopArg.getScore(r);
-				}else{
-					score = sopArg.getDefaultScore(r);
-				}
-				sum+= score*this.weights.get(index)/norm;
-			}
-			index+=1;
+		IndriScorer(Qry[] args, QryScorer[] scorers, double[] weights,
+				double norm, RetrievalModel r) {
+			this.args = args;
+			this.scorers = scorers;
+			this.weights = weights;
+			this.norm = norm;
+			this.r = r;
 		}
 
-		return sum;
-	}
+		public double score(int docid) throws IOException {
+			double sum = 0.0;
 
-	
+			for (int i = 0; i < this.args.length; i++) {
+				double score =
+					QryScorer.argScoreIndri(this.args, this.scorers, this.r, docid, i);
+				sum+= score*this.weights[i]/this.norm;
+			}
 
-	@Override
-	public double getDefaultScore(RetrievalModel r) throws IOException {
-		if( r instanceof RetrievalModelIndri){
-			return getDefaultScoreIndri(r);
-		}else{
-			throw new IllegalArgumentException
-			(r.getClass().getName() + " doesn't support the OR operator.");
+			return sum;
+		}
+
+		public double defaultScore(int docid) throws IOException {
+			return this.score(docid);
 		}
 	}
 
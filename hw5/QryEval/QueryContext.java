@@ -0,0 +1,71 @@
+/**
+ *  Copyright (c) 2016, Carnegie Mellon University.  All Rights Reserved.
+ */
+import java.util.List;
+import java.util.concurrent.Future;
+
+/**
+ *  The state of one query from the query file while it is evaluated:
+ *  its id and text, the retrieval model, and the output that it
+ *  produces.  Queries are evaluated by worker threads, each of which
+ *  only touches its own QueryContext, and the output of each context
+ *  is written by the main thread in query file order.
+ */
+public class QueryContext {
+
+  //  --------------- Constants and variables ---------------------
+
+  /**
+   *  The query id, e.g., "69".
+   */
+  final String qid;
+
+  /**
+   *  The query text, without the query id.
+   */
+  final String query;
+
+  /**
+   *  The retrieval model that the query is evaluated with.
+   */
+  final RetrievalModel model;
+
+  /**
+   *  The lines of the trec_eval output file that the query produced.
+   *  They are also written to stdout.
+   */
+  final StringBuilder output = new StringBuilder ();
+
+  /**
+   *  The line of the relevance feedback expansion query file that the
+   *  query produced, or null.
+   */
+  String expansionQuery = null;
+
+  /**
+   *  The batches that compute the learning-to-rank features of the
+   *  query's documents, in document order, or null.
+   */
+  List<Future<FeatureBatch>> featureBatches = null;
+
+  //  --------------- Methods ---------------------------------------
+
+  /**
+   *  @param qid The query id.
+   *  @param query The query text.
+   *  @param model The retrieval model.
+   */
+  public QueryContext (String qid, String query, RetrievalModel model) {
+    this.qid = qid;
+    this.query = query;
+    this.model = model;
+  }
+
+  /**
+   *  Add a line to the query's output.
+   *  @param line The line, without a line terminator.
+   */
+  void println (String line) {
+    this.output.append (line).append ("\n");
+  }
+}
@@ -10,6 +10,12 @@
  */
 public abstract class RetrievalModel {
 	private boolean letor = false;
+
+	/**
+	 *  The statistics of the collection that is searched.
+	 */
+	private CollectionStats collectionStats = null;
+
   /**
    *  The name of the default query operator for the retrieval model.
    *  @return The name of the default query operator.
@@ -21,5 +27,11 @@ public abstract class RetrievalModel {
 	public boolean isLetor(){
 		return this.letor;
 	}
+	public void setCollectionStats(CollectionStats stats){
+		this.collectionStats = stats;
+	}
+	public CollectionStats getCollectionStats(){
+		return this.collectionStats;
+	}
   
 }
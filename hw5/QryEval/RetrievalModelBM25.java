@@ -1,5 +1,3 @@
-import java.util.HashMap;
-
 /**
  *  Copyright (c) 2016, Carnegie Mellon University.  All Rights Reserved.
  */
@@ -13,7 +11,12 @@ public class RetrievalModelBM25 extends RetrievalModel {
 	private double k_1 = 0.0;
 	private double k_3 = 0.5;
 	private double b = 0.0;
-	private HashMap<String,Double> averageDocLenMap = new HashMap<>();
+
+	/**
+	 * If greater than 0, flat #SUM queries are evaluated with dynamic
+	 * pruning, and only the top topK documents are ranked correctly.
+	 */
+	private int topK = 0;
 
 	public RetrievalModelBM25(double k_1,double k_3,double b){
 		this.k_1 = k_1;
@@ -33,14 +36,11 @@ public class RetrievalModelBM25 extends RetrievalModel {
 	public double getB(){
 		return this.b;
 	}
-	public void addAverageDocLen(String field, double len){
-		averageDocLenMap.put(field, len);
-	}
-	public boolean containsField(String field){
-		return averageDocLenMap.containsKey(field);
+	public int getTopK(){
+		return this.topK;
 	}
-	public double getAverageDocLen(String field){
-		return averageDocLenMap.get(field);
+	public void setTopK(int k){
+		this.topK = k;
 	}
 	
 }
@@ -10,7 +10,6 @@
 public class RetrievalModelIndri extends RetrievalModel {
 	int mu = 2500;
 	double lambda = 0.4;
-	int currentDoc = 0;
 
 
 	public RetrievalModelIndri(int mu, double lambda){
@@ -0,0 +1,94 @@
+/**
+ *  Copyright (c) 2016, Carnegie Mellon University.  All Rights Reserved.
+ */
+
+/**
+ *  The k largest scores seen so far, kept in a min-heap in a primitive
+ *  array.  Top-k evaluation strategies use the smallest of them (the
+ *  k'th best score) as the threshold that a document must reach to be
+ *  ranked in the top k.
+ */
+public class ScoreHeap {
+
+  //  --------------- Constants and variables ---------------------
+
+  private final double[] heap;
+  private int size = 0;
+
+  //  --------------- Methods ---------------------------------------
+
+  /**
+   *  @param k The number of scores to keep.  It must be positive.
+   */
+  public ScoreHeap (int k) {
+    this.heap = new double[k];
+  }
+
+  /**
+   *  Has the heap seen k scores?
+   *  @return True if min() is the k'th best score.
+   */
+  public boolean isFull () {
+    return (this.size == this.heap.length);
+  }
+
+  /**
+   *  Get the smallest score in the heap.
+   *  @return The smallest score, or 0 if the heap is empty.
+   */
+  public double min () {
+    return (this.size == 0) ? 0.0 : this.heap[0];
+  }
+
+  /**
+   *  Offer a score to the heap.  It is kept if the heap isn't full
+   *  or if it is larger than the smallest score.
+   *  @param score The score.
+   */
+  public void offer (double score) {
+
+    if (this.size < this.heap.length) {
+      int i = this.size++;
+      this.heap[i] = score;
+
+      while (i > 0) {
+        int parent = (i - 1) / 2;
+
+        if (this.heap[parent] <= this.heap[i])
+          break;
+
+        double t = this.heap[parent];
+        this.heap[parent] = this.heap[i];
+        this.heap[i] = t;
+        i = parent;
+      }
+      return;
+    }
+
+    if (score <= this.heap[0])
+      return;
+
+    //  Replace the smallest score, and sift it down.
+
+    int i = 0;
+    this.heap[0] = score;
+
+    while (true) {
+      int child = 2 * i + 1;
+
+      if (child >= this.size)
+        break;
+
+      if ((child + 1 < this.size) && (this.heap[child + 1] < this.heap[child]))
+        child ++;
+
+      if (this.heap[i] <= this.heap[child])
+        break;
+
+      double t = this.heap[child];
+      this.heap[child] = this.heap[i];
+      this.heap[i] = t;
+      i = child;
+    }
+  }
+}
@@ -11,23 +11,34 @@ import java.util.*;
 public class ScoreList {
 
   //  A utility class to create a <internalDocid, externalDocid, score>
-  //  object.
+  //  object.  The external id is read from the index the first time
+  //  that it is needed.  Until then, the ordinal of the external id
+  //  (see ExternalIdTable) orders entries by external id.
 
   private class ScoreListEntry {
     private int docid;
     private String externalId;
+    private int externalIdOrdinal;
     private double score;
 
     private ScoreListEntry(int internalDocid, double score) {
+      ExternalIdTable ids = Idx.getExternalIdTable();
+
       this.docid = internalDocid;
       this.score = score;
+      this.externalIdOrdinal = (ids == null) ? -1 : ids.getOrdinal(internalDocid);
+    }
 
-      try {
-	this.externalId = Idx.getExternalDocid (this.docid);
-      }
-      catch (IOException ex){
-	ex.printStackTrace();
+    private String getExternalId() {
+      if (this.externalId == null) {
+	try {
+	  this.externalId = Idx.getExternalDocid (this.docid);
+	}
+	catch (IOException ex){
+	  ex.printStackTrace();
+	}
       }
+      return this.externalId;
     }
   }
 
@@ -54,6 +65,15 @@ public class ScoreList {
     return this.scores.get(n).docid;
   }
 
+  /**
+   *  Get the external docid of the n'th entry.
+   *  @param n The index of the requested document.
+   *  @return The external document id.
+   */
+  public String getExternalDocid(int n) {
+    return this.scores.get(n).getExternalId();
+  }
+
   /**
    *  Get the score of the n'th entry.
    *  @param n The index of the requested document score.
@@ -114,7 +134,10 @@ public class ScoreList {
 		if (s1.score < s2.score)
 		  return 1;
 		else
-			return s1.externalId.compareTo(s2.externalId);
+		  if ((s1.externalIdOrdinal >= 0) && (s2.externalIdOrdinal >= 0))
+		    return Integer.compare(s1.externalIdOrdinal, s2.externalIdOrdinal);
+		  else
+		    return s1.getExternalId().compareTo(s2.getExternalId());
 	    }
 	  }
   public void sort () {
@@ -0,0 +1,23 @@
+/**
+ *  Copyright (c) 2016, Carnegie Mellon University.  All Rights Reserved.
+ */
+
+/**
+ *  A QryIop operator that combines the locations of its arguments
+ *  (e.g., #SYN, #NEAR, #WINDOW) one document at a time.  QryIop calls
+ *  nextMatch on demand when the operator is streaming, and for every
+ *  document when the operator's inverted list is materialized.
+ *  Operators that don't implement this interface always evaluate
+ *  their inverted list.
+ */
+public interface StreamingIop {
+
+  /**
+   *  Find the first document at or after docid that the operator
+   *  matches, leaving its locations (sorted) in the operator's
+   *  positionsBuffer.  The arguments are advanced as necessary.
+   *  @param docid The smallest docid that may match.
+   *  @return The matching docid, or INVALID_DOCID if there is none.
+   */
+  public int nextMatch (int docid);
+}
@@ -0,0 +1,251 @@
+/**
+ *  Copyright (c) 2016, Carnegie Mellon University.  All Rights Reserved.
+ */
+import java.io.*;
+import java.util.*;
+
+/**
+ *  Term-at-a-time evaluation of flat bag-of-words queries: a BM25
+ *  #SUM or an Indri #WSUM whose arguments are all #SCORE operators.
+ *  Each argument's postings are read once, in query order, and its
+ *  score is added to an accumulator array that is indexed by docid.
+ *  This avoids the per-document recursion through the query tree that
+ *  document-at-a-time evaluation does.  Scores are added in the same
+ *  order as QrySopSum and QrySopWSum add them, so they are identical
+ *  to document-at-a-time scores.
+ *  <p>
+ *  An Indri #WSUM gives each document a default score for the
+ *  arguments that it doesn't match, and that score depends on the
+ *  document length.  So #WSUM postings are first copied, to find the
+ *  documents that match any argument, and then each argument scores
+ *  every one of those documents.
+ *  </p><p>
+ *  Each thread has its own accumulator arrays, which are reused from
+ *  query to query, so queries can be evaluated concurrently.
+ *  </p>
+ */
+public class TermAtATime {
+
+  //  --------------- Constants and variables ---------------------
+
+  /**
+   *  Queries are evaluated term-at-a-time when they have a suitable
+   *  shape, unless this is false.  Set from the parameter file.
+   */
+  public static boolean enabled = true;
+
+  /**
+   *  The accumulators.  scores[docid] is valid if touched[docid] is
+   *  true; the touched docids are the first numTouched entries of
+   *  touchedDocids.  After each query, only the touched entries are
+   *  reset.
+   */
+  private static class Accumulators {
+    double[] scores = new double[0];
+    boolean[] touched = new boolean[0];
+    int[] touchedDocids = new int[0];
+    int numTouched = 0;
+
+    /**
+     *  Make sure that the accumulators can hold every docid.
+     */
+    void allocate (int maxDoc) {
+      if (this.scores.length < maxDoc) {
+        this.scores = new double[maxDoc];
+        this.touched = new boolean[maxDoc];
+        this.touchedDocids = new int[maxDoc];
+        this.numTouched = 0;
+      }
+    }
+
+    /**
+     *  Give a document an accumulator, if it doesn't have one.
+     */
+    void touch (int docid) {
+      if (! this.touched[docid]) {
+        this.touched[docid] = true;
+        this.scores[docid] = 0.0;
+        this.touchedDocids[this.numTouched++] = docid;
+      }
+    }
+
+    /**
+     *  Clear the accumulators that the last query used.
+     */
+    void reset () {
+      for (int i = 0; i < this.numTouched; i++) {
+        this.touched[this.touchedDocids[i]] = false;
+      }
+      this.numTouched = 0;
+    }
+  }
+
+  private static final ThreadLocal<Accumulators> ACCUMULATORS =
+    new ThreadLocal<Accumulators> () {
+      protected Accumulators initialValue () {
+        return new Accumulators ();
+      }
+    };
+
+  //  --------------- Methods ---------------------------------------
+
+  /**
+   *  Can the query be evaluated term-at-a-time with this retrieval
+   *  model?
+   *  @param q An optimized query.
+   *  @param r The retrieval model.
+   *  @return True if the query is a flat #SUM (BM25) or #WSUM (Indri).
+   */
+  public static boolean canEvaluate (Qry q, RetrievalModel r) {
+
+    if (! enabled) {
+      return false;
+    }
+
+    if (! (((q instanceof QrySopSum) && (r instanceof RetrievalModelBM25)) ||
+           ((q instanceof QrySopWSum) && (r instanceof RetrievalModelIndri)))) {
+      return false;
+    }
+
+    for (Qry q_i: q.args) {
+      if (! (q_i instanceof QrySopScore)) {
+        return false;
+      }
+    }
+
+    return true;
+  }
+
+  /**
+   *  Evaluate an initialized query.  If k is positive, only the
+   *  documents that can be ranked in the top k (the k best scores,
+   *  and any documents tied with the k'th) are returned.
+   *  @param q A query for which canEvaluate is true.
+   *  @param r The retrieval model.
+   *  @param k The number of documents to return, or 0 for all.
+   *  @return The unsorted document scores.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public static ScoreList evaluate (Qry q, RetrievalModel r, int k)
+    throws IOException {
+
+    Accumulators a = ACCUMULATORS.get ();
+    a.allocate (Idx.INDEXREADER.maxDoc ());
+
+    try {
+      if (q instanceof QrySopSum) {
+        accumulateSum ((QrySopSum) q, r, a);
+      } else {
+        accumulateWSum ((QrySopWSum) q, r, a);
+      }
+
+      return select (k, a);
+    } finally {
+      a.reset ();
+    }
+  }
+
+  /**
+   *  BM25 #SUM: a document's score is the sum of the scores of the
+   *  arguments that match it.
+   */
+  private static void accumulateSum (QrySopSum q, RetrievalModel r,
+                                     Accumulators a)
+    throws IOException {
+
+    for (Qry q_i: q.args) {
+      QrySopScore.TermScorer scorer =
+        (QrySopScore.TermScorer) ((QrySop) q_i).compile (r);
+      QryIop iop = q_i.getArg (0);
+
+      while (iop.docIteratorHasMatch (r)) {
+        int docid = iop.docIteratorGetMatch ();
+
+        a.touch (docid);
+        a.scores[docid] += scorer.score (iop.docIteratorGetMatchTf (), docid);
+        iop.docIteratorAdvancePast (docid);
+      }
+    }
+  }
+
+  /**
+   *  Indri #WSUM: every document that matches any argument gets a
+   *  weighted score from every argument, which is its default score
+   *  if the argument doesn't match it.
+   */
+  private static void accumulateWSum (QrySopWSum q, RetrievalModel r,
+                                      Accumulators a)
+    throws IOException {
+
+    int n = q.args.size ();
+    int[][] docids = new int[n][];
+    int[][] tfs = new int[n][];
+    int[] df = new int[n];
+
+    //  Copy each argument's postings, and find the documents that
+    //  match any argument.
+
+    for (int i = 0; i < n; i++) {
+      QryIop iop = ((QrySopScore) q.args.get (i)).getArg (0);
+      docids[i] = new int[16];
+      tfs[i] = new int[16];
+
+      while (iop.docIteratorHasMatch (r)) {
+        int docid = iop.docIteratorGetMatch ();
+
+        if (df[i] == docids[i].length) {
+          docids[i] = Arrays.copyOf (docids[i], 2 * df[i]);
+          tfs[i] = Arrays.copyOf (tfs[i], 2 * df[i]);
+        }
+
+        docids[i][df[i]] = docid;
+        tfs[i][df[i]] = iop.docIteratorGetMatchTf ();
+        df[i] ++;
+
+        a.touch (docid);
+        iop.docIteratorAdvancePast (docid);
+      }
+    }
+
+    Arrays.sort (a.touchedDocids, 0, a.numTouched);
+
+    //  Score the documents one argument at a time.
+
+    q.initNorm ();
+
+    for (int i = 0; i < n; i++) {
+      QrySopScore.TermScorer scorer =
+        (QrySopScore.TermScorer) ((QrySop) q.args.get (i)).compile (r);
+      double weight = q.weights.get (i);
+      int p = 0;
+
+      for (int j = 0; j < a.numTouched; j++) {
+        int docid = a.touchedDocids[j];
+        int tf = 0;
+
+        if ((p < df[i]) && (docids[i][p] == docid)) {
+          tf = tfs[i][p];
+          p ++;
+        }
+
+        a.scores[docid] += scorer.score (tf, docid) * weight / q.norm;
+      }
+    }
+  }
+
+  /**
+   *  Copy the scores of the documents that can be ranked in the top k
+   *  to a ScoreList.
+   */
+  private static ScoreList select (int k, Accumulators a) {
+
+    TopKCollector collector = new TopKCollector (k);
+
+    for (int i = 0; i < a.numTouched; i++) {
+      int docid = a.touchedDocids[i];
+      collector.collect (docid, a.scores[docid]);
+    }
+
+    return collector.getScoreList ();
+  }
+}
@@ -0,0 +1,339 @@
+/**
+ *  Copyright (c) 2016, Carnegie Mellon University.  All Rights Reserved.
+ */
+import java.io.*;
+import java.util.*;
+
+import org.apache.lucene.index.*;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.util.BytesRef;
+
+/**
+ *  The query-dependent learning-to-rank features of the text fields:
+ *  the BM25 score (f5, f8, f11, f14), the Indri score (f6, f9, f12,
+ *  f15) and the query term overlap (f7, f10, f13, f16) of the body,
+ *  title, url and inlink fields.
+ *  <p>
+ *  The query's terms and their statistics in each field (df, ctf and
+ *  the Indri collection probability) are looked up once, when the
+ *  object is created.  The tfs of the query terms in a set of
+ *  candidate documents are then read from the postings, in one pass
+ *  per (term, field) that visits the candidates in docid order and
+ *  uses the skip lists to get from one to the next, instead of
+ *  reading a term vector per (document, field).  All three features
+ *  of a field are computed from them together.
+ *  </p><p>
+ *  The features were originally computed from term vectors, and a
+ *  field whose term vector has no terms has no matching terms.  The
+ *  term vector of a field has terms exactly when the field's length
+ *  is not 0, if the field stores term vectors at all, so the feature
+ *  values are the same.
+ *  </p><p>
+ *  The object is not changed after it is created, so threads that
+ *  compute features for different documents may share it.  A field
+ *  whose three features are disabled is neither read nor scored.
+ *  </p>
+ */
+public class TextFieldFeatures implements FeatureExtractor {
+
+  //  --------------- Constants and variables ---------------------
+
+  /**
+   *  The text fields, and the features of each.
+   */
+  static final String[] TEXT_FIELDS = { "body", "title", "url", "inlink" };
+  private static final int[] BM25_FEATURES = { 5, 8, 11, 14 };
+  private static final int[] INDRI_FEATURES = { 6, 9, 12, 15 };
+  private static final int[] OVERLAP_FEATURES = { 7, 10, 13, 16 };
+
+  static final FeatureExtractor.Factory FACTORY =
+    new FeatureExtractor.Factory () {
+      public int[] getFeatureIds () {
+        return new int[] { 5, 6, 7, 8, 9, 10, 11, 12, 13, 14, 15, 16 };
+      }
+
+      public FeatureExtractor create (Qry q, BitSet enabled)
+        throws IOException {
+        return new TextFieldFeatures (q, QryEval.bm25Model,
+                                      QryEval.indriModel);
+      }
+    };
+
+  private final RetrievalModelBM25 bm25Model;
+  private final RetrievalModelIndri indriModel;
+
+  /**
+   *  The query terms.  A term's index is its slot in the arrays below.
+   */
+  private final String[] terms;
+  private final BytesRef[] termBytes;
+
+  /**
+   *  Per field and slot:  the BM25 idf of the term, and the term's
+   *  Indri collection probability P(t|C).
+   */
+  private final double[][] idf;
+  private final double[][] p_q_c;
+
+  /**
+   *  Per field:  the average field length, and whether the field has
+   *  term vectors.
+   */
+  private final double[] averageDocLen;
+  private final boolean[] hasVectors;
+
+  /**
+   *  The BM25 query term weight; every query term has qtf 1.
+   */
+  private final double qtfWeight;
+
+  //  --------------- Methods ---------------------------------------
+
+  /**
+   *  Look up the query's terms and their statistics.
+   *  @param q The query.
+   *  @param bm25Model The model that the BM25 features use.
+   *  @param indriModel The model that the Indri features use.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public TextFieldFeatures (Qry q, RetrievalModelBM25 bm25Model,
+                            RetrievalModelIndri indriModel)
+    throws IOException {
+
+    this.bm25Model = bm25Model;
+    this.indriModel = indriModel;
+
+    HashSet<String> queryTerms = getTerms (q);
+
+    this.terms = queryTerms.toArray (new String[queryTerms.size ()]);
+    this.idf = new double[TEXT_FIELDS.length][this.terms.length];
+    this.p_q_c = new double[TEXT_FIELDS.length][this.terms.length];
+    this.averageDocLen = new double[TEXT_FIELDS.length];
+    this.hasVectors = new boolean[TEXT_FIELDS.length];
+    this.termBytes = new BytesRef[this.terms.length];
+
+    for (int t = 0; t < this.terms.length; t++)
+      this.termBytes[t] = new BytesRef (this.terms[t]);
+
+    FieldInfos fieldInfos = MultiFields.getMergedFieldInfos (Idx.INDEXREADER);
+
+    CollectionStats bm25Stats = bm25Model.getCollectionStats ();
+    CollectionStats indriStats = indriModel.getCollectionStats ();
+    long N = bm25Stats.getNumDocs ();
+    double qtf = 1.0;
+
+    this.qtfWeight = (bm25Model.getK3 () + 1) * qtf / (bm25Model.getK3 () + qtf);
+
+    for (int f = 0; f < TEXT_FIELDS.length; f++) {
+      String field = TEXT_FIELDS[f];
+      long cLen = indriStats.getSumOfFieldLengths (field);
+
+      FieldInfo fieldInfo = fieldInfos.fieldInfo (field);
+
+      this.averageDocLen[f] = bm25Stats.getAverageFieldLength (field);
+      this.hasVectors[f] = (fieldInfo != null) && fieldInfo.hasVectors ();
+
+      for (int t = 0; t < this.terms.length; t++) {
+        Term term = new Term (field, this.termBytes[t]);
+        int df = Idx.INDEXREADER.docFreq (term);
+        long ctf = Idx.INDEXREADER.totalTermFreq (term);
+
+        this.idf[f][t] = Math.max (0, Math.log ((N + 0.5 - df) / (df + 0.5)));
+        this.p_q_c[f][t] = ((double) ctf) / cLen;
+      }
+    }
+  }
+
+  /**
+   *  Get the terms of a query:  the first term of each argument of the
+   *  query, with the default field (.body) removed.
+   *  @param q The query.
+   *  @return The terms.
+   */
+  static HashSet<String> getTerms (Qry q) {
+    HashSet<String> queryTerms = new HashSet<> ();
+
+    for (Qry arg : q.args) {
+      while (arg.args.size () > 0) {
+        arg = arg.args.get (0);
+      }
+
+      String s = arg.toString ();
+      s = s.replace (".body", "");
+
+      queryTerms.add (s.trim ());
+    }
+
+    return queryTerms;
+  }
+
+  /**
+   *  Are any of the features of a field enabled?
+   *  @param f The field's index in TEXT_FIELDS.
+   *  @param enabled The features that are computed.
+   *  @return True if the field's features must be computed.
+   */
+  private static boolean isEnabled (int f, BitSet enabled) {
+    return enabled.get (BM25_FEATURES[f]) || enabled.get (INDRI_FEATURES[f]) ||
+      enabled.get (OVERLAP_FEATURES[f]);
+  }
+
+  /**
+   *  Compute the enabled text field features of documents.
+   *  @param docs The documents.
+   *  @param enabled The features that must be computed.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public void addTo (List<FeatureDocument> docs, BitSet enabled)
+    throws IOException {
+
+    int[] docids = new int[docs.size ()];
+
+    for (int i = 0; i < docids.length; i++)
+      docids[i] = docs.get (i).internal_id;
+
+    int[][] tfs = this.readTfs (docids, enabled);
+
+    for (int i = 0; i < docids.length; i++) {
+      for (int f = 0; f < TEXT_FIELDS.length; f++) {
+        if (isEnabled (f, enabled))
+          this.addTo (docs.get (i), f, tfs[i], enabled);
+      }
+    }
+  }
+
+  /**
+   *  Read the tfs of the query terms in candidate documents from the
+   *  postings of the text fields.  Fields without term vectors are
+   *  skipped, because their features don't use tfs, and so are fields
+   *  whose features are disabled.
+   *  @param docids The internal ids of the candidates, in any order.
+   *  Negative ids are ignored.
+   *  @param enabled The features that are computed.
+   *  @return For each candidate, the tf of query term t in field f,
+   *  at index f * (number of query terms) + t.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public int[][] readTfs (int[] docids, BitSet enabled) throws IOException {
+
+    int[][] tfs = new int[docids.length][TEXT_FIELDS.length * this.terms.length];
+
+    //  Visit the candidates in docid order.  Each is packed with its
+    //  index, so sorting them keeps track of where they came from.
+
+    long[] order = new long[docids.length];
+    int n = 0;
+
+    for (int i = 0; i < docids.length; i++) {
+      if (docids[i] >= 0)
+        order[n++] = ((long) docids[i] << 32) | i;
+    }
+
+    Arrays.sort (order, 0, n);
+
+    for (int f = 0; f < TEXT_FIELDS.length; f++) {
+      if (! this.hasVectors[f] || ! isEnabled (f, enabled))
+        continue;
+
+      for (int t = 0; t < this.terms.length; t++) {
+
+        //  Term vectors include deleted documents, so postings do too.
+
+        DocsEnum postings =
+          MultiFields.getTermDocsEnum (Idx.INDEXREADER, null, TEXT_FIELDS[f],
+                                       this.termBytes[t], DocsEnum.FLAG_FREQS);
+
+        if (postings == null)
+          continue;
+
+        int slot = f * this.terms.length + t;
+        int current = -1;
+
+        for (int j = 0; j < n; j++) {
+          int docid = (int) (order[j] >>> 32);
+
+          if (current < docid)
+            current = postings.advance (docid);
+
+          if (current == DocIdSetIterator.NO_MORE_DOCS)
+            break;
+
+          if (current == docid)
+            tfs[(int) order[j]][slot] = postings.freq ();
+        }
+      }
+    }
+
+    return tfs;
+  }
+
+  /**
+   *  Compute the features of one field of a document.
+   *  @param doc The document.
+   *  @param f The field's index in TEXT_FIELDS.
+   *  @param tfs The tfs of the query terms in the document.
+   *  @param enabled The features that are computed.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  private void addTo (FeatureDocument doc, int f, int[] tfs, BitSet enabled)
+    throws IOException {
+
+    String field = TEXT_FIELDS[f];
+    int docLen = Idx.getFieldLength (field, doc.internal_id);
+
+    //  A document without the field doesn't have its features.
+
+    if (docLen == 0) {
+      addFeatureValue (doc, OVERLAP_FEATURES[f], Double.MAX_VALUE, enabled);
+      addFeatureValue (doc, BM25_FEATURES[f], Double.MAX_VALUE, enabled);
+      addFeatureValue (doc, INDRI_FEATURES[f], Double.MAX_VALUE, enabled);
+      return;
+    }
+
+    //  Score the query terms in order.  A field without term vectors
+    //  matches no term.
+
+    double k_1 = this.bm25Model.getK1 ();
+    double b = this.bm25Model.getB ();
+    int mu = this.indriModel.mu;
+    double lambda = this.indriModel.lambda;
+
+    double bm25 = 0.0;
+    double indri = 1.0;
+    double overlap = 0;
+    boolean seen = false;
+
+    for (int t = 0; this.hasVectors[f] && (t < this.terms.length); t++) {
+      int tf = tfs[f * this.terms.length + t];
+
+      if (tf > 0) {
+        overlap++;
+        seen = true;
+        bm25 += this.idf[f][t] *
+          (tf / (tf + k_1 * (1 - b + b * docLen / this.averageDocLen[f]))) *
+          this.qtfWeight;
+      }
+
+      double p = (1 - lambda) * ((tf + mu * this.p_q_c[f][t]) / (docLen + mu)) +
+        lambda * this.p_q_c[f][t];
+      indri *= Math.pow (p, 1.0 / this.terms.length);
+    }
+
+    overlap = overlap / this.terms.length;
+
+    if (! seen) {
+      bm25 = 0.0;
+      indri = 0.0;
+    }
+
+    addFeatureValue (doc, OVERLAP_FEATURES[f], overlap, enabled);
+    addFeatureValue (doc, BM25_FEATURES[f], bm25, enabled);
+    addFeatureValue (doc, INDRI_FEATURES[f], indri, enabled);
+  }
+
+  private static void addFeatureValue (FeatureDocument doc, int feature,
+                                       double value, BitSet enabled) {
+    if (enabled.get (feature))
+      doc.addFeatureValue (feature, value);
+  }
+}
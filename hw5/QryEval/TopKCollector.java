@@ -0,0 +1,206 @@
+/**
+ *  Copyright (c) 2016, Carnegie Mellon University.  All Rights Reserved.
+ */
+import java.util.*;
+
+/**
+ *  Collects the documents that can be in the top k of a ranking, in
+ *  primitive arrays.  Documents are ranked by score, and ties are
+ *  broken by external id, as ScoreList.sortExternal does.
+ *  <p>
+ *  If the index's ExternalIdTable has an ordinal for every document,
+ *  the collector is a min-heap of exactly k documents, ordered by
+ *  score and external id ordinal, so ranking needs no strings.
+ *  Otherwise a ScoreHeap tracks the k'th best score, and every
+ *  document that reaches it is kept, including all of the documents
+ *  that tie with it, because which of them is in the top k depends on
+ *  external ids that are only compared when the ranking is sorted.
+ *  </p>
+ */
+public class TopKCollector {
+
+  //  --------------- Constants and variables ---------------------
+
+  private final int k;
+  private final ExternalIdTable ids;
+  private final ScoreHeap heap;
+  private int[] docids = new int[16];
+  private double[] scores = new double[16];
+  private int[] ordinals = null;
+  private int size = 0;
+
+  //  --------------- Methods ---------------------------------------
+
+  /**
+   *  @param k The number of documents that must be ranked correctly.
+   *  If it is 0 or less, every document is kept.
+   */
+  public TopKCollector (int k) {
+    ExternalIdTable table = Idx.getExternalIdTable ();
+
+    this.k = k;
+
+    if ((k > 0) && (table != null) && table.isComplete ()) {
+      this.ids = table;
+      this.heap = null;
+      this.docids = new int[k];
+      this.scores = new double[k];
+      this.ordinals = new int[k];
+    } else {
+      this.ids = null;
+      this.heap = (k > 0) ? new ScoreHeap (k) : null;
+    }
+  }
+
+  /**
+   *  Get the score that a document must reach to be in the top k.
+   *  @return The k'th best score so far, or negative infinity if
+   *  fewer than k documents were collected.
+   */
+  public double threshold () {
+    if (this.ids != null)
+      return (this.size == this.k) ? this.scores[0] : Double.NEGATIVE_INFINITY;
+
+    if ((this.heap == null) || ! this.heap.isFull ())
+      return Double.NEGATIVE_INFINITY;
+
+    return this.heap.min ();
+  }
+
+  /**
+   *  Collect the score of a document.
+   *  @param docid The internal document id.
+   *  @param score The document's score.
+   */
+  public void collect (int docid, double score) {
+
+    if (score < this.threshold ())
+      return;
+
+    if (this.ids != null) {
+      this.collectRanked (docid, score, this.ids.getOrdinal (docid));
+      return;
+    }
+
+    if (this.heap != null)
+      this.heap.offer (score);
+
+    if (this.size == this.docids.length) {
+      this.docids = Arrays.copyOf (this.docids, 2 * this.size);
+      this.scores = Arrays.copyOf (this.scores, 2 * this.size);
+    }
+
+    this.docids[this.size] = docid;
+    this.scores[this.size] = score;
+    this.size ++;
+  }
+
+  /**
+   *  Does the document in heap slot i rank below the document in slot
+   *  j?
+   */
+  private boolean ranksBelow (int i, int j) {
+    if (this.scores[i] != this.scores[j])
+      return this.scores[i] < this.scores[j];
+
+    if (this.ordinals[i] != this.ordinals[j])
+      return this.ordinals[i] > this.ordinals[j];
+
+    return this.docids[i] > this.docids[j];
+  }
+
+  private void swap (int i, int j) {
+    int d = this.docids[i];
+    double s = this.scores[i];
+    int o = this.ordinals[i];
+
+    this.docids[i] = this.docids[j];
+    this.scores[i] = this.scores[j];
+    this.ordinals[i] = this.ordinals[j];
+    this.docids[j] = d;
+    this.scores[j] = s;
+    this.ordinals[j] = o;
+  }
+
+  /**
+   *  Add a document to the heap of the k best documents.  The lowest
+   *  ranked document is at the root.
+   */
+  private void collectRanked (int docid, double score, int ordinal) {
+
+    int i;
+
+    if (this.size < this.k) {
+      i = this.size++;
+    } else {
+
+      //  Replace the root if the new document ranks above it.
+
+      if ((score < this.scores[0]) ||
+          ((score == this.scores[0]) &&
+           ((ordinal > this.ordinals[0]) ||
+            ((ordinal == this.ordinals[0]) && (docid > this.docids[0])))))
+        return;
+
+      i = 0;
+    }
+
+    this.docids[i] = docid;
+    this.scores[i] = score;
+    this.ordinals[i] = ordinal;
+
+    if (i > 0) {
+
+      //  Sift the new document up.
+
+      while (i > 0) {
+        int parent = (i - 1) / 2;
+
+        if (! this.ranksBelow (i, parent))
+          break;
+
+        this.swap (i, parent);
+        i = parent;
+      }
+    } else {
+
+      //  Sift the new root down.
+
+      while (true) {
+        int child = 2 * i + 1;
+
+        if (child >= this.size)
+          break;
+
+        if ((child + 1 < this.size) && this.ranksBelow (child + 1, child))
+          child ++;
+
+        if (! this.ranksBelow (child, i))
+          break;
+
+        this.swap (i, child);
+        i = child;
+      }
+    }
+  }
+
+  /**
+   *  Get the documents that can be in the top k, in no particular
+   *  order.
+   *  @return The unsorted scores.
+   */
+  public ScoreList getScoreList () {
+
+    ScoreList result = new ScoreList ();
+    double threshold = (this.ids != null) ? Double.NEGATIVE_INFINITY :
+      this.threshold ();
+
+    for (int i = 0; i < this.size; i++) {
+      if (this.scores[i] >= threshold) {
+        result.add (this.docids[i], this.scores[i]);
+      }
+    }
+
+    return result;
+  }
+}